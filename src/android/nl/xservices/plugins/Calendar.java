@@ -1,16 +1,18 @@
 package nl.xservices.plugins;
 
 import android.Manifest;
-import android.app.Activity;
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.CalendarContract;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
@@ -20,8 +22,21 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
 import java.text.SimpleDateFormat;
 
 import static android.provider.CalendarContract.Events;
@@ -38,99 +53,455 @@ public class Calendar extends CordovaPlugin {
 
     private static final String ACTION_CREATE_EVENT_WITH_OPTIONS = "createEventWithOptions";
     private static final String ACTION_DELETE_EVENT_BY_ID = "deleteEventById";
+    private static final String ACTION_CREATE_EVENTS_BATCH = "createEventsBatch";
+    private static final String ACTION_DELETE_EVENTS_BY_IDS = "deleteEventsByIds";
+    private static final String ACTION_MODIFY_EVENTS = "modifyEvents";
     private static final String ACTION_LIST_EVENTS_IN_RANGE = "listEventsInRange";
+    private static final String ACTION_GET_CACHED_EVENTS_IN_RANGE = "getCachedEventsInRange";
+    private static final String ACTION_LIST_EVENTS_IN_RANGES = "listEventsInRanges";
+    private static final String ACTION_SYNC_CALENDARS = "syncCalendars";
+    private static final String ACTION_LIST_EVENT_CHANGES_SINCE = "listEventChangesSince";
     private static final String ACTION_LIST_CALENDARS = "listCalendars";
     private static final String ACTION_CREATE_CALENDAR = "createCalendar";
     private static final String ACTION_DELETE_CALENDAR = "deleteCalendar";
+    private static final String ACTION_GET_PLUGIN_METRICS = "getPluginMetrics";
+    private static final String ACTION_GET_EVENTS_BY_IDS = "getEventsByIds";
+    private static final String ACTION_WATCH_CALENDARS = "watchCalendars";
+    private static final String ACTION_UNWATCH_CALENDARS = "unwatchCalendars";
+    private static final String ACTION_SUBSCRIBE_EVENT_CHANGES = "subscribeEventChanges";
+    private static final String ACTION_UNSUBSCRIBE_EVENT_CHANGES = "unsubscribeEventChanges";
+    private static final String ACTION_SEARCH_EVENTS = "searchEvents";
+    private static final String ACTION_FIND_EVENT_WITH_OPTIONS = "findEventWithOptions";
+    private static final String ACTION_FIND_ALL_EVENTS_IN_NAMED_CALENDAR = "findAllEventsInNamedCalendar";
+    private static final String ACTION_GET_FREE_BUSY = "getFreeBusy";
+    private static final String ACTION_FIND_FREE_SLOTS = "findFreeSlots";
+    private static final String ACTION_COUNT_EVENTS_BY_DAY = "countEventsByDay";
 
-    // write permissions
-    private static final int PERMISSION_REQCODE_CREATE_CALENDAR = 100;
-    private static final int PERMISSION_REQCODE_DELETE_CALENDAR = 101;
-    private static final int PERMISSION_REQCODE_CREATE_EVENT = 102;
-    private static final int PERMISSION_REQCODE_DELETE_EVENT_BY_ID = 104;
+    // config.xml preference: log the plugin metrics every this many seconds, 0 (the default) to not log them
+    private static final String PREFERENCE_METRICS_LOG_INTERVAL = "CalendarMetricsLogInterval";
+    private static final String PREFERENCE_SNAPSHOT_WEEKS = "CalendarSnapshotWeeks";
+    private static final int DEFAULT_SNAPSHOT_WEEKS = 4;
 
-    // read permissions
-    private static final int PERMISSION_REQCODE_LIST_CALENDARS = 201;
-    private static final int PERMISSION_REQCODE_LIST_EVENTS_IN_RANGE = 202;
+    // permission requests get their own request code (from here on up) so their continuation can be looked up
+    private static final int FIRST_PERMISSION_REQUEST_CODE = 100;
 
-    private static final Integer RESULT_CODE_CREATE = 0;
-    private static final Integer RESULT_CODE_OPENCAL = 1;
+    private static final String FORMAT_COLUMNAR = "columnar";
+    private static final String MATCH_OVERLAP = "overlap";
 
-    private JSONArray requestArgs;
-    private CallbackContext callback;
+    // the fields of a listEventsInRange event, this is also the column order of the columnar format
+    public static final Projection INSTANCE_PROJECTION = new Projection()
+            .add(Events.CALENDAR_ID, Events.CALENDAR_ID, Projection.TYPE_STRING)
+            .add("id", "_id", Projection.TYPE_STRING)
+            .add("event_id", "event_id", Projection.TYPE_STRING)
+            .add(Events.DELETED, Events.DELETED, Projection.TYPE_STRING)
+            .add(Events.RRULE, Events.RRULE, Projection.TYPE_STRING)
+            .add(Events.RDATE, Events.RDATE, Projection.TYPE_STRING)
+            .add(Events.EXDATE, Events.EXDATE, Projection.TYPE_STRING)
+            .add(Events.TITLE, Events.TITLE, Projection.TYPE_STRING)
+            .add(Events.DTSTART, "begin", Projection.TYPE_LONG)
+            .add(Events.DTEND, "end", Projection.TYPE_LONG)
+            .add(Events.EVENT_LOCATION, Events.EVENT_LOCATION, Projection.TYPE_STRING_NOT_NULL)
+            .add(Events.EVENT_COLOR, Events.EVENT_COLOR, Projection.TYPE_LONG)
+            .add(Events.DISPLAY_COLOR, Events.DISPLAY_COLOR, Projection.TYPE_COLOR_HEX)
+            .add(Events.ALL_DAY, Events.ALL_DAY, Projection.TYPE_INT);
+
+    public static final Projection CALENDAR_PROJECTION = new Projection()
+            .add("id", CalendarContract.Calendars._ID, Projection.TYPE_STRING)
+            .add(CalendarContract.Calendars.NAME, CalendarContract.Calendars.NAME, Projection.TYPE_STRING)
+            .add(CalendarContract.Calendars.CALENDAR_DISPLAY_NAME, CalendarContract.Calendars.CALENDAR_DISPLAY_NAME, Projection.TYPE_STRING)
+            .add(CalendarContract.Calendars.CALENDAR_COLOR, CalendarContract.Calendars.CALENDAR_COLOR, Projection.TYPE_COLOR_HEX)
+            .add("visible", CalendarContract.Calendars.VISIBLE, Projection.TYPE_STRING)
+            // some providers return the primary flag under the name of the expression they compute it with
+            .add(CalendarContract.Calendars.IS_PRIMARY, CalendarContract.Calendars.IS_PRIMARY, Projection.TYPE_FLAG,
+                    "COALESCE(isPrimary, ownerAccount = account_name)");
+
+    // the fields of a getEventsByIds event, besides its reminders and attendees
+    public static final Projection EVENT_PROJECTION = new Projection()
+            .add("id", Events._ID, Projection.TYPE_STRING)
+            .add(Events.CALENDAR_ID, Events.CALENDAR_ID, Projection.TYPE_STRING)
+            .add(Events.TITLE, Events.TITLE, Projection.TYPE_STRING)
+            .add(Events.DESCRIPTION, Events.DESCRIPTION, Projection.TYPE_STRING)
+            .add(Events.EVENT_LOCATION, Events.EVENT_LOCATION, Projection.TYPE_STRING_NOT_NULL)
+            .add(Events.DTSTART, Events.DTSTART, Projection.TYPE_LONG)
+            .add(Events.DTEND, Events.DTEND, Projection.TYPE_NULLABLE_LONG)
+            .add(Events.DURATION, Events.DURATION, Projection.TYPE_STRING)
+            .add(Events.EVENT_TIMEZONE, Events.EVENT_TIMEZONE, Projection.TYPE_STRING)
+            .add(Events.ALL_DAY, Events.ALL_DAY, Projection.TYPE_INT)
+            .add(Events.RRULE, Events.RRULE, Projection.TYPE_STRING)
+            .add(Events.RDATE, Events.RDATE, Projection.TYPE_STRING)
+            .add(Events.EXDATE, Events.EXDATE, Projection.TYPE_STRING)
+            .add(Events.AVAILABILITY, Events.AVAILABILITY, Projection.TYPE_INT)
+            .add(Events.STATUS, Events.STATUS, Projection.TYPE_STRING)
+            .add(Events.ORGANIZER, Events.ORGANIZER, Projection.TYPE_STRING)
+            .add(Events.EVENT_COLOR, Events.EVENT_COLOR, Projection.TYPE_LONG)
+            .add(Events.DISPLAY_COLOR, Events.DISPLAY_COLOR, Projection.TYPE_COLOR_HEX)
+            .add(Events.HAS_ALARM, Events.HAS_ALARM, Projection.TYPE_FLAG)
+            .add(Events.ORIGINAL_ID, Events.ORIGINAL_ID, Projection.TYPE_STRING);
+
+    public static final Projection REMINDER_PROJECTION = new Projection()
+            .add(CalendarContract.Reminders.MINUTES, CalendarContract.Reminders.MINUTES, Projection.TYPE_INT)
+            .add(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD, Projection.TYPE_INT);
+
+    public static final Projection ATTENDEE_PROJECTION = new Projection()
+            .add("name", CalendarContract.Attendees.ATTENDEE_NAME, Projection.TYPE_STRING)
+            .add("email", CalendarContract.Attendees.ATTENDEE_EMAIL, Projection.TYPE_STRING)
+            .add("status", CalendarContract.Attendees.ATTENDEE_STATUS, Projection.TYPE_INT)
+            .add("type", CalendarContract.Attendees.ATTENDEE_TYPE, Projection.TYPE_INT)
+            .add("relationship", CalendarContract.Attendees.ATTENDEE_RELATIONSHIP, Projection.TYPE_INT);
+
+    // the getEventsByIds fields which are read from their own table
+    private static final String FIELD_REMINDERS = "reminders";
+    private static final String FIELD_ATTENDEES = "attendees";
+
+    // stays well below the 999 variables SQLite allows in a statement
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    // the fields of a searchEvents event, get the rest with getEventsByIds
+    public static final Projection SEARCH_PROJECTION = new Projection()
+            .add("id", Events._ID, Projection.TYPE_STRING)
+            .add(Events.CALENDAR_ID, Events.CALENDAR_ID, Projection.TYPE_STRING)
+            .add(Events.TITLE, Events.TITLE, Projection.TYPE_STRING)
+            .add(Events.EVENT_LOCATION, Events.EVENT_LOCATION, Projection.TYPE_STRING_NOT_NULL)
+            .add(Events.DTSTART, Events.DTSTART, Projection.TYPE_LONG)
+            .add(Events.DTEND, Events.DTEND, Projection.TYPE_NULLABLE_LONG)
+            .add(Events.ALL_DAY, Events.ALL_DAY, Projection.TYPE_INT)
+            .add(Events.RRULE, Events.RRULE, Projection.TYPE_STRING);
+
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+
+    // how far ahead findAllEventsInNamedCalendar looks, recurring events would otherwise be expanded without end
+    private static final long FIND_ALL_SPAN_MILLIS = 4 * 366 * 24 * 60 * 60 * 1000L;
+
+    // findEvent is called with dates only, without an end date it searches a year ahead (like on iOS)
+    private static final long FIND_DEFAULT_SPAN_MILLIS = 366 * 24 * 60 * 60 * 1000L;
+
+    // the instance cache keeps the timezone as well, it's needed to filter all day events
+    private static final String[] CACHED_INSTANCE_COLUMNS = new String[INSTANCE_PROJECTION.getColumns().length + 1];
+
+    static {
+        String[] columns = INSTANCE_PROJECTION.getColumns();
+        System.arraycopy(columns, 0, CACHED_INSTANCE_COLUMNS, 0, columns.length);
+        CACHED_INSTANCE_COLUMNS[columns.length] = Events.EVENT_TIMEZONE;
+    }
+
+    private CalendarExecutor executor;
+    private InstanceCache instanceCache;
+    private InstanceSnapshot instanceSnapshot;
+    // how many weeks from the start of today getCachedEventsInRange keeps in the snapshot
+    private int snapshotWeeks = DEFAULT_SNAPSHOT_WEEKS;
+    private CalendarListCache calendarListCache;
+    private EventChangeTracker changeTracker;
+    private EventChangeNotifier eventChangeNotifier;
+    private EventSearchIndex eventSearchIndex;
+    private final PluginMetrics metrics = new PluginMetrics();
+    // the provider the instance cache observes, see CalendarUris.setAuthority
+    private String observedAuthority;
+
+    private final InstanceCache.Loader instanceLoader = new InstanceCache.Loader() {
+        @Override
+        public Cursor query(long begin, long end) {
+            return getContentResolver().query(
+                    CalendarUris.instances(begin, end),
+                    CACHED_INSTANCE_COLUMNS,
+                    "deleted = 0",
+                    null,
+                    null);
+        }
+    };
+
+    // the watchCalendars callbacks by the watchId JS gave them, and the calendars they were sent last
+    private final Map<Integer, CallbackContext> calendarWatchers = new LinkedHashMap<Integer, CallbackContext>();
+    private String watchedCalendarsJson;
+
+    // the subscribeEventChanges callbacks, and the id the next one gets
+    private final List<EventSubscriber> eventSubscribers = new ArrayList<EventSubscriber>();
+    private int nextSubscriptionId = 1;
+
+    // the syncCalendars calls which are still waiting for their syncs
+    private final List<CalendarSync> calendarSyncs = new ArrayList<CalendarSync>();
+
+    // the requests waiting for a permission dialog or an activity result, by request code
+    private final Map<Integer, PendingRequest> pendingRequests = new HashMap<Integer, PendingRequest>();
+    private int nextPermissionRequestCode = FIRST_PERMISSION_REQUEST_CODE;
 
     private static final String LOG_TAG = Calendar.class.getCanonicalName();
 
     @Override
-    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
-        this.callback = callbackContext;
-        this.requestArgs = args;
+    protected void pluginInitialize() {
+        executor = new CalendarExecutor();
+        changeTracker = new EventChangeTracker(new File(cordova.getActivity().getFilesDir(), "calendar-event-snapshot"));
+        instanceCache = new InstanceCache(CACHED_INSTANCE_COLUMNS);
+        instanceSnapshot = new InstanceSnapshot(new File(cordova.getActivity().getFilesDir(), "calendar-instance-snapshot"), CACHED_INSTANCE_COLUMNS);
+        if (preferences != null) {
+            snapshotWeeks = Math.max(1, preferences.getInteger(PREFERENCE_SNAPSHOT_WEEKS, DEFAULT_SNAPSHOT_WEEKS));
+        }
+        calendarListCache = new CalendarListCache(new CalendarListCache.Loader() {
+            @Override
+            public JSONArray load() throws JSONException {
+                return getActiveCalendars();
+            }
+        });
+        calendarListCache.setListener(new CalendarListCache.Listener() {
+            @Override
+            public void onCalendarsChanged() {
+                pushCalendars();
+            }
+        });
+        eventChangeNotifier = new EventChangeNotifier(executor, new EventChangeNotifier.Loader() {
+            @Override
+            public Cursor load() {
+                return getContentResolver().query(
+                        CalendarUris.events(),
+                        EventChangeNotifier.COLUMNS,
+                        Events.DELETED + " = 0",
+                        null,
+                        EventChangeNotifier.SORT_ORDER);
+            }
+        }, new EventChangeNotifier.Listener() {
+            @Override
+            public void onEventsChanged(JSONObject change) {
+                pushEventChanges(change);
+            }
+        });
+        eventSearchIndex = new EventSearchIndex();
+        observeProvider();
+        final int metricsLogInterval = preferences != null ? preferences.getInteger(PREFERENCE_METRICS_LOG_INTERVAL, 0) : 0;
+        if (metricsLogInterval > 0) {
+            metrics.startLogging(metricsLogInterval * 1000L);
+        }
+    }
+
+    /**
+     * Registers the caches with the current provider, again when a test switched providers in the meantime.
+     */
+    private synchronized void observeProvider() {
+        final String authority = CalendarUris.getAuthority();
+        if (authority.equals(observedAuthority)) {
+            return;
+        }
+        observedAuthority = authority;
+        final ContentResolver contentResolver = getContentResolver();
+        // without change notifications a cache could serve stale data, so don't use it at all
+        if (instanceCache != null) {
+            try {
+                instanceCache.unregister(contentResolver);
+                instanceCache.register(contentResolver, CalendarUris.events(), CalendarUris.instances());
+            } catch (SecurityException e) {
+                Log.w(LOG_TAG, "Can't observe the calendar provider, not caching instances", e);
+                instanceCache = null;
+            }
+        }
+        if (calendarListCache != null) {
+            try {
+                calendarListCache.unregister(contentResolver);
+                calendarListCache.register(contentResolver, CalendarUris.calendars());
+            } catch (SecurityException e) {
+                Log.w(LOG_TAG, "Can't observe the calendar provider, not caching calendars", e);
+                calendarListCache = null;
+            }
+        }
+        if (eventSearchIndex != null) {
+            try {
+                eventSearchIndex.unregister(contentResolver);
+                eventSearchIndex.register(contentResolver, CalendarUris.events());
+            } catch (SecurityException e) {
+                Log.w(LOG_TAG, "Can't observe the calendar provider, searching without an index", e);
+                eventSearchIndex = null;
+            }
+        }
+        if (eventChangeNotifier != null && eventChangeNotifier.isStarted()) {
+            try {
+                executor.read(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (eventSubscribers) {
+                            if (eventChangeNotifier.isStarted()) {
+                                eventChangeNotifier.start(contentResolver, CalendarUris.events());
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(LOG_TAG, "Too many pending calendar queries, not observing the events anymore", e);
+            }
+        }
+    }
+
+    @Override
+    public void onReset() {
+        failPendingRequests();
+        // the page is gone, and the next one numbers its watches from the start again
+        synchronized (calendarWatchers) {
+            calendarWatchers.clear();
+            watchedCalendarsJson = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        failPendingRequests();
+        if (instanceCache != null) {
+            instanceCache.unregister(getContentResolver());
+        }
+        if (calendarListCache != null) {
+            calendarListCache.unregister(getContentResolver());
+        }
+        if (eventSearchIndex != null) {
+            eventSearchIndex.unregister(getContentResolver());
+        }
+        eventChangeNotifier.stop(getContentResolver());
+        final List<CalendarSync> syncs;
+        synchronized (calendarSyncs) {
+            syncs = new ArrayList<CalendarSync>(calendarSyncs);
+            calendarSyncs.clear();
+        }
+        // cancelled outside the lock, the listener of a sync which is finishing takes it
+        for (CalendarSync calendarSync : syncs) {
+            calendarSync.cancel();
+        }
+        executor.shutdown();
+        metrics.stopLogging();
+        super.onDestroy();
+    }
 
+    @Override
+    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        observeProvider();
+        callbackContext = metrics.meter(action, callbackContext, webView);
         if (ACTION_CREATE_EVENT_WITH_OPTIONS.equals(action)) {
-            createEvent(args);
+            createEvent(args, callbackContext);
             return true;
         } else if (ACTION_LIST_EVENTS_IN_RANGE.equals(action)) {
-            listEventsInRange(args);
+            listEventsInRange(args, callbackContext);
+            return true;
+        } else if (ACTION_SYNC_CALENDARS.equals(action)) {
+            syncCalendars(args, callbackContext);
+            return true;
+        } else if (ACTION_LIST_EVENTS_IN_RANGES.equals(action)) {
+            listEventsInRanges(args, callbackContext);
+            return true;
+        } else if (ACTION_GET_CACHED_EVENTS_IN_RANGE.equals(action)) {
+            getCachedEventsInRange(args, callbackContext);
+            return true;
+        } else if (ACTION_LIST_EVENT_CHANGES_SINCE.equals(action)) {
+            listEventChangesSince(args, callbackContext);
             return true;
         } else if (ACTION_DELETE_EVENT_BY_ID.equals(action)) {
-            deleteEventById(args);
+            deleteEventById(args, callbackContext);
+            return true;
+        } else if (ACTION_CREATE_EVENTS_BATCH.equals(action)) {
+            createEventsBatch(args, callbackContext);
+            return true;
+        } else if (ACTION_DELETE_EVENTS_BY_IDS.equals(action)) {
+            deleteEventsByIds(args, callbackContext);
+            return true;
+        } else if (ACTION_MODIFY_EVENTS.equals(action)) {
+            modifyEvents(args, callbackContext);
             return true;
         } else if (ACTION_LIST_CALENDARS.equals(action)) {
-            listCalendars();
+            listCalendars(args, callbackContext);
             return true;
         } else if (ACTION_CREATE_CALENDAR.equals(action)) {
-            createCalendar(args);
+            createCalendar(args, callbackContext);
             return true;
         } else if (ACTION_DELETE_CALENDAR.equals(action)) {
-            deleteCalendar(args);
+            deleteCalendar(args, callbackContext);
+            return true;
+        } else if (ACTION_WATCH_CALENDARS.equals(action)) {
+            watchCalendars(args, callbackContext);
+            return true;
+        } else if (ACTION_UNWATCH_CALENDARS.equals(action)) {
+            unwatchCalendars(args, callbackContext);
+            return true;
+        } else if (ACTION_SUBSCRIBE_EVENT_CHANGES.equals(action)) {
+            subscribeEventChanges(args, callbackContext);
+            return true;
+        } else if (ACTION_UNSUBSCRIBE_EVENT_CHANGES.equals(action)) {
+            unsubscribeEventChanges(args, callbackContext);
+            return true;
+        } else if (ACTION_GET_FREE_BUSY.equals(action)) {
+            getFreeBusy(args, callbackContext, false);
+            return true;
+        } else if (ACTION_FIND_FREE_SLOTS.equals(action)) {
+            getFreeBusy(args, callbackContext, true);
+            return true;
+        } else if (ACTION_COUNT_EVENTS_BY_DAY.equals(action)) {
+            countEventsByDay(args, callbackContext);
+            return true;
+        } else if (ACTION_SEARCH_EVENTS.equals(action)) {
+            searchEvents(args, callbackContext);
+            return true;
+        } else if (ACTION_FIND_EVENT_WITH_OPTIONS.equals(action)) {
+            findEventWithOptions(args, callbackContext);
+            return true;
+        } else if (ACTION_FIND_ALL_EVENTS_IN_NAMED_CALENDAR.equals(action)) {
+            findAllEventsInNamedCalendar(args, callbackContext);
+            return true;
+        } else if (ACTION_GET_EVENTS_BY_IDS.equals(action)) {
+            getEventsByIds(args, callbackContext);
+            return true;
+        } else if (ACTION_GET_PLUGIN_METRICS.equals(action)) {
+            getPluginMetrics(args, callbackContext);
             return true;
         } else if (HAS_READ_PERMISSION.equals(action)) {
-            hasReadPermission();
+            hasReadPermission(callbackContext);
             return true;
         } else if (HAS_WRITE_PERMISSION.equals(action)) {
-            hasWritePermission();
+            hasWritePermission(callbackContext);
             return true;
         } else if (HAS_READWRITE_PERMISSION.equals(action)) {
-            hasReadWritePermission();
+            hasReadWritePermission(callbackContext);
             return true;
         } else if (REQUEST_READ_PERMISSION.equals(action)) {
-            requestReadPermission(0);
+            requestReadPermission(action, args, callbackContext);
             return true;
         } else if (REQUEST_WRITE_PERMISSION.equals(action)) {
-            requestWritePermission(0);
+            requestWritePermission(action, args, callbackContext);
             return true;
         } else if (REQUEST_READWRITE_PERMISSION.equals(action)) {
-            requestReadWritePermission(0);
+            requestReadWritePermission(action, args, callbackContext);
             return true;
         }
         return false;
     }
 
-    private void hasReadPermission() {
-        this.callback.sendPluginResult(new PluginResult(PluginResult.Status.OK,
+    private void hasReadPermission(CallbackContext callbackContext) {
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK,
                 calendarPermissionGranted(Manifest.permission.READ_CALENDAR)));
     }
 
-    private void hasWritePermission() {
-        this.callback.sendPluginResult(new PluginResult(PluginResult.Status.OK,
+    private void hasWritePermission(CallbackContext callbackContext) {
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK,
                 calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR)));
     }
 
-    private void hasReadWritePermission() {
-        this.callback.sendPluginResult(new PluginResult(PluginResult.Status.OK,
+    private void hasReadWritePermission(CallbackContext callbackContext) {
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK,
                 calendarPermissionGranted(Manifest.permission.READ_CALENDAR, Manifest.permission.WRITE_CALENDAR)));
     }
 
-    private void requestReadPermission(int requestCode) {
-        requestPermission(requestCode, Manifest.permission.READ_CALENDAR);
+    private void requestReadPermission(String action, JSONArray args, CallbackContext callbackContext) {
+        requestPermission(action, args, callbackContext, Manifest.permission.READ_CALENDAR);
+    }
+
+    private void requestWritePermission(String action, JSONArray args, CallbackContext callbackContext) {
+        requestPermission(action, args, callbackContext, Manifest.permission.WRITE_CALENDAR);
     }
 
-    private void requestWritePermission(int requestCode) {
-        requestPermission(requestCode, Manifest.permission.WRITE_CALENDAR);
+    private void requestReadWritePermission(String action, JSONArray args, CallbackContext callbackContext) {
+        requestPermission(action, args, callbackContext, Manifest.permission.READ_CALENDAR, Manifest.permission.WRITE_CALENDAR);
     }
 
-    private void requestReadWritePermission(int requestCode) {
-        requestPermission(requestCode, Manifest.permission.READ_CALENDAR, Manifest.permission.WRITE_CALENDAR);
+    // runs a read for an action, which fails when too many reads are queued already
+    private boolean read(CallbackContext callbackContext, Runnable runnable) {
+        try {
+            executor.read(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error("Too many pending calendar queries, try again later");
+            return false;
+        }
     }
 
     private boolean calendarPermissionGranted(String... types) {
@@ -145,187 +516,515 @@ public class Calendar extends CordovaPlugin {
         return true;
     }
 
-    private void requestPermission(int requestCode, String... types) {
+    /**
+     * Asks for the permissions, the action is invoked again (with the same args and callback) once they're granted.
+     */
+    private void requestPermission(String action, JSONArray args, CallbackContext callbackContext, String... types) {
         if (!calendarPermissionGranted(types)) {
+            final int requestCode;
+            synchronized (pendingRequests) {
+                requestCode = nextPermissionRequestCode++;
+                pendingRequests.put(requestCode, new PendingRequest(action, args, callbackContext));
+            }
             PermissionHelper.requestPermissions(this, requestCode, types);
         }
     }
 
+    private PendingRequest removePendingRequest(int requestCode) {
+        synchronized (pendingRequests) {
+            return pendingRequests.remove(requestCode);
+        }
+    }
+
+    // fails the requests whose permission dialog will never report back, like when the page is reloaded
+    private void failPendingRequests() {
+        final List<PendingRequest> requests;
+        synchronized (pendingRequests) {
+            requests = new ArrayList<PendingRequest>(pendingRequests.values());
+            pendingRequests.clear();
+        }
+        for (PendingRequest request : requests) {
+            request.callbackContext.error("The permission request was abandoned");
+        }
+    }
+
     public void onRequestPermissionResult(int requestCode, String[] permissions, int[] grantResults) throws JSONException {
+        final PendingRequest request = removePendingRequest(requestCode);
+        if (request == null) {
+            Log.d(LOG_TAG, "Permission result for an unknown request: " + requestCode);
+            return;
+        }
         for (int r : grantResults) {
             if (r == PackageManager.PERMISSION_DENIED) {
                 Log.d(LOG_TAG, "Permission Denied!");
-                this.callback.error("Please allow access to the Calendar and try again.");
+                request.callbackContext.error("Please allow access to the Calendar and try again.");
                 return;
             }
         }
 
-        // now call the originally requested actions
-        if (requestCode == PERMISSION_REQCODE_CREATE_CALENDAR) {
-            createCalendar(requestArgs);
-        } else if (requestCode == PERMISSION_REQCODE_DELETE_CALENDAR) {
-            deleteCalendar(requestArgs);
-        } else if (requestCode == PERMISSION_REQCODE_CREATE_EVENT) {
-            createEvent(requestArgs);
-        } else if (requestCode == PERMISSION_REQCODE_DELETE_EVENT_BY_ID) {
-            deleteEventById(requestArgs);
-        } else if (requestCode == PERMISSION_REQCODE_LIST_CALENDARS) {
-            listCalendars();
-        } else if (requestCode == PERMISSION_REQCODE_LIST_EVENTS_IN_RANGE) {
-            listEventsInRange(requestArgs);
-        }
+        // now call the originally requested action
+        execute(request.action, request.args, request.callbackContext);
     }
 
-    private void listCalendars() {
+    private void listCalendars(JSONArray args, final CallbackContext callbackContext) {
         // note that if the dev didn't call requestReadPermission before calling this method and calendarPermissionGranted returns false,
         // the app will ask permission and this method needs to be invoked again (done for backward compat).
         if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
-            requestReadPermission(PERMISSION_REQCODE_LIST_CALENDARS);
+            requestReadPermission(ACTION_LIST_CALENDARS, args, callbackContext);
             return;
         }
-        cordova.getThreadPool().execute(new Runnable() {
+        final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+        read(callbackContext, new Runnable() {
             @Override
             public void run() {
                 try {
-                    JSONArray activeCalendars = Calendar.this.getActiveCalendars();
+                    sample.started();
+                    // the cached calendars are only read, so they can be passed on as they are
+                    final CalendarListCache cache = calendarListCache;
+                    JSONArray activeCalendars = cache != null ? cache.get().getCalendars() : Calendar.this.getActiveCalendars(sample);
                     if (activeCalendars == null) {
                         activeCalendars = new JSONArray();
                     }
-                    callback.sendPluginResult(new PluginResult(PluginResult.Status.OK, activeCalendars));
+                    final long serializationStart = System.nanoTime();
+                    final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, activeCalendars);
+                    sample.serialization(serializationStart);
+                    callbackContext.sendPluginResult(pluginResult);
                 } catch (JSONException e) {
                     System.err.println("JSONException: " + e.getMessage());
-                    callback.error(e.getMessage());
+                    callbackContext.error(e.getMessage());
                 } catch (Exception ex) {
                     System.err.println("Exception: " + ex.getMessage());
-                    callback.error(ex.getMessage());
+                    callbackContext.error(ex.getMessage());
                 }
             }
         });
     }
 
     public final JSONArray getActiveCalendars() throws JSONException {
+        return getActiveCalendars(PluginMetrics.sampleOf(null));
+    }
+
+    private JSONArray getActiveCalendars(PluginMetrics.Sample sample) throws JSONException {
         ContentResolver contentResolver = getContentResolver();
+        long phaseStart = System.nanoTime();
         Cursor cursor = contentResolver.query(
-                CalendarContract.Calendars.CONTENT_URI,
-                new String[]{
-                        CalendarContract.Calendars._ID,
-                        CalendarContract.Calendars.NAME,
-                        CalendarContract.Calendars.CALENDAR_DISPLAY_NAME,
-                        CalendarContract.Calendars.CALENDAR_COLOR,
-                        CalendarContract.Calendars.VISIBLE,
-                        CalendarContract.Calendars.IS_PRIMARY
-                },
+                CalendarUris.calendars(),
+                CALENDAR_PROJECTION.getColumns(),
                 CalendarContract.Calendars.VISIBLE + "=1", null, null
         );
+        phaseStart = sample.query(phaseStart);
         if (cursor == null) {
             return null;
         }
         JSONArray calendarsWrapper = new JSONArray();
-        int primaryColumnIndex;
-        if (cursor.moveToFirst()) {
-            do {
-                JSONObject calendar = new JSONObject();
-                calendar.put("id", cursor.getString(cursor.getColumnIndex(CalendarContract.Calendars._ID)));
-                calendar.put(CalendarContract.Calendars.NAME, cursor.getString(cursor.getColumnIndex(CalendarContract.Calendars.NAME)));
-                calendar.put(CalendarContract.Calendars.CALENDAR_DISPLAY_NAME, cursor.getString(cursor.getColumnIndex(CalendarContract.Calendars.CALENDAR_DISPLAY_NAME)));
-                calendar.put(CalendarContract.Calendars.CALENDAR_COLOR, CalendarUtils.getDisplayColorHex(cursor.getInt(cursor.getColumnIndex(CalendarContract.Calendars.CALENDAR_COLOR))));
-                calendar.put("visible", cursor.getString(cursor.getColumnIndex(CalendarContract.Calendars.VISIBLE)));
-                primaryColumnIndex = cursor.getColumnIndex(CalendarContract.Calendars.IS_PRIMARY);
-                if (primaryColumnIndex == -1) {
-                    primaryColumnIndex = cursor.getColumnIndex("COALESCE(isPrimary, ownerAccount = account_name)");
-                }
-                calendar.put(CalendarContract.Calendars.IS_PRIMARY, "1".equals(cursor.getString(primaryColumnIndex)));
-                calendarsWrapper.put(calendar);
-            } while (cursor.moveToNext());
+        try {
+            RowMapper rowMapper = CALENDAR_PROJECTION.bind(cursor);
+            while (cursor.moveToNext()) {
+                calendarsWrapper.put(rowMapper.toJSONObject());
+            }
+        } finally {
             cursor.close();
         }
+        sample.iteration(phaseStart);
+        sample.addRows(calendarsWrapper.length());
         return calendarsWrapper;
     }
 
+    /**
+     * Sends the calendars right away and again every time they change, until unwatchCalendars is called with the
+     * watchId passed here (or without one).
+     */
+    private void watchCalendars(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_WATCH_CALENDARS, args, callbackContext);
+            return;
+        }
+        if (calendarListCache == null) {
+            callbackContext.error("Can't observe the calendar provider");
+            return;
+        }
+        final int watchId = args.optInt(0, -1);
+        // registered right away, so an unwatchCalendars call which comes in before the first read also ends this watch
+        synchronized (calendarWatchers) {
+            calendarWatchers.put(watchId, callbackContext);
+        }
+        final boolean queued = read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final CalendarListCache.Snapshot snapshot = calendarListCache.get();
+                    synchronized (calendarWatchers) {
+                        if (calendarWatchers.get(watchId) == callbackContext) {
+                            sendCalendars(callbackContext, snapshot);
+                        }
+                    }
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    removeWatcher(watchId, callbackContext);
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+        if (!queued) {
+            removeWatcher(watchId, callbackContext);
+        }
+    }
+
+    private void removeWatcher(int watchId, CallbackContext callbackContext) {
+        synchronized (calendarWatchers) {
+            if (calendarWatchers.get(watchId) == callbackContext) {
+                calendarWatchers.remove(watchId);
+            }
+        }
+    }
+
+    /**
+     * Ends the callback of the watchCalendars call with the passed watchId, or of all of them when no id is passed.
+     */
+    private void unwatchCalendars(JSONArray args, CallbackContext callbackContext) {
+        final int watchId = args.optInt(0, -1);
+        synchronized (calendarWatchers) {
+            final Iterator<Map.Entry<Integer, CallbackContext>> watchers = calendarWatchers.entrySet().iterator();
+            while (watchers.hasNext()) {
+                final Map.Entry<Integer, CallbackContext> watcher = watchers.next();
+                if (watchId == -1 || watcher.getKey() == watchId) {
+                    watcher.getValue().sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+                    watchers.remove();
+                }
+            }
+            if (calendarWatchers.isEmpty()) {
+                watchedCalendarsJson = null;
+            }
+        }
+        callbackContext.success();
+    }
+
+    /**
+     * Sends the calendars to the watchers after a change, unless the change didn't affect anything they're sent.
+     */
+    private void pushCalendars() {
+        synchronized (calendarWatchers) {
+            if (calendarWatchers.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            executor.read(new Runnable() {
+                @Override
+                public void run() {
+                    final CalendarListCache cache = calendarListCache;
+                    if (cache == null) {
+                        return;
+                    }
+                    try {
+                        final CalendarListCache.Snapshot snapshot = cache.get();
+                        synchronized (calendarWatchers) {
+                            if (snapshot.getJson().equals(watchedCalendarsJson)) {
+                                return;
+                            }
+                            for (CallbackContext watcher : calendarWatchers.values()) {
+                                sendCalendars(watcher, snapshot);
+                            }
+                        }
+                    } catch (JSONException e) {
+                        Log.w(LOG_TAG, "Can't send the changed calendars", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Too many pending calendar queries, not sending the changed calendars", e);
+        }
+    }
+
+    // callers hold the calendarWatchers lock
+    private void sendCalendars(CallbackContext watcher, CalendarListCache.Snapshot snapshot) {
+        final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, snapshot.getCalendars());
+        pluginResult.setKeepCallback(true);
+        watcher.sendPluginResult(pluginResult);
+        watchedCalendarsJson = snapshot.getJson();
+    }
+
+    /**
+     * Sends {subscribed: true, subscriptionId} once the events are observed, and then the coalesced changes every time
+     * they change, until unsubscribeEventChanges is called with that id (or without one). See {@link EventChangeNotifier}.
+     */
+    private void subscribeEventChanges(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_SUBSCRIBE_EVENT_CHANGES, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonOptions = args.optJSONObject(0);
+        final long debounceMillis = jsonOptions != null
+                ? jsonOptions.optLong("debounceMillis", EventChangeNotifier.DEFAULT_DEBOUNCE_MILLIS)
+                : EventChangeNotifier.DEFAULT_DEBOUNCE_MILLIS;
+        final boolean includeDiff = jsonOptions != null && jsonOptions.optBoolean("includeDiff", false);
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (eventSubscribers) {
+                        if (!eventChangeNotifier.isStarted()) {
+                            eventChangeNotifier.start(getContentResolver(), CalendarUris.events());
+                        }
+                        final int subscriptionId = nextSubscriptionId++;
+                        eventSubscribers.add(new EventSubscriber(subscriptionId, callbackContext, debounceMillis, includeDiff));
+                        updateDebounce();
+                        final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                                .put("subscribed", true)
+                                .put("subscriptionId", subscriptionId));
+                        pluginResult.setKeepCallback(true);
+                        callbackContext.sendPluginResult(pluginResult);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Ends the callback of the subscribeEventChanges call with the passed subscriptionId, or of all of them when no id
+     * is passed. Stops observing the events once nobody is subscribed anymore.
+     */
+    private void unsubscribeEventChanges(JSONArray args, CallbackContext callbackContext) {
+        final JSONObject options = args.optJSONObject(0);
+        final int subscriptionId = options != null ? options.optInt("subscriptionId", -1) : -1;
+        synchronized (eventSubscribers) {
+            final Iterator<EventSubscriber> subscribers = eventSubscribers.iterator();
+            while (subscribers.hasNext()) {
+                final EventSubscriber subscriber = subscribers.next();
+                if (subscriptionId == -1 || subscriber.id == subscriptionId) {
+                    subscriber.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+                    subscribers.remove();
+                }
+            }
+            if (eventSubscribers.isEmpty()) {
+                eventChangeNotifier.stop(getContentResolver());
+            } else {
+                updateDebounce();
+            }
+        }
+        callbackContext.success();
+    }
+
+    // the most impatient subscriber decides, callers hold the eventSubscribers lock
+    private void updateDebounce() {
+        long shortestDebounce = Long.MAX_VALUE;
+        for (EventSubscriber subscriber : eventSubscribers) {
+            shortestDebounce = Math.min(shortestDebounce, subscriber.debounceMillis);
+        }
+        eventChangeNotifier.setDebounceMillis(shortestDebounce);
+    }
+
+    private void pushEventChanges(JSONObject change) {
+        try {
+            synchronized (eventSubscribers) {
+                JSONObject range = null;
+                for (EventSubscriber subscriber : eventSubscribers) {
+                    if (!subscriber.includeDiff && range == null) {
+                        range = new JSONObject()
+                                .put("startTime", change.get("startTime"))
+                                .put("endTime", change.get("endTime"));
+                    }
+                    final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, subscriber.includeDiff ? change : range);
+                    pluginResult.setKeepCallback(true);
+                    subscriber.callbackContext.sendPluginResult(pluginResult);
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Can't send the event changes", e);
+        }
+    }
+
+    private static final class EventSubscriber {
+        private final int id;
+        private final CallbackContext callbackContext;
+        private final long debounceMillis;
+        private final boolean includeDiff;
+
+        private EventSubscriber(int id, CallbackContext callbackContext, long debounceMillis, boolean includeDiff) {
+            this.id = id;
+            this.callbackContext = callbackContext;
+            this.debounceMillis = debounceMillis;
+            this.includeDiff = includeDiff;
+        }
+    }
+
+    /**
+     * Requests a sync of the accounts the calendars belong to (all at once), and pushes the outcome of every account as
+     * soon as its sync completes: {account: {name, type}, status, done: false}, see {@link CalendarSync} for the statuses.
+     * The last result is {done: true, accounts: [{name, type, status}]}. Options: {accountTypes, timeoutMillis}.
+     */
+    private void syncCalendars(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_SYNC_CALENDARS, args, callbackContext);
+            return;
+        }
+        final JSONObject options = args.optJSONObject(0);
+        final Set<String> accountTypes = options != null ? getStringSet(options.optJSONArray("accountTypes")) : null;
+        final long timeoutMillis = options != null ? options.optLong("timeoutMillis", CalendarSync.DEFAULT_TIMEOUT_MILLIS) : CalendarSync.DEFAULT_TIMEOUT_MILLIS;
+        final String authority = CalendarUris.getAuthority();
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Set<Account> accounts = new LinkedHashSet<Account>();
+                    final Cursor cursor = getContentResolver().query(
+                            CalendarUris.calendars(),
+                            new String[]{CalendarContract.Calendars.ACCOUNT_NAME, CalendarContract.Calendars.ACCOUNT_TYPE},
+                            CalendarContract.Calendars.ACCOUNT_TYPE + " <> ?",
+                            new String[]{CalendarContract.ACCOUNT_TYPE_LOCAL},
+                            null);
+                    if (cursor != null) {
+                        try {
+                            while (cursor.moveToNext()) {
+                                final String name = cursor.getString(0);
+                                final String type = cursor.getString(1);
+                                if (name != null && type != null && (accountTypes == null || accountTypes.contains(type))) {
+                                    accounts.add(new Account(name, type));
+                                }
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                    final CalendarSync[] calendarSync = new CalendarSync[1];
+                    calendarSync[0] = new CalendarSync(executor, authority, accounts, new CalendarSync.Listener() {
+                        @Override
+                        public void onAccountSynced(Account account, String status) {
+                            try {
+                                final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                                        .put("account", toJSONObject(account))
+                                        .put("status", status)
+                                        .put("done", false));
+                                pluginResult.setKeepCallback(true);
+                                callbackContext.sendPluginResult(pluginResult);
+                            } catch (JSONException e) {
+                                Log.w(LOG_TAG, "Can't send the sync status", e);
+                            }
+                        }
+
+                        @Override
+                        public void onFinished(Map<Account, String> statuses) {
+                            synchronized (calendarSyncs) {
+                                calendarSyncs.remove(calendarSync[0]);
+                            }
+                            try {
+                                final JSONArray result = new JSONArray();
+                                for (Map.Entry<Account, String> entry : statuses.entrySet()) {
+                                    result.put(toJSONObject(entry.getKey()).put("status", entry.getValue()));
+                                }
+                                callbackContext.success(new JSONObject()
+                                        .put("done", true)
+                                        .put("accounts", result));
+                            } catch (JSONException e) {
+                                callbackContext.error(e.getMessage());
+                            }
+                        }
+                    });
+                    synchronized (calendarSyncs) {
+                        calendarSyncs.add(calendarSync[0]);
+                    }
+                    calendarSync[0].start(timeoutMillis);
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static JSONObject toJSONObject(Account account) throws JSONException {
+        return new JSONObject()
+                .put("name", account.name)
+                .put("type", account.type);
+    }
+
     private ContentResolver getContentResolver() {
         return Calendar.this.cordova.getActivity().getContentResolver();
     }
 
-    private void createCalendar(JSONArray args) {
+    private void createCalendar(JSONArray args, final CallbackContext callbackContext) {
         if (args.length() == 0) {
             System.err.println("Exception: No Arguments passed");
             return;
         }
 
         if (!calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR, Manifest.permission.READ_CALENDAR)) {
-            requestReadWritePermission(PERMISSION_REQCODE_CREATE_CALENDAR);
+            requestReadWritePermission(ACTION_CREATE_CALENDAR, args, callbackContext);
             return;
         }
 
         try {
             final JSONObject jsonFilter = args.getJSONObject(0);
-            final String calendarColor = getPossibleNullString("calendarColor", jsonFilter);
-            final String calendarName = getPossibleNullString("calendarName", jsonFilter);
+            final String calendarColor = EventOperations.getPossibleNullString("calendarColor", jsonFilter);
+            final String calendarName = EventOperations.getPossibleNullString("calendarName", jsonFilter);
             if (calendarName == null) {
-                callback.error("calendarName is mandatory");
+                callbackContext.error("calendarName is mandatory");
                 return;
             }
 
-            cordova.getThreadPool().execute(new Runnable() {
+            executor.write(new Runnable() {
                 @Override
                 public void run() {
                     String createdId = null; // getCalendarAccessor().createCalendar(calendarName, calendarColor);
-                    callback.sendPluginResult(new PluginResult(PluginResult.Status.OK, createdId));
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, createdId));
                 }
             });
         } catch (JSONException e) {
             System.err.println("Exception: " + e.getMessage());
-            callback.error(e.getMessage());
+            callbackContext.error(e.getMessage());
         }
     }
 
-    private void deleteCalendar(JSONArray args) {
+    private void deleteCalendar(JSONArray args, final CallbackContext callbackContext) {
         if (args.length() == 0) {
             System.err.println("Exception: No Arguments passed");
             return;
         }
 
         if (!calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR, Manifest.permission.READ_CALENDAR)) {
-            requestReadWritePermission(PERMISSION_REQCODE_DELETE_CALENDAR);
+            requestReadWritePermission(ACTION_DELETE_CALENDAR, args, callbackContext);
             return;
         }
 
         try {
             final JSONObject jsonFilter = args.getJSONObject(0);
-            final String calendarName = getPossibleNullString("calendarName", jsonFilter);
+            final String calendarName = EventOperations.getPossibleNullString("calendarName", jsonFilter);
             if (calendarName == null) {
-                callback.error("calendarName is mandatory");
+                callbackContext.error("calendarName is mandatory");
                 return;
             }
 
-            cordova.getThreadPool().execute(new Runnable() {
+            executor.write(new Runnable() {
                 @Override
                 public void run() {
                     try {
                         // getCalendarAccessor().deleteCalendar(calendarName);
-                        callback.sendPluginResult(new PluginResult(PluginResult.Status.OK, "yes"));
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, "yes"));
                     } catch (Exception e) {
                         System.err.println("Exception: " + e.getMessage());
-                        callback.error(e.getMessage());
+                        callbackContext.error(e.getMessage());
                     }
                 }
             });
         } catch (JSONException e) {
             System.err.println("Exception: " + e.getMessage());
-            callback.error(e.getMessage());
+            callbackContext.error(e.getMessage());
         }
     }
 
-    private void deleteEventById(final JSONArray args) {
+    private void deleteEventById(final JSONArray args, final CallbackContext callbackContext) {
 
         // note that if the dev didn't call requestWritePermission before calling this method and calendarPermissionGranted returns false,
         // the app will ask permission and this method needs to be invoked again (done for backward compat).
         if (!calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR)) {
-            requestWritePermission(PERMISSION_REQCODE_DELETE_EVENT_BY_ID);
+            requestWritePermission(ACTION_DELETE_EVENT_BY_ID, args, callbackContext);
             return;
         }
 
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.write(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -336,178 +1035,1458 @@ public class Calendar extends CordovaPlugin {
                         throw new IllegalArgumentException("Event id not specified.");
 
                     ContentResolver cr = getContentResolver();
-                    Uri deleteUri = ContentUris.withAppendedId(Events.CONTENT_URI, id);
+                    Uri deleteUri = ContentUris.withAppendedId(CalendarUris.events(), id);
                     int rows = cr.delete(deleteUri, null, null);
 
                     boolean deleteResult = rows > 0;
 
-                    callback.sendPluginResult(new PluginResult(PluginResult.Status.OK, deleteResult));
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, deleteResult));
                 } catch (Exception e) {
                     System.err.println("Exception: " + e.getMessage());
-                    callback.error(e.getMessage());
+                    callbackContext.error(e.getMessage());
                 }
             }
         });
     }
 
-    private void createEvent(JSONArray args) {
+    private void createEvent(JSONArray args, final CallbackContext callbackContext) {
         // note that if the dev didn't call requestWritePermission before calling this method and calendarPermissionGranted returns false,
         // the app will ask permission and this method needs to be invoked again (done for backward compat).
         if (!calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR, Manifest.permission.READ_CALENDAR)) {
-            requestReadWritePermission(PERMISSION_REQCODE_CREATE_EVENT);
+            requestReadWritePermission(ACTION_CREATE_EVENT_WITH_OPTIONS, args, callbackContext);
             return;
         }
 
         try {
             final JSONObject argObject = args.getJSONObject(0);
-            final JSONObject argOptionsObject = argObject.getJSONObject("options");
 
-            cordova.getThreadPool().execute(new Runnable() {
+            executor.write(new Runnable() {
                 @Override
                 public void run() {
-//                    try {
-                    final String createdEventID = null; // getCalendarAccessor().createEvent(
-//                                null,
-//                                getPossibleNullString(Events.TITLE, argObject),
-//                                argObject.getLong("startTime"),
-//                                argObject.getLong("endTime"),
-//                                getPossibleNullString("notes", argObject),
-//                                getPossibleNullString("location", argObject),
-//                                argOptionsObject.optLong("firstReminderMinutes", -1),
-//                                argOptionsObject.optLong("secondReminderMinutes", -1),
-//                                getPossibleNullString("recurrence", argOptionsObject),
-//                                argOptionsObject.optInt("recurrenceInterval", -1),
-//                                getPossibleNullString("recurrenceWeekstart", argOptionsObject),
-//                                getPossibleNullString("recurrenceByDay", argOptionsObject),
-//                                getPossibleNullString("recurrenceByMonthDay", argOptionsObject),
-//                                argOptionsObject.optLong("recurrenceEndTime", -1),
-//                                argOptionsObject.optLong("recurrenceCount", -1),
-//                                getPossibleNullString(Events.ALL_DAY, argOptionsObject),
-//                                argOptionsObject.optInt("calendarId", 1),
-//                                getPossibleNullString("url", argOptionsObject));
-                    if (createdEventID != null) {
-                        callback.success(createdEventID);
-                    } else {
-                        callback.error("Fail to create an event");
+                    try {
+                        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+                        resolveCalendarName(argObject);
+                        int eventIndex = EventOperations.addInsertEvent(ops, argObject);
+                        ContentProviderResult[] results = getContentResolver().applyBatch(CalendarUris.getAuthority(), ops);
+                        final String createdEventID = results[eventIndex].uri != null ? String.valueOf(ContentUris.parseId(results[eventIndex].uri)) : null;
+                        if (createdEventID != null) {
+                            callbackContext.success(createdEventID);
+                        } else {
+                            callbackContext.error("Fail to create an event");
+                        }
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Error creating event. Invoking error callback.", e);
+                        callbackContext.error(e.getMessage());
                     }
-//                    } catch (JSONException e) {
-//                        e.printStackTrace();
-//                    }
                 }
             });
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error creating event. Invoking error callback.", e);
-            callback.error(e.getMessage());
+            callbackContext.error(e.getMessage());
         }
     }
 
-    private static String getPossibleNullString(String param, JSONObject from) {
-        return from.isNull(param) || "null".equals(from.optString(param)) ? null : from.optString(param);
-    }
-
-    private void listEventsInRange(final JSONArray args) {
-        // note that if the dev didn't call requestReadPermission before calling this method and calendarPermissionGranted returns false,
-        // the app will ask permission and this method needs to be invoked again (done for backward compat).
-        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
-            requestReadPermission(PERMISSION_REQCODE_LIST_EVENTS_IN_RANGE);
+    /**
+     * Creates all passed events (with their reminders and attendees) in one provider transaction.
+     * The result holds an entry per event, in the order they were passed: {id: ".."} or {error: ".."}.
+     */
+    private void createEventsBatch(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR, Manifest.permission.READ_CALENDAR)) {
+            requestReadWritePermission(ACTION_CREATE_EVENTS_BATCH, args, callbackContext);
             return;
         }
+
         try {
-            final JSONObject jsonFilter = args.getJSONObject(0);
+            final JSONArray events = args.getJSONObject(0).getJSONArray("events");
 
-            cordova.getThreadPool().execute(new Runnable() {
+            executor.write(new Runnable() {
                 @Override
                 public void run() {
-                    ContentResolver contentResolver = getContentResolver();
-
-                    JSONArray result = new JSONArray();
-                    long input_start_date = jsonFilter.optLong("startTime");
-                    long input_end_date = jsonFilter.optLong("endTime");
-                    Uri l_eventUri = Uri.parse(CalendarContract.Instances.CONTENT_URI + "/" + String.valueOf(input_start_date) + "/" + String.valueOf(input_end_date));
-
-                    //prepare start date
-                    java.util.Calendar calendar_start = java.util.Calendar.getInstance();
-                    Date date_start = new Date(input_start_date);
-                    calendar_start.setTime(date_start);
-
-                    //prepare end date
-                    java.util.Calendar calendar_end = java.util.Calendar.getInstance();
-                    Date date_end = new Date(input_end_date);
-                    calendar_end.setTime(date_end);
-
-                    //projection of DB columns
-                    String[] l_projection = new String[]{Events.CALENDAR_ID, Events.DELETED, Events.TITLE, "begin", "end", Events.EVENT_LOCATION, Events.ALL_DAY, "_id", Events.RRULE, Events.RDATE, Events.EXDATE, "event_id", Events.EVENT_COLOR, Events.DISPLAY_COLOR};
-
-                    //actual query
-                    Cursor cursor = contentResolver.query(
-                            l_eventUri,
-                            l_projection,
-                            "(deleted = 0 AND" +
-                                    "   (" +
-                                    // all day events are stored in UTC, others in the user's timezone
-                                    "     (eventTimezone  = 'UTC' AND begin >=" + (calendar_start.getTimeInMillis() + TimeZone.getDefault().getOffset(calendar_start.getTimeInMillis())) + " AND end <=" + (calendar_end.getTimeInMillis() + TimeZone.getDefault().getOffset(calendar_end.getTimeInMillis())) + ")" +
-                                    "     OR " +
-                                    "     (eventTimezone <> 'UTC' AND begin >=" + calendar_start.getTimeInMillis() + " AND end <=" + calendar_end.getTimeInMillis() + ")" +
-                                    "   )" +
-                                    ")",
-                            null,
-                            "begin ASC");
-
-                    int i = 0;
-                    if (cursor != null) {
-                        while (cursor.moveToNext()) {
+                    try {
+                        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+                        JSONArray result = new JSONArray();
+                        // the index of the insert operation of every event, or -1 if it couldn't be added
+                        int[] eventIndices = new int[events.length()];
+                        for (int i = 0; i < events.length(); i++) {
                             try {
-                                result.put(
-                                        i++,
-                                        new JSONObject()
-                                                .put(Events.CALENDAR_ID, cursor.getString(cursor.getColumnIndex(Events.CALENDAR_ID)))
-                                                .put("id", cursor.getString(cursor.getColumnIndex("_id")))
-                                                .put("event_id", cursor.getString(cursor.getColumnIndex("event_id")))
-                                                .put(Events.DELETED, cursor.getString(cursor.getColumnIndex(Events.DELETED)))
-                                                .put(Events.RRULE, cursor.getString(cursor.getColumnIndex(Events.RRULE)))
-                                                .put(Events.RDATE, cursor.getString(cursor.getColumnIndex(Events.RDATE)))
-                                                .put(Events.EXDATE, cursor.getString(cursor.getColumnIndex(Events.EXDATE)))
-                                                .put(Events.TITLE, cursor.getString(cursor.getColumnIndex(Events.TITLE)))
-                                                .put(Events.DTSTART, cursor.getLong(cursor.getColumnIndex("begin")))
-                                                .put(Events.DTEND, cursor.getLong(cursor.getColumnIndex("end")))
-                                                .put(Events.EVENT_LOCATION, cursor.getString(cursor.getColumnIndex(Events.EVENT_LOCATION)) != null ? cursor.getString(cursor.getColumnIndex(Events.EVENT_LOCATION)) : "")
-                                                .put(Events.EVENT_COLOR, cursor.getLong(cursor.getColumnIndex(Events.EVENT_COLOR)))
-                                                .put(Events.DISPLAY_COLOR, CalendarUtils.getDisplayColorHex(cursor.getInt(cursor.getColumnIndex(Events.DISPLAY_COLOR))))
-                                                .put(Events.ALL_DAY, cursor.getInt(cursor.getColumnIndex(Events.ALL_DAY)))
-                                );
-                            } catch (JSONException e) {
-                                e.printStackTrace();
+                                resolveCalendarName(events.getJSONObject(i));
+                                eventIndices[i] = EventOperations.addInsertEvent(ops, events.getJSONObject(i));
+                            } catch (Exception e) {
+                                eventIndices[i] = -1;
+                                result.put(i, new JSONObject().put("error", e.getMessage()));
                             }
                         }
-                        cursor.close();
-                    }
 
-                    callback.sendPluginResult(new PluginResult(PluginResult.Status.OK, result));
+                        ContentProviderResult[] results = ops.isEmpty()
+                                ? new ContentProviderResult[0]
+                                : getContentResolver().applyBatch(CalendarUris.getAuthority(), ops);
+                        for (int i = 0; i < eventIndices.length; i++) {
+                            if (eventIndices[i] != -1) {
+                                Uri uri = results[eventIndices[i]].uri;
+                                result.put(i, uri != null
+                                        ? new JSONObject().put("id", String.valueOf(ContentUris.parseId(uri)))
+                                        : new JSONObject().put("error", "Fail to create an event"));
+                            }
+                        }
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, result));
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Error creating events. Invoking error callback.", e);
+                        callbackContext.error(e.getMessage());
+                    }
                 }
             });
         } catch (JSONException e) {
             System.err.println("Exception: " + e.getMessage());
-            callback.error(e.getMessage());
+            callbackContext.error(e.getMessage());
         }
     }
 
-    public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == RESULT_CODE_CREATE) {
-            if (resultCode == Activity.RESULT_OK || resultCode == Activity.RESULT_CANCELED) {
-                // resultCode may be 0 (RESULT_CANCELED) even when it was created, so passing nothing is the clearest option here
-                Log.d(LOG_TAG, "onActivityResult resultcode: " + resultCode);
-                callback.success();
-            } else {
-                // odd case
-                Log.d(LOG_TAG, "onActivityResult weird resultcode: " + resultCode);
-                callback.success();
-            }
-        } else if (requestCode == RESULT_CODE_OPENCAL) {
-            Log.d(LOG_TAG, "onActivityResult requestCode: " + RESULT_CODE_OPENCAL);
-            callback.success();
-        } else {
-            Log.d(LOG_TAG, "onActivityResult error, resultcode: " + resultCode);
-            callback.error("Unable to add event (" + resultCode + ").");
+    /**
+     * Deletes all passed event ids in one provider transaction.
+     * The result holds an entry per id, in the order they were passed: {id: "..", deleted: true} or {id: "..", error: ".."}.
+     */
+    private void deleteEventsByIds(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR)) {
+            requestWritePermission(ACTION_DELETE_EVENTS_BY_IDS, args, callbackContext);
+            return;
+        }
+
+        try {
+            final JSONArray ids = args.getJSONObject(0).getJSONArray("ids");
+
+            executor.write(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+                        JSONArray result = new JSONArray();
+                        // the index of the delete operation of every id, or -1 if it isn't a valid id
+                        int[] deleteIndices = new int[ids.length()];
+                        for (int i = 0; i < ids.length(); i++) {
+                            try {
+                                final long id = Long.parseLong(ids.getString(i));
+                                deleteIndices[i] = ops.size();
+                                EventOperations.addDeleteEvent(ops, id);
+                            } catch (NumberFormatException e) {
+                                deleteIndices[i] = -1;
+                                result.put(i, new JSONObject().put("id", ids.optString(i)).put("error", "Invalid id"));
+                            }
+                        }
+                        ContentProviderResult[] results = ops.isEmpty()
+                                ? new ContentProviderResult[0]
+                                : getContentResolver().applyBatch(CalendarUris.getAuthority(), ops);
+
+                        for (int i = 0; i < deleteIndices.length; i++) {
+                            if (deleteIndices[i] != -1) {
+                                final Integer count = results[deleteIndices[i]].count;
+                                result.put(i, new JSONObject()
+                                        .put("id", ids.getString(i))
+                                        .put("deleted", count != null && count > 0));
+                            }
+                        }
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, result));
+                    } catch (Exception e) {
+                        System.err.println("Exception: " + e.getMessage());
+                        callbackContext.error(e.getMessage());
+                    }
+                }
+            });
+        } catch (JSONException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Modifies all passed events in one provider transaction, keeping their ids. Every entry is {id, ..} with only the
+     * fields to change (see EventOperations.addUpdateEvent): the events and their reminders are read first (one query
+     * each per MAX_IDS_PER_QUERY ids), so only the columns and reminders which actually differ are written.
+     * The result holds an entry per event, in the order they were passed: {id: "..", updated: true} (false when nothing
+     * differed) or {id: "..", error: ".."}. An id can only be passed once.
+     */
+    private void modifyEvents(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.WRITE_CALENDAR, Manifest.permission.READ_CALENDAR)) {
+            requestReadWritePermission(ACTION_MODIFY_EVENTS, args, callbackContext);
+            return;
+        }
+
+        try {
+            final JSONArray changes = args.getJSONObject(0).getJSONArray("events");
+            final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+
+            executor.write(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sample.started();
+                        final Set<String> ids = new LinkedHashSet<String>();
+                        boolean withReminders = false;
+                        for (int i = 0; i < changes.length(); i++) {
+                            final JSONObject change = changes.getJSONObject(i);
+                            final String id = EventOperations.getPossibleNullString("id", change);
+                            if (id != null) {
+                                ids.add(id);
+                            }
+                            withReminders |= change.optJSONArray("reminders") != null;
+                        }
+                        final List<String> idList = new ArrayList<String>(ids);
+                        final LongSparseArray<JSONObject> events = new LongSparseArray<JSONObject>(idList.size());
+                        final LongSparseArray<JSONArray> reminders = new LongSparseArray<JSONArray>();
+                        for (int from = 0; from < idList.size(); from += MAX_IDS_PER_QUERY) {
+                            final List<String> chunk = idList.subList(from, Math.min(from + MAX_IDS_PER_QUERY, idList.size()));
+                            readEvents(CalendarUris.events(), Events._ID, EventOperations.CURRENT_EVENT_PROJECTION, chunk, events, null, sample);
+                            if (withReminders) {
+                                readChildren(CalendarUris.reminders(), CalendarContract.Reminders.EVENT_ID,
+                                        EventOperations.CURRENT_REMINDER_PROJECTION, chunk, reminders, sample);
+                            }
+                        }
+
+                        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+                        JSONArray result = new JSONArray();
+                        final Set<Long> modified = new HashSet<Long>();
+                        for (int i = 0; i < changes.length(); i++) {
+                            final JSONObject change = changes.getJSONObject(i);
+                            final String id = EventOperations.getPossibleNullString("id", change);
+                            long eventId = -1;
+                            JSONObject current = null;
+                            try {
+                                eventId = Long.parseLong(id);
+                                current = events.get(eventId);
+                            } catch (NumberFormatException ignored) {
+                                // can't be the id of an event
+                            }
+                            final JSONObject entry = new JSONObject().put("id", id);
+                            // events which were deleted but not synced yet are still there, as tombstones
+                            if (current == null || current.optInt(Events.DELETED) == 1) {
+                                entry.put("error", "Event not found");
+                            } else if (!modified.add(eventId)) {
+                                // both entries would be compared with the same state, pass all changes of an event at once
+                                entry.put("error", "Duplicate id");
+                            } else {
+                                try {
+                                    entry.put("updated", EventOperations.addUpdateEvent(ops, eventId, current, reminders.get(eventId), change) > 0);
+                                } catch (IllegalArgumentException e) {
+                                    entry.put("error", e.getMessage());
+                                }
+                            }
+                            result.put(entry);
+                        }
+
+                        if (!ops.isEmpty()) {
+                            getContentResolver().applyBatch(CalendarUris.getAuthority(), ops);
+                        }
+                        sample.addRows(result.length());
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, result));
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Error modifying events. Invoking error callback.", e);
+                        callbackContext.error(e.getMessage());
+                    }
+                }
+            });
+        } catch (JSONException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    private void listEventsInRange(final JSONArray args, final CallbackContext callbackContext) {
+        // note that if the dev didn't call requestReadPermission before calling this method and calendarPermissionGranted returns false,
+        // the app will ask permission and this method needs to be invoked again (done for backward compat).
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_LIST_EVENTS_IN_RANGE, args, callbackContext);
+            return;
+        }
+        try {
+            final JSONObject jsonFilter = args.getJSONObject(0);
+            final JSONObject options = jsonFilter.optJSONObject("options");
+            // a pageSize > 0 switches to streaming mode: events are sent in pages as the cursor advances
+            final int pageSize = options != null ? options.optInt("pageSize", 0) : 0;
+            final int maxPages = options != null ? options.optInt("maxPages", 0) : 0;
+            final String cursorToken = options != null ? EventOperations.getPossibleNullString("cursorToken", options) : null;
+            final int firstPosition = cursorToken != null ? Integer.parseInt(cursorToken) : 0;
+            // the columnar format sends the column names once instead of repeating them for every event
+            final boolean columnar = options != null && FORMAT_COLUMNAR.equals(options.optString("format"));
+            final boolean useCache = options == null || options.optBoolean("useCache", true);
+            final String queryTag = options != null ? EventOperations.getPossibleNullString("queryTag", options) : null;
+            // by default only instances which fall entirely within the range match, "overlap" also matches those crossing its bounds
+            final boolean overlap = options != null && MATCH_OVERLAP.equals(options.optString("match"));
+            final Set<String> calendarIds = options != null ? getStringSet(options.optJSONArray("calendarIds")) : null;
+            // only read the columns of these fields (like id, dtstart, dtend and displayColor for a month grid)
+            final Set<String> fields = options != null ? getStringSet(options.optJSONArray("fields")) : null;
+            final Projection projection = fields != null ? INSTANCE_PROJECTION.select(fields) : INSTANCE_PROJECTION;
+            final int limit = options != null ? options.optInt("limit", 0) : 0;
+            // expand recurring events in memory instead of through the Instances table of the provider
+            final boolean expandRecurrences = options != null && options.optBoolean("expandRecurrences", false);
+            // add the reminders and attendees of the events, read with one query each per page instead of one per event
+            final boolean includeReminders = options != null && options.optBoolean("includeReminders", false);
+            final boolean includeAttendees = options != null && options.optBoolean("includeAttendees", false);
+            final boolean includeDetails = includeReminders || includeAttendees;
+            final List<String> keys = new ArrayList<String>(Arrays.asList(projection.getKeys()));
+            final List<String> queryColumns = new ArrayList<String>(Arrays.asList(projection.getColumns()));
+            if (includeReminders) {
+                keys.add(FIELD_REMINDERS);
+            }
+            if (includeAttendees) {
+                keys.add(FIELD_ATTENDEES);
+            }
+            if (includeDetails && !queryColumns.contains(CalendarContract.Instances.EVENT_ID)) {
+                queryColumns.add(CalendarContract.Instances.EVENT_ID);
+            }
+            final String[] columnarKeys = keys.toArray(new String[keys.size()]);
+            final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+
+            // identical listings which are still queued share one query, a newer query with the same queryTag cancels this one
+            executor.query(jsonFilter.toString(), queryTag, callbackContext, new CalendarExecutor.Query() {
+                @Override
+                protected void execute() {
+                    try {
+                        long phaseStart = sample.started();
+                        ContentResolver contentResolver = getContentResolver();
+
+                        JSONArray result = new JSONArray();
+                        ColumnarResult columnarResult = columnar ? new ColumnarResult(columnarKeys) : null;
+                        long input_start_date = jsonFilter.optLong("startTime");
+                        long input_end_date = jsonFilter.optLong("endTime");
+                        Uri l_eventUri = CalendarUris.instances(input_start_date, input_end_date);
+
+                        //actual query, ranges which aren't too wide are served from (and added to) the instance cache.
+                        //the cache only knows which instances start in a bucket, so overlapping matches always go to the provider
+                        final Cursor cursor;
+                        if (expandRecurrences) {
+                            cursor = new ExpandedInstances(CACHED_INSTANCE_COLUMNS).query(contentResolver, input_start_date, input_end_date, overlap, calendarIds);
+                        } else if (useCache && !overlap && instanceCache != null && input_end_date - input_start_date <= InstanceCache.MAX_SPAN_MILLIS) {
+                            cursor = instanceCache.query(input_start_date, input_end_date, calendarIds, instanceLoader);
+                        } else {
+                            final ArrayList<String> selectionArgs = new ArrayList<String>();
+                            cursor = contentResolver.query(
+                                    l_eventUri,
+                                    queryColumns.toArray(new String[queryColumns.size()]),
+                                    getInstancesSelection(input_start_date, input_end_date, overlap, calendarIds, selectionArgs),
+                                    selectionArgs.toArray(new String[selectionArgs.size()]),
+                                    "begin ASC");
+                        }
+
+                        phaseStart = sample.query(phaseStart);
+
+                        int i = 0;
+                        int position = firstPosition;
+                        int pages = 0;
+                        // the event id of every event of the page, to read their reminders and attendees by
+                        long[] eventIds = includeDetails ? new long[pageSize > 0 ? pageSize : 64] : null;
+                        if (cursor != null) {
+                            // resolve the column indices once instead of for every row
+                            final RowMapper rowMapper = projection.bind(cursor);
+                            final int eventIdIndex = includeDetails ? cursor.getColumnIndex(CalendarContract.Instances.EVENT_ID) : -1;
+
+                            if (firstPosition > 0) {
+                                cursor.moveToPosition(firstPosition - 1);
+                            }
+                            int returned = 0;
+                            while ((limit <= 0 || returned < limit) && cursor.moveToNext()) {
+                                if (isCancelled()) {
+                                    cursor.close();
+                                    sample.iteration(phaseStart);
+                                    return;
+                                }
+                                if (pageSize > 0 && i == pageSize) {
+                                    // hand the page over to JS right away so it can paint while we continue reading,
+                                    // if maxPages is reached this is the last message and JS can resume with its cursorToken
+                                    boolean lastPage = maxPages > 0 && ++pages == maxPages;
+                                    sample.addRows(i);
+                                    phaseStart = sample.iteration(phaseStart);
+                                    if (includeDetails) {
+                                        addEventDetails(columnar ? columnarResult : result, eventIds, i, includeReminders, includeAttendees, sample);
+                                    }
+                                    sendEventsPage(this, sample, columnar ? columnarResult.toJSONObject() : result, String.valueOf(position), false, !lastPage);
+                                    phaseStart = System.nanoTime();
+                                    if (lastPage) {
+                                        cursor.close();
+                                        return;
+                                    }
+                                    result = new JSONArray();
+                                    columnarResult = columnar ? new ColumnarResult(columnarKeys) : null;
+                                    i = 0;
+                                }
+                                position++;
+
+                                if (includeDetails) {
+                                    if (i == eventIds.length) {
+                                        eventIds = Arrays.copyOf(eventIds, i * 2);
+                                    }
+                                    eventIds[i] = cursor.getLong(eventIdIndex);
+                                }
+                                if (columnar && includeDetails) {
+                                    // the details are set once the page is complete
+                                    columnarResult.addRow(Arrays.copyOf(rowMapper.toRow(), columnarKeys.length));
+                                } else if (columnar) {
+                                    rowMapper.addTo(columnarResult);
+                                } else {
+                                    result.put(rowMapper.toJSONObject());
+                                }
+                                i++;
+                                returned++;
+                            }
+                            cursor.close();
+                        }
+                        sample.addRows(i);
+                        sample.iteration(phaseStart);
+                        if (includeDetails) {
+                            addEventDetails(columnar ? columnarResult : result, eventIds, i, includeReminders, includeAttendees, sample);
+                        }
+
+                        if (pageSize > 0) {
+                            sendEventsPage(this, sample, columnar ? columnarResult.toJSONObject() : result, null, true, false);
+                        } else {
+                            final long serializationStart = System.nanoTime();
+                            final PluginResult pluginResult = columnar
+                                    ? new PluginResult(PluginResult.Status.OK, columnarResult.toJSONObject())
+                                    : new PluginResult(PluginResult.Status.OK, result);
+                            sample.serialization(serializationStart);
+                            sendPluginResult(pluginResult);
+                        }
+                    } catch (JSONException e) {
+                        System.err.println("JSONException: " + e.getMessage());
+                        error(e.getMessage());
+                    }
+                }
+            });
+        } catch (JSONException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        } catch (RejectedExecutionException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error("Too many pending calendar queries, try again later");
+        } catch (NumberFormatException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error("Invalid cursorToken: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Lists the events of several windows (like today, this week and a few calendars) at once: one provider query over
+     * the span of all windows, of which every row is added to the windows it falls in, in a single pass over the
+     * cursor. The result has the events of every window by its key (or index), {key: [events], ..}, an event which
+     * is in several windows is converted only once.
+     */
+    private void listEventsInRanges(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_LIST_EVENTS_IN_RANGES, args, callbackContext);
+            return;
+        }
+        try {
+            final JSONObject jsonFilter = args.getJSONObject(0);
+            final JSONArray jsonWindows = jsonFilter.optJSONArray("windows");
+            if (jsonWindows == null || jsonWindows.length() == 0) {
+                callbackContext.error("windows is required");
+                return;
+            }
+            final JSONObject options = jsonFilter.optJSONObject("options");
+            final boolean overlap = options != null && MATCH_OVERLAP.equals(options.optString("match"));
+            final Set<String> fields = options != null ? getStringSet(options.optJSONArray("fields")) : null;
+            final Projection projection = fields != null ? INSTANCE_PROJECTION.select(fields) : INSTANCE_PROJECTION;
+            final String queryTag = options != null ? EventOperations.getPossibleNullString("queryTag", options) : null;
+
+            final RangeWindow[] windows = new RangeWindow[jsonWindows.length()];
+            long spanStart = Long.MAX_VALUE;
+            long spanEnd = Long.MIN_VALUE;
+            // the union of the calendars of the windows, null as soon as one of them lists all calendars
+            Set<String> spanCalendarIds = new LinkedHashSet<String>();
+            for (int w = 0; w < windows.length; w++) {
+                final JSONObject jsonWindow = jsonWindows.getJSONObject(w);
+                final String key = EventOperations.getPossibleNullString("key", jsonWindow);
+                final String match = EventOperations.getPossibleNullString("match", jsonWindow);
+                windows[w] = new RangeWindow(
+                        key != null ? key : String.valueOf(w),
+                        jsonWindow.optLong("startTime"),
+                        jsonWindow.optLong("endTime"),
+                        match != null ? MATCH_OVERLAP.equals(match) : overlap,
+                        getStringSet(jsonWindow.optJSONArray("calendarIds")),
+                        jsonWindow.optInt("limit", 0));
+                spanStart = Math.min(spanStart, windows[w].start);
+                spanEnd = Math.max(spanEnd, windows[w].end);
+                if (windows[w].calendarIds == null) {
+                    spanCalendarIds = null;
+                } else if (spanCalendarIds != null) {
+                    spanCalendarIds.addAll(windows[w].calendarIds);
+                }
+            }
+            final long queryStart = spanStart;
+            final long queryEnd = spanEnd;
+            final Set<String> queryCalendarIds = spanCalendarIds;
+            // the columns the rows are assigned to the windows by, next to the requested ones
+            final List<String> columns = new ArrayList<String>(Arrays.asList(projection.getColumns()));
+            for (String column : new String[]{"begin", "end", Events.CALENDAR_ID, Events.EVENT_TIMEZONE}) {
+                if (!columns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+            final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+
+            executor.query(jsonFilter.toString(), queryTag, callbackContext, new CalendarExecutor.Query() {
+                @Override
+                protected void execute() {
+                    try {
+                        long phaseStart = sample.started();
+                        // every instance overlapping the span, whether it's within a window is decided per window.
+                        // A millisecond longer, so an instance without a length right at its end is there for those
+                        final ArrayList<String> selectionArgs = new ArrayList<String>();
+                        final Cursor cursor = getContentResolver().query(
+                                CalendarUris.instances(queryStart, queryEnd),
+                                columns.toArray(new String[columns.size()]),
+                                getInstancesSelection(queryStart, queryEnd + 1, true, queryCalendarIds, selectionArgs),
+                                selectionArgs.toArray(new String[selectionArgs.size()]),
+                                "begin ASC");
+                        phaseStart = sample.query(phaseStart);
+
+                        int rows = 0;
+                        if (cursor != null) {
+                            try {
+                                final RowMapper rowMapper = projection.bind(cursor);
+                                final int beginIndex = cursor.getColumnIndex("begin");
+                                final int endIndex = cursor.getColumnIndex("end");
+                                final int calendarIdIndex = cursor.getColumnIndex(Events.CALENDAR_ID);
+                                final int timezoneIndex = cursor.getColumnIndex(Events.EVENT_TIMEZONE);
+                                while (cursor.moveToNext()) {
+                                    if (isCancelled()) {
+                                        sample.iteration(phaseStart);
+                                        return;
+                                    }
+                                    final long begin = cursor.getLong(beginIndex);
+                                    final long end = cursor.getLong(endIndex);
+                                    final String calendarId = cursor.getString(calendarIdIndex);
+                                    final boolean utc = "UTC".equals(cursor.getString(timezoneIndex));
+                                    JSONObject event = null;
+                                    for (RangeWindow window : windows) {
+                                        if (window.accepts(begin, end, utc, calendarId)) {
+                                            if (event == null) {
+                                                event = rowMapper.toJSONObject();
+                                            }
+                                            window.events.put(event);
+                                        }
+                                    }
+                                    rows++;
+                                }
+                            } finally {
+                                cursor.close();
+                            }
+                        }
+                        sample.addRows(rows);
+                        phaseStart = sample.iteration(phaseStart);
+
+                        final JSONObject result = new JSONObject();
+                        for (RangeWindow window : windows) {
+                            result.put(window.key, window.events);
+                        }
+                        final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+                        sample.serialization(phaseStart);
+                        sendPluginResult(pluginResult);
+                    } catch (JSONException e) {
+                        System.err.println("JSONException: " + e.getMessage());
+                        error(e.getMessage());
+                    }
+                }
+            });
+        } catch (JSONException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        } catch (RejectedExecutionException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error("Too many pending calendar queries, try again later");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Exception: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    /**
+     * A window of listEventsInRanges, with the events found for it so far.
+     */
+    private static final class RangeWindow {
+        private final String key;
+        private final long start;
+        private final long end;
+        // all day events are stored in UTC, others in the user's timezone
+        private final long utcStart;
+        private final long utcEnd;
+        private final boolean overlap;
+        private final Set<String> calendarIds;
+        private final int limit;
+        private final JSONArray events = new JSONArray();
+
+        private RangeWindow(String key, long start, long end, boolean overlap, Set<String> calendarIds, int limit) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+            this.utcStart = start + TimeZone.getDefault().getOffset(start);
+            this.utcEnd = end + TimeZone.getDefault().getOffset(end);
+            this.overlap = overlap;
+            this.calendarIds = calendarIds;
+            this.limit = limit;
+        }
+
+        // the same rules as the selection of listEventsInRange
+        private boolean accepts(long begin, long instanceEnd, boolean utc, String calendarId) {
+            if (limit > 0 && events.length() == limit) {
+                return false;
+            }
+            if (calendarIds != null && !calendarIds.contains(calendarId)) {
+                return false;
+            }
+            final long from = utc ? utcStart : start;
+            final long to = utc ? utcEnd : end;
+            return overlap ? ExpandedInstances.overlaps(begin, instanceEnd, from, to) : begin >= from && instanceEnd <= to;
+        }
+    }
+
+    /**
+     * Like listEventsInRange, but first serves the instances from the snapshot on disk (see {@link InstanceSnapshot}),
+     * so an agenda can be drawn right after a cold start. The snapshot is read right here instead of on the executor,
+     * it's mapped and small, so that takes a few milliseconds while the executor may be busy with other queries.
+     * The provider is read in the background after that, it becomes the next snapshot and the callback is called
+     * once more: {cached: false, changed, events}, with events null when they didn't change.
+     */
+    private void getCachedEventsInRange(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_GET_CACHED_EVENTS_IN_RANGE, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        final long start = jsonFilter != null ? jsonFilter.optLong("startTime") : 0;
+        final long end = jsonFilter != null ? jsonFilter.optLong("endTime") : 0;
+        if (end <= start) {
+            callbackContext.error("endTime must be after startTime");
+            return;
+        }
+        final JSONObject options = jsonFilter.optJSONObject("options");
+        final boolean overlap = options != null && MATCH_OVERLAP.equals(options.optString("match"));
+        final Set<String> calendarIds = options != null ? getStringSet(options.optJSONArray("calendarIds")) : null;
+        final Set<String> fields = options != null ? getStringSet(options.optJSONArray("fields")) : null;
+        final Projection projection;
+        try {
+            projection = fields != null ? INSTANCE_PROJECTION.select(fields) : INSTANCE_PROJECTION;
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+            return;
+        }
+        final String authority = CalendarUris.getAuthority();
+        final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+
+        long phaseStart = sample.started();
+        final Cursor snapshotCursor = instanceSnapshot.query(authority, start, end, overlap, calendarIds);
+        phaseStart = sample.query(phaseStart);
+        final JSONArray cached = snapshotCursor != null ? toJSONArray(projection, snapshotCursor) : null;
+        if (cached != null) {
+            sample.addRows(cached.length());
+            phaseStart = sample.iteration(phaseStart);
+            final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                    .put("cached", true)
+                    .put("savedAt", instanceSnapshot.getSavedAt())
+                    .put("events", cached));
+            pluginResult.setKeepCallback(true);
+            sample.serialization(phaseStart);
+            callbackContext.sendPluginResult(pluginResult);
+        }
+
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long[] window = InstanceSnapshot.getWindow(start, end, snapshotWeeks);
+                    final long windowStart = window[0];
+                    final long windowEnd = window[1];
+                    final ContentResolver contentResolver = getContentResolver();
+                    instanceSnapshot.save(authority, windowStart, windowEnd, contentResolver.query(
+                            CalendarUris.instances(windowStart - InstanceSnapshot.MARGIN_MILLIS, windowEnd + InstanceSnapshot.MARGIN_MILLIS),
+                            CACHED_INSTANCE_COLUMNS,
+                            "deleted = 0",
+                            null,
+                            "begin ASC"));
+
+                    Cursor cursor = instanceSnapshot.query(authority, start, end, overlap, calendarIds);
+                    if (cursor == null) {
+                        // the range didn't fit in the snapshot
+                        final ArrayList<String> selectionArgs = new ArrayList<String>();
+                        cursor = contentResolver.query(
+                                CalendarUris.instances(start, end),
+                                projection.getColumns(),
+                                getInstancesSelection(start, end, overlap, calendarIds, selectionArgs),
+                                selectionArgs.toArray(new String[selectionArgs.size()]),
+                                "begin ASC");
+                    }
+                    final JSONArray events = toJSONArray(projection, cursor);
+                    final boolean changed = cached == null || !cached.toString().equals(events.toString());
+                    callbackContext.success(new JSONObject()
+                            .put("cached", false)
+                            .put("changed", changed)
+                            .put("events", changed ? events : JSONObject.NULL));
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the rows of the cursor according to the projection, closes the cursor
+     */
+    private static JSONArray toJSONArray(Projection projection, Cursor cursor) throws JSONException {
+        final JSONArray result = new JSONArray();
+        if (cursor == null) {
+            return result;
+        }
+        try {
+            final RowMapper rowMapper = projection.bind(cursor);
+            while (cursor.moveToNext()) {
+                result.put(rowMapper.toJSONObject());
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the details of the events with the given ids, for listings which only fetched what they display (see the
+     * fields option of listEventsInRange). The events, their reminders and their attendees take one query each (per
+     * MAX_IDS_PER_QUERY ids), the events are returned in the order of the ids, unknown ids are left out.
+     */
+    private void getEventsByIds(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_GET_EVENTS_BY_IDS, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        final Set<String> ids = jsonFilter != null ? getStringSet(jsonFilter.optJSONArray("ids")) : null;
+        if (ids == null) {
+            callbackContext.error("ids is required");
+            return;
+        }
+        final Set<String> fields = getStringSet(jsonFilter.optJSONArray("fields"));
+        final boolean withReminders = fields == null || fields.remove(FIELD_REMINDERS);
+        final boolean withAttendees = fields == null || fields.remove(FIELD_ATTENDEES);
+        final Projection projection;
+        try {
+            projection = fields != null ? EVENT_PROJECTION.select(fields) : EVENT_PROJECTION;
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+            return;
+        }
+        final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample.started();
+                    final List<String> idList = new ArrayList<String>(ids);
+                    final LongSparseArray<JSONObject> events = new LongSparseArray<JSONObject>(idList.size());
+                    for (int from = 0; from < idList.size(); from += MAX_IDS_PER_QUERY) {
+                        final List<String> chunk = idList.subList(from, Math.min(from + MAX_IDS_PER_QUERY, idList.size()));
+                        readEvents(CalendarUris.events(), Events._ID, projection, chunk, events, null, sample);
+                        if (withReminders) {
+                            readEvents(CalendarUris.reminders(), CalendarContract.Reminders.EVENT_ID, REMINDER_PROJECTION, chunk, events, FIELD_REMINDERS, sample);
+                        }
+                        if (withAttendees) {
+                            readEvents(CalendarUris.attendees(), CalendarContract.Attendees.EVENT_ID, ATTENDEE_PROJECTION, chunk, events, FIELD_ATTENDEES, sample);
+                        }
+                    }
+                    final JSONArray result = new JSONArray();
+                    for (String id : idList) {
+                        try {
+                            final JSONObject event = events.get(Long.parseLong(id));
+                            if (event != null) {
+                                result.put(event);
+                            }
+                        } catch (NumberFormatException ignored) {
+                            // can't be the id of an event
+                        }
+                    }
+                    sample.addRows(result.length());
+                    final long serializationStart = System.nanoTime();
+                    final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+                    sample.serialization(serializationStart);
+                    callbackContext.sendPluginResult(pluginResult);
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the reminders and attendees to the first count events of a listing (a JSONArray or a ColumnarResult). They're
+     * read with one query each per MAX_IDS_PER_QUERY distinct event ids, the instances of an event share the arrays.
+     *
+     * @param eventIds the event id of every event
+     */
+    private void addEventDetails(Object events, long[] eventIds, int count, boolean withReminders, boolean withAttendees,
+                                 PluginMetrics.Sample sample) throws JSONException {
+        final Set<String> distinct = new LinkedHashSet<String>();
+        for (int r = 0; r < count; r++) {
+            distinct.add(String.valueOf(eventIds[r]));
+        }
+        final List<String> idList = new ArrayList<String>(distinct);
+        final LongSparseArray<JSONArray> reminders = withReminders ? new LongSparseArray<JSONArray>(idList.size()) : null;
+        final LongSparseArray<JSONArray> attendees = withAttendees ? new LongSparseArray<JSONArray>(idList.size()) : null;
+        for (int from = 0; from < idList.size(); from += MAX_IDS_PER_QUERY) {
+            final List<String> chunk = idList.subList(from, Math.min(from + MAX_IDS_PER_QUERY, idList.size()));
+            if (withReminders) {
+                readChildren(CalendarUris.reminders(), CalendarContract.Reminders.EVENT_ID, REMINDER_PROJECTION, chunk, reminders, sample);
+            }
+            if (withAttendees) {
+                readChildren(CalendarUris.attendees(), CalendarContract.Attendees.EVENT_ID, ATTENDEE_PROJECTION, chunk, attendees, sample);
+            }
+        }
+        final ColumnarResult columnarResult = events instanceof ColumnarResult ? (ColumnarResult) events : null;
+        final int remindersColumn = columnarResult != null ? columnarResult.indexOf(FIELD_REMINDERS) : -1;
+        final int attendeesColumn = columnarResult != null ? columnarResult.indexOf(FIELD_ATTENDEES) : -1;
+        for (int r = 0; r < count; r++) {
+            if (withReminders) {
+                final JSONArray eventReminders = getOrEmpty(reminders, eventIds[r]);
+                if (columnarResult != null) {
+                    columnarResult.set(remindersColumn, r, eventReminders);
+                } else {
+                    ((JSONArray) events).getJSONObject(r).put(FIELD_REMINDERS, eventReminders);
+                }
+            }
+            if (withAttendees) {
+                final JSONArray eventAttendees = getOrEmpty(attendees, eventIds[r]);
+                if (columnarResult != null) {
+                    columnarResult.set(attendeesColumn, r, eventAttendees);
+                } else {
+                    ((JSONArray) events).getJSONObject(r).put(FIELD_ATTENDEES, eventAttendees);
+                }
+            }
+        }
+    }
+
+    // events without any reminders (or attendees) get an empty array
+    private static JSONArray getOrEmpty(LongSparseArray<JSONArray> arrays, long id) {
+        JSONArray array = arrays.get(id);
+        if (array == null) {
+            array = new JSONArray();
+            arrays.put(id, array);
+        }
+        return array;
+    }
+
+    /**
+     * Reads the rows of uri whose idColumn is one of the ids. Without a childKey these are the events themselves and
+     * they're put in events, otherwise they're added to the childKey array of the event they belong to.
+     */
+    private void readEvents(Uri uri, String idColumn, Projection projection, List<String> ids, LongSparseArray<JSONObject> events,
+                            String childKey, PluginMetrics.Sample sample) throws JSONException {
+        if (childKey != null) {
+            final LongSparseArray<JSONArray> children = new LongSparseArray<JSONArray>(ids.size());
+            readChildren(uri, idColumn, projection, ids, children, sample);
+            for (String id : ids) {
+                try {
+                    final long eventId = Long.parseLong(id);
+                    final JSONObject event = events.get(eventId);
+                    if (event != null) {
+                        // events without any reminders (or attendees) get an empty array
+                        final JSONArray eventChildren = children.get(eventId);
+                        event.put(childKey, eventChildren != null ? eventChildren : new JSONArray());
+                    }
+                } catch (NumberFormatException ignored) {
+                    // can't be the id of an event
+                }
+            }
+            return;
+        }
+        readRows(uri, idColumn, projection, ids, events, null, sample);
+    }
+
+    /**
+     * Reads the rows of uri (like reminders) whose idColumn is one of the event ids, into an array per event id.
+     */
+    private void readChildren(Uri uri, String idColumn, Projection projection, List<String> ids, LongSparseArray<JSONArray> children,
+                              PluginMetrics.Sample sample) throws JSONException {
+        readRows(uri, idColumn, projection, ids, null, children, sample);
+    }
+
+    // puts every row in events by its id, or adds it to the array of its id in children
+    private void readRows(Uri uri, String idColumn, Projection projection, List<String> ids, LongSparseArray<JSONObject> events,
+                          LongSparseArray<JSONArray> children, PluginMetrics.Sample sample) throws JSONException {
+        final List<String> columns = new ArrayList<String>();
+        Collections.addAll(columns, projection.getColumns());
+        if (!columns.contains(idColumn)) {
+            columns.add(idColumn);
+        }
+        final StringBuilder selection = new StringBuilder(idColumn).append(" IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        selection.append(")");
+        long phaseStart = System.nanoTime();
+        final Cursor cursor = getContentResolver().query(
+                uri,
+                columns.toArray(new String[columns.size()]),
+                selection.toString(),
+                ids.toArray(new String[ids.size()]),
+                null);
+        phaseStart = sample.query(phaseStart);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            final RowMapper rowMapper = projection.bind(cursor);
+            final int idIndex = cursor.getColumnIndex(idColumn);
+            while (cursor.moveToNext()) {
+                final long id = cursor.getLong(idIndex);
+                if (events != null) {
+                    events.put(id, rowMapper.toJSONObject());
+                } else {
+                    JSONArray rows = children.get(id);
+                    if (rows == null) {
+                        rows = new JSONArray();
+                        children.put(id, rows);
+                    }
+                    rows.put(rowMapper.toJSONObject());
+                }
+            }
+        } finally {
+            cursor.close();
+            sample.iteration(phaseStart);
+        }
+    }
+
+    /**
+     * Returns the busy blocks between startTime and endTime as [[start, end], ..], or with freeSlots the free time in
+     * between (of at least minDurationMinutes, optionally only between dayStartMinutes and dayEndMinutes of every day).
+     * The instances are merged into blocks while the cursor is read, see {@link FreeBusy}. Instances which are marked
+     * as free and canceled ones don't make anyone busy.
+     */
+    private void getFreeBusy(JSONArray args, final CallbackContext callbackContext, final boolean freeSlots) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(freeSlots ? ACTION_FIND_FREE_SLOTS : ACTION_GET_FREE_BUSY, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        if (jsonFilter == null) {
+            callbackContext.error("startTime and endTime are required");
+            return;
+        }
+        final long start = jsonFilter.optLong("startTime");
+        final long end = jsonFilter.optLong("endTime");
+        final JSONObject options = jsonFilter.optJSONObject("options");
+        final Set<String> calendarIds = options != null ? getStringSet(options.optJSONArray("calendarIds")) : null;
+        final boolean includeAllDay = options == null || options.optBoolean("includeAllDay", true);
+        final long minDurationMillis = (options != null ? options.optLong("minDurationMinutes", 0) : 0) * 60 * 1000L;
+        final int dayStartMinutes = options != null ? options.optInt("dayStartMinutes", -1) : -1;
+        final int dayEndMinutes = options != null ? options.optInt("dayEndMinutes", -1) : -1;
+        final int limit = options != null ? options.optInt("limit", 0) : 0;
+        final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long phaseStart = sample.started();
+                    final ArrayList<String> selectionArgs = new ArrayList<String>();
+                    final String selection = getInstancesSelection(start, end, true, calendarIds, selectionArgs)
+                            + " AND (" + Events.AVAILABILITY + " IS NULL OR " + Events.AVAILABILITY + " <> " + Events.AVAILABILITY_FREE + ")"
+                            + " AND (" + Events.STATUS + " IS NULL OR " + Events.STATUS + " <> " + Events.STATUS_CANCELED + ")";
+                    final Cursor cursor = getContentResolver().query(
+                            CalendarUris.instances(start, end),
+                            FreeBusy.COLUMNS,
+                            selection,
+                            selectionArgs.toArray(new String[selectionArgs.size()]),
+                            FreeBusy.SORT_ORDER);
+                    phaseStart = sample.query(phaseStart);
+                    final FreeBusy freeBusy = new FreeBusy(start, end, includeAllDay);
+                    sample.addRows(freeBusy.read(cursor));
+                    final JSONArray result = freeSlots
+                            ? freeBusy.getFreeSlots(minDurationMillis, dayStartMinutes, dayEndMinutes, limit)
+                            : freeBusy.getBusy();
+                    phaseStart = sample.iteration(phaseStart);
+                    final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+                    sample.serialization(phaseStart);
+                    callbackContext.sendPluginResult(pluginResult);
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of instances on every local day from startTime up to endTime, see {@link DayCounts}.
+     * Only the columns needed to bucket the instances are read. Pass byCalendar to get the counts per calendar as well.
+     */
+    private void countEventsByDay(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_COUNT_EVENTS_BY_DAY, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        final long start = jsonFilter != null ? jsonFilter.optLong("startTime") : 0;
+        final long end = jsonFilter != null ? jsonFilter.optLong("endTime") : 0;
+        if (end <= start) {
+            callbackContext.error("endTime must be after startTime");
+            return;
+        }
+        final JSONObject options = jsonFilter.optJSONObject("options");
+        final Set<String> calendarIds = options != null ? getStringSet(options.optJSONArray("calendarIds")) : null;
+        final boolean byCalendar = options != null && options.optBoolean("byCalendar", false);
+        final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long phaseStart = sample.started();
+                    final DayCounts dayCounts = new DayCounts(start, end, byCalendar);
+                    final ArrayList<String> selectionArgs = new ArrayList<String>();
+                    final Cursor cursor = getContentResolver().query(
+                            CalendarUris.instances(dayCounts.getStart(), dayCounts.getEnd()),
+                            DayCounts.COLUMNS,
+                            getInstancesSelection(dayCounts.getStart(), dayCounts.getEnd(), true, calendarIds, selectionArgs),
+                            selectionArgs.toArray(new String[selectionArgs.size()]),
+                            null);
+                    phaseStart = sample.query(phaseStart);
+                    sample.addRows(dayCounts.read(cursor));
+                    phaseStart = sample.iteration(phaseStart);
+                    final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, dayCounts.toJSONObject());
+                    sample.serialization(phaseStart);
+                    callbackContext.sendPluginResult(pluginResult);
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the events (newest first) whose title, location or description contain a word starting with every word
+     * of the query. The provider filters with LIKE and the rows are checked against the word rule afterwards, with
+     * useIndex the events are looked up in an {@link EventSearchIndex} instead.
+     */
+    private void searchEvents(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_SEARCH_EVENTS, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        final String query = jsonFilter != null ? EventOperations.getPossibleNullString("query", jsonFilter) : null;
+        if (query == null) {
+            callbackContext.error("query is required");
+            return;
+        }
+        final JSONObject options = jsonFilter.optJSONObject("options");
+        final long start = options != null ? options.optLong("startTime", 0) : 0;
+        final long end = options != null ? options.optLong("endTime", 0) : 0;
+        final Set<String> calendarIds = options != null ? getStringSet(options.optJSONArray("calendarIds")) : null;
+        final int limit = options != null ? options.optInt("limit", DEFAULT_SEARCH_LIMIT) : DEFAULT_SEARCH_LIMIT;
+        final boolean useIndex = options != null && options.optBoolean("useIndex", false);
+        final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long phaseStart = sample.started();
+                    final JSONArray result = new JSONArray();
+                    final EventSearchIndex index = eventSearchIndex;
+                    if (useIndex && index != null) {
+                        final List<EventSearchIndex.Entry> entries = index.search(query, start, end, calendarIds, limit, new EventSearchIndex.Loader() {
+                            @Override
+                            public Cursor load() {
+                                return getContentResolver().query(
+                                        CalendarUris.events(),
+                                        EventSearchIndex.COLUMNS,
+                                        Events.DELETED + " = 0",
+                                        null,
+                                        null);
+                            }
+                        });
+                        phaseStart = sample.query(phaseStart);
+                        for (EventSearchIndex.Entry entry : entries) {
+                            result.put(entry.toJSONObject());
+                        }
+                        sample.iteration(phaseStart);
+                    } else {
+                        searchProvider(EventSearchIndex.tokenize(query), start, end, calendarIds, limit, result, sample);
+                    }
+                    sample.addRows(result.length());
+                    final long serializationStart = System.nanoTime();
+                    final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+                    sample.serialization(serializationStart);
+                    callbackContext.sendPluginResult(pluginResult);
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void searchProvider(Set<String> words, long start, long end, Set<String> calendarIds, int limit, JSONArray result,
+                                PluginMetrics.Sample sample) throws JSONException {
+        if (words.isEmpty()) {
+            return;
+        }
+        // words only consist of letters and digits, so they don't need escaping. SQLite's LIKE only ignores the case
+        // of ASCII letters though, other letters only match in the case they were typed in
+        final StringBuilder selection = new StringBuilder(Events.DELETED).append(" = 0");
+        final List<String> selectionArgs = new ArrayList<String>();
+        for (String word : words) {
+            selection.append(" AND (title LIKE ? OR eventLocation LIKE ? OR description LIKE ?)");
+            final String pattern = "%" + word + "%";
+            Collections.addAll(selectionArgs, pattern, pattern, pattern);
+        }
+        if (start != 0) {
+            selection.append(" AND (lastDate IS NULL OR lastDate >= ?)");
+            selectionArgs.add(String.valueOf(start));
+        }
+        if (end != 0) {
+            selection.append(" AND dtstart <= ?");
+            selectionArgs.add(String.valueOf(end));
+        }
+        if (calendarIds != null) {
+            selection.append(" AND calendar_id IN (");
+            int c = 0;
+            for (String calendarId : calendarIds) {
+                selection.append(c++ == 0 ? "?" : ", ?");
+                selectionArgs.add(calendarId);
+            }
+            selection.append(")");
+        }
+        final List<String> columns = new ArrayList<String>();
+        Collections.addAll(columns, SEARCH_PROJECTION.getColumns());
+        columns.add(Events.DESCRIPTION);
+        long phaseStart = System.nanoTime();
+        final Cursor cursor = getContentResolver().query(
+                CalendarUris.events(),
+                columns.toArray(new String[columns.size()]),
+                selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                Events.DTSTART + " DESC, " + Events._ID + " DESC");
+        phaseStart = sample.query(phaseStart);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            final RowMapper rowMapper = SEARCH_PROJECTION.bind(cursor);
+            final int titleIndex = cursor.getColumnIndex(Events.TITLE);
+            final int locationIndex = cursor.getColumnIndex(Events.EVENT_LOCATION);
+            final int descriptionIndex = cursor.getColumnIndex(Events.DESCRIPTION);
+            while ((limit <= 0 || result.length() < limit) && cursor.moveToNext()) {
+                // LIKE matches anywhere in a word, only keep the rows with words starting with the query words
+                if (EventSearchIndex.matches(words, cursor.getString(titleIndex), cursor.getString(locationIndex), cursor.getString(descriptionIndex))) {
+                    result.put(rowMapper.toJSONObject());
+                }
+            }
+        } finally {
+            cursor.close();
+            sample.iteration(phaseStart);
+        }
+    }
+
+    /**
+     * Finds the instances between startTime and endTime whose title, location and notes contain the passed ones,
+     * in the format of the iOS implementation. Pass options.calendarName to only look in that calendar, or
+     * options.id to only look for the instances of that event.
+     */
+    private void findEventWithOptions(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_FIND_EVENT_WITH_OPTIONS, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        if (jsonFilter == null) {
+            callbackContext.error("No search criteria passed");
+            return;
+        }
+        final JSONObject options = jsonFilter.optJSONObject("options");
+        final String calendarName = options != null ? EventOperations.getPossibleNullString("calendarName", options) : null;
+        final String eventId = options != null ? EventOperations.getPossibleNullString("id", options) : null;
+        final long start = jsonFilter.optLong("startTime", 0);
+        final long endTime = jsonFilter.optLong("endTime", 0);
+        final long end = endTime > 0 ? endTime : System.currentTimeMillis() + FIND_DEFAULT_SPAN_MILLIS;
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final String calendarId = calendarName != null ? getCalendarIdByName(calendarName) : null;
+                    if (calendarName != null && calendarId == null) {
+                        callbackContext.error("Could not find calendar");
+                        return;
+                    }
+                    callbackContext.success(findInstances(EventOperations.getPossibleNullString("title", jsonFilter), EventOperations.getPossibleNullString("location", jsonFilter),
+                            EventOperations.getPossibleNullString("notes", jsonFilter), start, end, calendarId, eventId, PluginMetrics.sampleOf(callbackContext)));
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds the instances in the named calendar which start from now on, in the format of findEventWithOptions.
+     */
+    private void findAllEventsInNamedCalendar(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_FIND_ALL_EVENTS_IN_NAMED_CALENDAR, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        final String calendarName = jsonFilter != null ? EventOperations.getPossibleNullString("calendarName", jsonFilter) : null;
+        if (calendarName == null) {
+            callbackContext.error("calendarName is required");
+            return;
+        }
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final String calendarId = getCalendarIdByName(calendarName);
+                    if (calendarId == null) {
+                        callbackContext.error("Could not find calendar");
+                        return;
+                    }
+                    final long now = System.currentTimeMillis();
+                    callbackContext.success(findInstances(null, null, null, now, now + FIND_ALL_SPAN_MILLIS, calendarId, null,
+                            PluginMetrics.sampleOf(callbackContext)));
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the instances overlapping start - end matching the (case insensitive) substrings, null to match anything,
+     * as {id, calendar, title, location, message, startDate, endDate, allday}. The dates are local ("yyyy-MM-dd HH:mm:ss").
+     */
+    private JSONArray findInstances(String title, String location, String notes, long start, long end, String calendarId,
+                                    String eventId, PluginMetrics.Sample sample) throws JSONException {
+        final StringBuilder selection = new StringBuilder(Events.DELETED).append(" = 0");
+        final List<String> selectionArgs = new ArrayList<String>();
+        final String[][] filters = {{Events.TITLE, title}, {Events.EVENT_LOCATION, location}, {Events.DESCRIPTION, notes}};
+        for (String[] filter : filters) {
+            if (filter[1] != null && filter[1].length() > 0) {
+                selection.append(" AND ").append(filter[0]).append(" LIKE ? ESCAPE '\\'");
+                selectionArgs.add("%" + filter[1].replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+            }
+        }
+        if (calendarId != null) {
+            selection.append(" AND ").append(Events.CALENDAR_ID).append(" = ?");
+            selectionArgs.add(calendarId);
+        }
+        if (eventId != null) {
+            selection.append(" AND ").append(CalendarContract.Instances.EVENT_ID).append(" = ?");
+            selectionArgs.add(eventId);
+        }
+        long phaseStart = sample.started();
+        final Cursor cursor = getContentResolver().query(
+                CalendarUris.instances(start, end),
+                new String[]{CalendarContract.Instances.EVENT_ID, Events.CALENDAR_DISPLAY_NAME, Events.TITLE, Events.EVENT_LOCATION,
+                        Events.DESCRIPTION, CalendarContract.Instances.BEGIN, CalendarContract.Instances.END, Events.ALL_DAY},
+                selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                CalendarContract.Instances.BEGIN + " ASC");
+        phaseStart = sample.query(phaseStart);
+        final JSONArray result = new JSONArray();
+        if (cursor == null) {
+            return result;
+        }
+        final SimpleDateFormat localFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        // all day events are stored in UTC
+        final SimpleDateFormat utcFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        utcFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            while (cursor.moveToNext()) {
+                final boolean allDay = cursor.getInt(7) == 1;
+                final SimpleDateFormat format = allDay ? utcFormat : localFormat;
+                result.put(new JSONObject()
+                        .put("id", cursor.getString(0))
+                        .put("calendar", cursor.getString(1))
+                        .put("title", cursor.getString(2))
+                        .put("location", cursor.getString(3))
+                        .put("message", cursor.getString(4))
+                        .put("startDate", format.format(new Date(cursor.getLong(5))))
+                        .put("endDate", format.format(new Date(cursor.getLong(6))))
+                        .put("allday", allDay));
+            }
+        } finally {
+            cursor.close();
+            sample.iteration(phaseStart);
+        }
+        sample.addRows(result.length());
+        return result;
+    }
+
+    /**
+     * Puts the id of options.calendarName in options.calendarId for EventOperations.addInsertEvent, unless the event
+     * has a calendarId already.
+     *
+     * @throws IllegalArgumentException when there's no calendar with that name
+     */
+    private void resolveCalendarName(JSONObject event) throws JSONException {
+        final JSONObject options = event.optJSONObject("options");
+        final String calendarName = options != null ? EventOperations.getPossibleNullString("calendarName", options) : null;
+        if (calendarName == null || !options.isNull("calendarId")) {
+            return;
+        }
+        final String calendarId = getCalendarIdByName(calendarName);
+        if (calendarId == null) {
+            throw new IllegalArgumentException("No calendar named " + calendarName);
+        }
+        options.put("calendarId", Long.parseLong(calendarId));
+    }
+
+    /**
+     * @return the id of the calendar with this name (or display name), null when there's no such calendar
+     */
+    private String getCalendarIdByName(String name) throws JSONException {
+        final CalendarListCache cache = calendarListCache;
+        if (cache != null) {
+            return cache.get().getIdByName(name);
+        }
+        final JSONArray calendars = getActiveCalendars();
+        return new CalendarListCache.Snapshot(calendars != null ? calendars : new JSONArray()).getIdByName(name);
+    }
+
+    /**
+     * Returns the latency histograms and counters of every action invoked so far, see {@link PluginMetrics}.
+     * Pass {reset: true} to start over afterwards.
+     */
+    private void getPluginMetrics(JSONArray args, CallbackContext callbackContext) {
+        final JSONObject options = args.optJSONObject(0);
+        try {
+            final JSONObject result = metrics.toJSONObject();
+            if (options != null && options.optBoolean("reset", false)) {
+                metrics.reset();
+            }
+            callbackContext.success(result);
+        } catch (JSONException e) {
+            System.err.println("JSONException: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the ids of the events which were inserted, updated or deleted since the passed token, see {@link EventChangeTracker}.
+     */
+    private void listEventChangesSince(JSONArray args, final CallbackContext callbackContext) {
+        if (!calendarPermissionGranted(Manifest.permission.READ_CALENDAR)) {
+            requestReadPermission(ACTION_LIST_EVENT_CHANGES_SINCE, args, callbackContext);
+            return;
+        }
+        final JSONObject jsonFilter = args.optJSONObject(0);
+        final String token = jsonFilter != null ? EventOperations.getPossibleNullString("token", jsonFilter) : null;
+        final PluginMetrics.Sample sample = PluginMetrics.sampleOf(callbackContext);
+        read(callbackContext, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long phaseStart = sample.started();
+                    // events flagged as deleted (but not yet synced) are left out, so they're reported as deleted
+                    Cursor cursor = getContentResolver().query(
+                            CalendarUris.events(),
+                            EventChangeTracker.COLUMNS,
+                            Events.DELETED + " = 0",
+                            null,
+                            EventChangeTracker.SORT_ORDER);
+                    phaseStart = sample.query(phaseStart);
+                    final JSONObject changes = changeTracker.changesSince(token, cursor);
+                    phaseStart = sample.iteration(phaseStart);
+                    final PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, changes);
+                    sample.serialization(phaseStart);
+                    callbackContext.sendPluginResult(pluginResult);
+                } catch (Exception e) {
+                    System.err.println("Exception: " + e.getMessage());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * The where clause of listEventsInRange, the bounds are passed as selectionArgs so the statement stays the same for every range.
+     * All day events are stored in UTC, others in the user's timezone, so the range is shifted by the offset for the former.
+     */
+    private static String getInstancesSelection(long start, long end, boolean overlap, Set<String> calendarIds, List<String> selectionArgs) {
+        final long utcStart = start + TimeZone.getDefault().getOffset(start);
+        final long utcEnd = end + TimeZone.getDefault().getOffset(end);
+        // see ExpandedInstances.overlaps
+        final String range = overlap
+                ? "((begin < ? AND end > ?) OR (begin = end AND begin >= ? AND begin < ?))"
+                : "begin >= ? AND end <= ?";
+        final StringBuilder selection = new StringBuilder("deleted = 0 AND ((eventTimezone = 'UTC' AND ")
+                .append(range)
+                .append(") OR (eventTimezone <> 'UTC' AND ")
+                .append(range)
+                .append("))");
+        if (overlap) {
+            Collections.addAll(selectionArgs, String.valueOf(utcEnd), String.valueOf(utcStart), String.valueOf(utcStart), String.valueOf(utcEnd),
+                    String.valueOf(end), String.valueOf(start), String.valueOf(start), String.valueOf(end));
+        } else {
+            Collections.addAll(selectionArgs, String.valueOf(utcStart), String.valueOf(utcEnd), String.valueOf(start), String.valueOf(end));
+        }
+        if (calendarIds != null) {
+            selection.append(" AND calendar_id IN (");
+            int c = 0;
+            for (String calendarId : calendarIds) {
+                selection.append(c++ == 0 ? "?" : ", ?");
+                selectionArgs.add(calendarId);
+            }
+            selection.append(")");
+        }
+        return selection.toString();
+    }
+
+    /**
+     * @return the values (like ids, which JS may pass as numbers) as strings, or null when no array was passed
+     */
+    private static Set<String> getStringSet(JSONArray values) {
+        if (values == null) {
+            return null;
+        }
+        final Set<String> strings = new LinkedHashSet<String>();
+        for (int i = 0; i < values.length(); i++) {
+            if (!values.isNull(i)) {
+                strings.add(values.optString(i));
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Sends one page of a streamed listEventsInRange result, events is either a JSONArray or a columnar JSONObject.
+     * Pass the cursorToken of the next unread row, or null when the cursor has been exhausted.
+     */
+    private static void sendEventsPage(CalendarExecutor.Query query, PluginMetrics.Sample sample, Object events, String cursorToken, boolean done, boolean keepCallback) {
+        try {
+            final long serializationStart = System.nanoTime();
+            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, new JSONObject()
+                    .put("events", events)
+                    .put("cursorToken", cursorToken != null ? cursorToken : JSONObject.NULL)
+                    .put("done", done));
+            pluginResult.setKeepCallback(keepCallback);
+            sample.serialization(serializationStart);
+            query.sendPluginResult(pluginResult);
+        } catch (JSONException e) {
+            System.err.println("JSONException: " + e.getMessage());
+            query.error(e.getMessage());
+        }
+    }
+
+    private static final class PendingRequest {
+        private final String action;
+        private final JSONArray args;
+        private final CallbackContext callbackContext;
+
+        private PendingRequest(String action, JSONArray args, CallbackContext callbackContext) {
+            this.action = action;
+            this.args = args;
+            this.callbackContext = callbackContext;
         }
     }
 }
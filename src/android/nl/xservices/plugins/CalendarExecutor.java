@@ -0,0 +1,225 @@
+package nl.xservices.plugins;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads the Calendar plugin does its work on, instead of the thread pool Cordova shares between all plugins.
+ * <ul>
+ * <li>reads run on a small bounded pool, so a burst of queries can't pile up without limit</li>
+ * <li>writes run one at a time in the order they were issued</li>
+ * <li>identical queries which are still queued are coalesced into one, every caller gets the same result</li>
+ * <li>a query with a tag cancels the queued or running query with the same tag, so stale queries don't keep a thread busy</li>
+ * <li>delayed tasks (like debounced notifications) run on a timer thread, they should hand any real work to a read</li>
+ * </ul>
+ */
+public final class CalendarExecutor {
+
+    private static final int READ_THREADS = 2;
+    private static final int MAX_QUEUED_READS = 64;
+
+    private static final String LOG_TAG = CalendarExecutor.class.getCanonicalName();
+
+    private final ThreadPoolExecutor readPool;
+    private final ExecutorService writeLane;
+    private final ScheduledExecutorService timer;
+
+    // queries which haven't started yet, by their coalesce key
+    private final Map<String, Query> queuedQueries = new HashMap<String, Query>();
+    // the most recent query for every tag
+    private final Map<String, Query> taggedQueries = new HashMap<String, Query>();
+
+    public CalendarExecutor() {
+        readPool = new ThreadPoolExecutor(READ_THREADS, READ_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_READS), new BackgroundThreadFactory("Calendar-read"));
+        readPool.allowCoreThreadTimeOut(true);
+        writeLane = Executors.newSingleThreadExecutor(new BackgroundThreadFactory("Calendar-write"));
+        timer = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory("Calendar-timer"));
+    }
+
+    public void read(Runnable runnable) {
+        readPool.execute(runnable);
+    }
+
+    public void write(Runnable runnable) {
+        writeLane.execute(runnable);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable runnable, long delayMillis) {
+        return timer.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a query, unless an identical one (same key) is still waiting: then the callback is added to that one.
+     *
+     * @param key      identifies identical queries, null to never coalesce
+     * @param tag      a newer query with the same tag cancels this one, null to never cancel
+     * @param callback receives the results of the query
+     * @throws RejectedExecutionException when too many reads are queued already
+     */
+    public void query(String key, String tag, CallbackContext callback, Query query) {
+        final Query superseded;
+        synchronized (this) {
+            if (key != null) {
+                Query queued = queuedQueries.get(key);
+                if (queued != null && queued.addCallback(callback)) {
+                    return;
+                }
+            }
+            query.executor = this;
+            query.key = key;
+            query.tag = tag;
+            query.callbacks.add(callback);
+            query.future = readPool.submit(query);
+            if (key != null) {
+                queuedQueries.put(key, query);
+            }
+            superseded = tag != null ? taggedQueries.put(tag, query) : null;
+        }
+        if (superseded != null) {
+            superseded.cancel("Superseded by a newer query");
+        }
+    }
+
+    public void shutdown() {
+        readPool.shutdownNow();
+        writeLane.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private synchronized void started(Query query) {
+        if (query.key != null && queuedQueries.get(query.key) == query) {
+            queuedQueries.remove(query.key);
+        }
+    }
+
+    private synchronized void finished(Query query) {
+        if (query.tag != null && taggedQueries.get(query.tag) == query) {
+            taggedQueries.remove(query.tag);
+        }
+    }
+
+    private void removeCancelled(Query query) {
+        synchronized (this) {
+            started(query);
+        }
+        if (query.future != null && query.future.cancel(false)) {
+            readPool.purge();
+        }
+    }
+
+    /**
+     * A read which can be shared by several callers and cancelled, see {@link #query}.
+     * Implementations send their results through this object rather than through a CallbackContext,
+     * and should check {@link #isCancelled()} now and then while they're running.
+     */
+    public abstract static class Query implements Runnable {
+
+        private final List<CallbackContext> callbacks = new ArrayList<CallbackContext>();
+        private CalendarExecutor executor;
+        private Future<?> future;
+        private String key;
+        private String tag;
+        private boolean started;
+        private volatile boolean cancelled;
+
+        protected abstract void execute();
+
+        @Override
+        public final void run() {
+            synchronized (this) {
+                started = true;
+            }
+            executor.started(this);
+            try {
+                if (!cancelled) {
+                    execute();
+                }
+            } catch (RuntimeException e) {
+                // submitted queries keep what they throw in their future, which nobody looks at
+                Log.e(LOG_TAG, "Query failed", e);
+                if (!cancelled) {
+                    error(e.getMessage());
+                }
+            } finally {
+                executor.finished(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized void sendPluginResult(PluginResult pluginResult) {
+            for (CallbackContext callback : callbacks) {
+                callback.sendPluginResult(pluginResult);
+            }
+        }
+
+        public synchronized void error(String message) {
+            for (CallbackContext callback : callbacks) {
+                callback.error(message);
+            }
+        }
+
+        private synchronized boolean addCallback(CallbackContext callback) {
+            if (started || cancelled) {
+                return false;
+            }
+            callbacks.add(callback);
+            return true;
+        }
+
+        private void cancel(String reason) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+            }
+            executor.removeCancelled(this);
+            error(reason);
+        }
+    }
+
+    private static final class BackgroundThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private BackgroundThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package nl.xservices.plugins;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the result of listCalendars, so apps which look up their calendar before every operation don't query the
+ * provider every time. The calendars are kept as an immutable {@link Snapshot}, which is dropped as soon as the
+ * provider reports a change to its calendars and loaded again on the next {@link #get}.
+ */
+public final class CalendarListCache {
+
+    /**
+     * Queries the provider for the calendars, null when it can't be queried.
+     */
+    public interface Loader {
+        JSONArray load() throws JSONException;
+    }
+
+    /**
+     * Told about every change of the calendars (on a binder thread), after the snapshot was dropped.
+     */
+    public interface Listener {
+        void onCalendarsChanged();
+    }
+
+    private final Loader loader;
+    private volatile Listener listener;
+
+    private Snapshot snapshot;
+    // bumped on every invalidation, so a load which raced with a change doesn't end up in the cache
+    private int generation;
+
+    private final ContentObserver observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+            final Listener current = listener;
+            if (current != null) {
+                current.onCalendarsChanged();
+            }
+        }
+    };
+
+    public CalendarListCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void register(ContentResolver contentResolver, Uri calendars) {
+        contentResolver.registerContentObserver(calendars, true, observer);
+    }
+
+    public void unregister(ContentResolver contentResolver) {
+        contentResolver.unregisterContentObserver(observer);
+        invalidate();
+    }
+
+    public synchronized void invalidate() {
+        generation++;
+        snapshot = null;
+    }
+
+    /**
+     * @return the cached calendars, loaded first when they changed since the last call
+     */
+    public Snapshot get() throws JSONException {
+        final int loadGeneration;
+        synchronized (this) {
+            if (snapshot != null) {
+                return snapshot;
+            }
+            loadGeneration = generation;
+        }
+        final JSONArray calendars = loader.load();
+        final Snapshot loaded = new Snapshot(calendars != null ? calendars : new JSONArray());
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                snapshot = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * The calendars at one point in time. Never modify the array, it's shared by every caller.
+     */
+    public static final class Snapshot {
+        private final JSONArray calendars;
+        private final String json;
+        private final Map<String, String> idsByName;
+
+        Snapshot(JSONArray calendars) {
+            this.calendars = calendars;
+            this.json = calendars.toString();
+            final Map<String, String> ids = new HashMap<String, String>();
+            // names take precedence over display names, the first calendar with a name wins
+            for (String key : new String[]{"name", "calendar_displayName"}) {
+                for (int i = 0; i < calendars.length(); i++) {
+                    final JSONObject calendar = calendars.optJSONObject(i);
+                    if (calendar != null && !calendar.isNull(key) && !ids.containsKey(calendar.optString(key))) {
+                        ids.put(calendar.optString(key), calendar.optString("id"));
+                    }
+                }
+            }
+            this.idsByName = Collections.unmodifiableMap(ids);
+        }
+
+        public JSONArray getCalendars() {
+            return calendars;
+        }
+
+        /**
+         * @return the calendars as JSON, equal for equal snapshots
+         */
+        public String getJson() {
+            return json;
+        }
+
+        /**
+         * @return the id of the calendar with this name (or display name), null when there's no such calendar
+         */
+        public String getIdByName(String name) {
+            return idsByName.get(name);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package nl.xservices.plugins;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.SyncStatusObserver;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Syncs the calendars of some accounts, for syncCalendars. The syncs of all accounts are requested at once, and
+ * instead of polling whether they're still running, a {@link SyncStatusObserver} says when the sync state of any
+ * account changes: an account is done once its sync has been pending or active and no longer is.
+ * <p>
+ * A sync which doesn't show up within {@link #START_GRACE_MILLIS} (because the sync adapter turned it down, or it
+ * finished in between two notifications) counts as not started, accounts which are still syncing when the timeout
+ * passes as timed out.
+ */
+public final class CalendarSync {
+
+    /**
+     * Gets the outcome of every account once, then onFinished. Called on a worker or binder thread.
+     */
+    public interface Listener {
+        void onAccountSynced(Account account, String status);
+
+        void onFinished(Map<Account, String> statuses);
+    }
+
+    public static final String STATUS_SYNCED = "synced";
+    public static final String STATUS_NOT_STARTED = "notStarted";
+    public static final String STATUS_NOT_SYNCABLE = "notSyncable";
+    public static final String STATUS_TIMED_OUT = "timedOut";
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    private static final long START_GRACE_MILLIS = 3000;
+
+    private static final String LOG_TAG = CalendarSync.class.getCanonicalName();
+
+    private final CalendarExecutor executor;
+    private final String authority;
+    private final Listener listener;
+
+    // guarded by this, the accounts in the order they were passed with their status (null while syncing)
+    private final Map<Account, String> statuses = new LinkedHashMap<Account, String>();
+    private final Map<Account, Boolean> started = new LinkedHashMap<Account, Boolean>();
+    // guarded by this, what the listener hasn't been told yet: it's called without holding this, as it may take
+    // locks of its own which are also held while calling cancel
+    private final Map<Account, String> unreported = new LinkedHashMap<Account, String>();
+    private Map<Account, String> unreportedFinish;
+    // keeps the listener calls in order
+    private final Object reportLock = new Object();
+    private Object observerHandle;
+    private ScheduledFuture<?> graceCheck;
+    private ScheduledFuture<?> timeout;
+    private long startNanos;
+    private boolean finished;
+
+    private final SyncStatusObserver observer = new SyncStatusObserver() {
+        @Override
+        public void onStatusChanged(int which) {
+            check(false);
+        }
+    };
+
+    public CalendarSync(CalendarExecutor executor, String authority, Collection<Account> accounts, Listener listener) {
+        this.executor = executor;
+        this.authority = authority;
+        this.listener = listener;
+        for (Account account : accounts) {
+            statuses.put(account, null);
+            started.put(account, false);
+        }
+    }
+
+    /**
+     * Requests the syncs. Needs the READ_SYNC_SETTINGS and READ_SYNC_STATS permissions.
+     */
+    public void start(long timeoutMillis) {
+        synchronized (this) {
+            request(timeoutMillis);
+        }
+        report();
+    }
+
+    // callers hold the lock
+    private void request(long timeoutMillis) {
+        startNanos = System.nanoTime();
+        // listen before requesting, so a sync which starts right away isn't missed
+        observerHandle = ContentResolver.addStatusChangeListener(
+                ContentResolver.SYNC_OBSERVER_TYPE_PENDING | ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE, observer);
+        final Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        for (Account account : statuses.keySet()) {
+            if (ContentResolver.getIsSyncable(account, authority) > 0) {
+                ContentResolver.requestSync(account, authority, extras);
+            } else {
+                settle(account, STATUS_NOT_SYNCABLE);
+            }
+        }
+        try {
+            graceCheck = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    check(false);
+                }
+            }, START_GRACE_MILLIS);
+            timeout = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    check(true);
+                }
+            }, timeoutMillis);
+        } catch (RejectedExecutionException e) {
+            // the plugin is being destroyed, nothing will check on the syncs anymore: settle what's left so the
+            // caller still hears how this ended
+            for (Map.Entry<Account, String> entry : statuses.entrySet()) {
+                if (entry.getValue() == null) {
+                    settle(entry.getKey(), STATUS_NOT_STARTED);
+                }
+            }
+            finish();
+            return;
+        }
+        update(false);
+    }
+
+    /**
+     * Stops listening, the listener isn't called anymore. The requested syncs keep running.
+     */
+    public synchronized void cancel() {
+        finished = true;
+        unreported.clear();
+        unreportedFinish = null;
+        stop();
+    }
+
+    private void check(boolean timedOut) {
+        synchronized (this) {
+            update(timedOut);
+        }
+        report();
+    }
+
+    // callers hold the lock
+    private void update(boolean timedOut) {
+        if (finished) {
+            return;
+        }
+        final boolean graceOver = System.nanoTime() - startNanos >= START_GRACE_MILLIS * 1000000L;
+        for (Map.Entry<Account, String> entry : statuses.entrySet()) {
+            if (entry.getValue() != null) {
+                continue;
+            }
+            final Account account = entry.getKey();
+            final boolean syncing;
+            try {
+                syncing = ContentResolver.isSyncPending(account, authority) || ContentResolver.isSyncActive(account, authority);
+            } catch (SecurityException e) {
+                Log.w(LOG_TAG, "Can't read the sync state of " + account.type, e);
+                settle(account, STATUS_NOT_STARTED);
+                continue;
+            }
+            if (syncing) {
+                started.put(account, true);
+            }
+            if (timedOut && syncing) {
+                settle(account, STATUS_TIMED_OUT);
+            } else if (!syncing && started.get(account)) {
+                settle(account, STATUS_SYNCED);
+            } else if (!syncing && (graceOver || timedOut)) {
+                settle(account, STATUS_NOT_STARTED);
+            }
+        }
+        if (!statuses.containsValue(null)) {
+            finish();
+        }
+    }
+
+    // callers hold the lock
+    private void finish() {
+        finished = true;
+        stop();
+        unreportedFinish = new LinkedHashMap<Account, String>(statuses);
+    }
+
+    private void settle(Account account, String status) {
+        statuses.put(account, status);
+        unreported.put(account, status);
+    }
+
+    // tells the listener what was settled since the last report, without holding the lock of this
+    private void report() {
+        synchronized (reportLock) {
+            final Map<Account, String> settled;
+            final Map<Account, String> finish;
+            synchronized (this) {
+                settled = new LinkedHashMap<Account, String>(unreported);
+                unreported.clear();
+                finish = unreportedFinish;
+                unreportedFinish = null;
+            }
+            for (Map.Entry<Account, String> entry : settled.entrySet()) {
+                listener.onAccountSynced(entry.getKey(), entry.getValue());
+            }
+            if (finish != null) {
+                listener.onFinished(finish);
+            }
+        }
+    }
+
+    private void stop() {
+        if (observerHandle != null) {
+            ContentResolver.removeStatusChangeListener(observerHandle);
+            observerHandle = null;
+        }
+        if (graceCheck != null) {
+            graceCheck.cancel(false);
+        }
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package nl.xservices.plugins;
+
+import android.net.Uri;
+import android.provider.CalendarContract;
+
+/**
+ * The uris the plugin reaches the calendar provider through.
+ * <p>
+ * They point to the CalendarContract provider, unless a test switches them to a stand-in provider (with the same
+ * paths) by calling {@link #setAuthority}, so the plugin can be load tested without a device calendar account.
+ */
+public final class CalendarUris {
+
+    private static volatile Uris sUris = new Uris(CalendarContract.AUTHORITY);
+
+    private CalendarUris() {
+    }
+
+    public static String getAuthority() {
+        return sUris.authority;
+    }
+
+    /**
+     * @param authority the authority of the provider to use from now on, null for the CalendarContract provider
+     */
+    public static void setAuthority(String authority) {
+        sUris = new Uris(authority != null ? authority : CalendarContract.AUTHORITY);
+    }
+
+    public static Uri events() {
+        return sUris.events;
+    }
+
+    public static Uri instances() {
+        return sUris.instances;
+    }
+
+    /**
+     * The instances overlapping [begin, end], the provider expands recurring events for this range.
+     */
+    public static Uri instances(long begin, long end) {
+        return Uri.parse(sUris.instances + "/" + begin + "/" + end);
+    }
+
+    public static Uri calendars() {
+        return sUris.calendars;
+    }
+
+    public static Uri reminders() {
+        return sUris.reminders;
+    }
+
+    public static Uri attendees() {
+        return sUris.attendees;
+    }
+
+    private static final class Uris {
+        private final String authority;
+        private final Uri events;
+        private final Uri instances;
+        private final Uri calendars;
+        private final Uri reminders;
+        private final Uri attendees;
+
+        private Uris(String authority) {
+            this.authority = authority;
+            if (CalendarContract.AUTHORITY.equals(authority)) {
+                events = CalendarContract.Events.CONTENT_URI;
+                instances = CalendarContract.Instances.CONTENT_URI;
+                calendars = CalendarContract.Calendars.CONTENT_URI;
+                reminders = CalendarContract.Reminders.CONTENT_URI;
+                attendees = CalendarContract.Attendees.CONTENT_URI;
+            } else {
+                final String base = "content://" + authority + "/";
+                events = Uri.parse(base + "events");
+                instances = Uri.parse(base + "instances/when");
+                calendars = Uri.parse(base + "calendars");
+                reminders = Uri.parse(base + "reminders");
+                attendees = Uri.parse(base + "attendees");
+            }
+        }
+    }
+}
@@ -2,81 +2,137 @@ package nl.xservices.plugins;
 
 import android.graphics.Color;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * Maps calendar and event colors to the colors the stock calendar app displays.
+ * <p>
+ * This runs for every row of a listing, so the lookups don't box or allocate: the palette is kept in primitive
+ * open addressing tables, colors outside of it are adjusted once and remembered in a small LRU, and the hex
+ * strings of all of them are created once.
+ */
 public final class CalendarUtils {
 
-    private static final Map<Integer, Integer> sUpdatedColors;
+    // a power of two, at least twice the number of palette colors so probe sequences stay short
+    private static final int TABLE_SIZE = 128;
+
+    // the colors of the old palette, mapped to their updated variant
+    private static final int[] sUpdatedKeys = new int[TABLE_SIZE];
+    private static final int[] sUpdatedValues = new int[TABLE_SIZE];
+    private static final boolean[] sUpdatedUsed = new boolean[TABLE_SIZE];
+
+    // the updated colors, which are displayed as they are, with their hex string (null for an empty slot)
+    private static final int[] sDisplayColors = new int[TABLE_SIZE];
+    private static final String[] sDisplayColorHex = new String[TABLE_SIZE];
+
+    // colors outside of the palette, a 2-way set associative LRU: a set evicts the least recently used of its two entries
+    private static final int MEMO_SETS = 32;
+    private static final int[] sMemoKeys = new int[MEMO_SETS * 2];
+    private static final int[] sMemoColors = new int[MEMO_SETS * 2];
+    private static final String[] sMemoHex = new String[MEMO_SETS * 2];
+    private static final int[] sMemoEvict = new int[MEMO_SETS];
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     static {
-        Map hashMap = new HashMap();
-        sUpdatedColors = hashMap;
-        hashMap.put(-509406, -2818048);
-        sUpdatedColors.put(-370884, -765666);
-        sUpdatedColors.put(-35529, -1086464);
-        sUpdatedColors.put(-21178, -1010944);
-        sUpdatedColors.put(-339611, -606426);
-        sUpdatedColors.put(-267901, -1784767);
-        sUpdatedColors.put(-4989844, -4142541);
-        sUpdatedColors.put(-8662712, -8604862);
-        sUpdatedColors.put(-15292571, -16023485);
-        sUpdatedColors.put(-12396910, -16738680);
-        sUpdatedColors.put(-7151168, -13388167);
-        sUpdatedColors.put(-6299161, -16540699);
-        sUpdatedColors.put(-6306073, -12417548);
-        sUpdatedColors.put(-11958553, -12627531);
-        sUpdatedColors.put(-6644481, -8812853);
-        sUpdatedColors.put(-4613377, -5005861);
-        sUpdatedColors.put(-5997854, -6395473);
-        sUpdatedColors.put(-3312410, -7461718);
-        sUpdatedColors.put(-3365204, -5434281);
-        sUpdatedColors.put(-618062, -2614432);
-        sUpdatedColors.put(-3118236, -1672077);
-        sUpdatedColors.put(-5475746, -8825528);
-        sUpdatedColors.put(-4013374, -10395295);
-        sUpdatedColors.put(-3490369, -5792882);
-        sUpdatedColors.put(-2350809, -2818048);
-        sUpdatedColors.put(-18312, -765666);
-        sUpdatedColors.put(-272549, -606426);
-        sUpdatedColors.put(-11421879, -16023485);
-        sUpdatedColors.put(-8722497, -13388167);
-        sUpdatedColors.put(-12134693, -16540699);
-        sUpdatedColors.put(-11238163, -12627531);
-        sUpdatedColors.put(-5980676, -8812853);
-        sUpdatedColors.put(-2380289, -7461718);
-        sUpdatedColors.put(-30596, -1672077);
-        sUpdatedColors.put(-1973791, -10395295);
-        sUpdatedColors.put(-2883584, -2818048);
-        sUpdatedColors.put(-831459, -765666);
-        sUpdatedColors.put(-1152256, -1086464);
-        sUpdatedColors.put(-1076736, -1010944);
-        sUpdatedColors.put(-672219, -606426);
-        sUpdatedColors.put(-1914036, -1784767);
-        sUpdatedColors.put(-4208334, -4142541);
-        sUpdatedColors.put(-8670655, -8604862);
-        sUpdatedColors.put(-16089278, -16023485);
-        sUpdatedColors.put(-16738937, -16738680);
-        sUpdatedColors.put(-16606492, -16540699);
-        sUpdatedColors.put(-12483341, -12417548);
-        sUpdatedColors.put(-12624727, -12627531);
-        sUpdatedColors.put(-8878646, -8812853);
-        sUpdatedColors.put(-5071654, -5005861);
-        sUpdatedColors.put(-7527511, -7461718);
-        sUpdatedColors.put(-5500074, -5434281);
-        sUpdatedColors.put(-2680225, -2614432);
-        sUpdatedColors.put(-1737870, -1672077);
-        sUpdatedColors.put(-8891321, -8825528);
-        sUpdatedColors.put(-10263709, -10395295);
+        put(-509406, -2818048);
+        put(-370884, -765666);
+        put(-35529, -1086464);
+        put(-21178, -1010944);
+        put(-339611, -606426);
+        put(-267901, -1784767);
+        put(-4989844, -4142541);
+        put(-8662712, -8604862);
+        put(-15292571, -16023485);
+        put(-12396910, -16738680);
+        put(-7151168, -13388167);
+        put(-6299161, -16540699);
+        put(-6306073, -12417548);
+        put(-11958553, -12627531);
+        put(-6644481, -8812853);
+        put(-4613377, -5005861);
+        put(-5997854, -6395473);
+        put(-3312410, -7461718);
+        put(-3365204, -5434281);
+        put(-618062, -2614432);
+        put(-3118236, -1672077);
+        put(-5475746, -8825528);
+        put(-4013374, -10395295);
+        put(-3490369, -5792882);
+        put(-2350809, -2818048);
+        put(-18312, -765666);
+        put(-272549, -606426);
+        put(-11421879, -16023485);
+        put(-8722497, -13388167);
+        put(-12134693, -16540699);
+        put(-11238163, -12627531);
+        put(-5980676, -8812853);
+        put(-2380289, -7461718);
+        put(-30596, -1672077);
+        put(-1973791, -10395295);
+        put(-2883584, -2818048);
+        put(-831459, -765666);
+        put(-1152256, -1086464);
+        put(-1076736, -1010944);
+        put(-672219, -606426);
+        put(-1914036, -1784767);
+        put(-4208334, -4142541);
+        put(-8670655, -8604862);
+        put(-16089278, -16023485);
+        put(-16738937, -16738680);
+        put(-16606492, -16540699);
+        put(-12483341, -12417548);
+        put(-12624727, -12627531);
+        put(-8878646, -8812853);
+        put(-5071654, -5005861);
+        put(-7527511, -7461718);
+        put(-5500074, -5434281);
+        put(-2680225, -2614432);
+        put(-1737870, -1672077);
+        put(-8891321, -8825528);
+        put(-10263709, -10395295);
+    }
+
+    private CalendarUtils() {
     }
 
     public static int getDisplayColor(int color) {
-        if (sUpdatedColors.containsKey(color)) {
-            return (sUpdatedColors.get(color));
+        final int updated = indexOf(sUpdatedKeys, sUpdatedUsed, color);
+        if (updated != -1) {
+            return sUpdatedValues[updated];
         }
-        if (sUpdatedColors.containsValue(color)) {
+        if (indexOfDisplayColor(color) != -1) {
             return color;
         }
+        synchronized (sMemoKeys) {
+            return sMemoColors[memoize(color)];
+        }
+    }
+
+    public static String getDisplayColorHex(int color) {
+        final int updated = indexOf(sUpdatedKeys, sUpdatedUsed, color);
+        final int displayColor = indexOfDisplayColor(updated != -1 ? sUpdatedValues[updated] : color);
+        if (displayColor != -1) {
+            return sDisplayColorHex[displayColor];
+        }
+        synchronized (sMemoKeys) {
+            return sMemoHex[memoize(color)];
+        }
+    }
+
+    /**
+     * Returns "#RRGGBB" for the color, ignoring its alpha.
+     */
+    static String toHex(int color) {
+        final char[] hex = new char[7];
+        hex[0] = '#';
+        for (int i = 6; i > 0; i--) {
+            hex[i] = HEX_DIGITS[color & 0xF];
+            color >>>= 4;
+        }
+        return new String(hex);
+    }
+
+    // a color which isn't in the palette gets more saturated and darker when it's very bright
+    private static int adjust(int color) {
         float[] fArr = new float[3];
         Color.colorToHSV(color, fArr);
         if (fArr[2] > 0.79f) {
@@ -86,7 +142,71 @@ public final class CalendarUtils {
         return Color.HSVToColor(Color.alpha(color), fArr);
     }
 
-    public static String getDisplayColorHex(int color) {
-        return String.format("#%06X", 0xFFFFFF & CalendarUtils.getDisplayColor(color));
+    /**
+     * Returns the memo slot holding the adjusted color, computing it if needed. Callers hold the lock on sMemoKeys.
+     */
+    private static int memoize(int color) {
+        final int set = slot(color) & (MEMO_SETS - 1);
+        final int first = set * 2;
+        for (int way = 0; way < 2; way++) {
+            if (sMemoHex[first + way] != null && sMemoKeys[first + way] == color) {
+                sMemoEvict[set] = 1 - way;
+                return first + way;
+            }
+        }
+        final int way = sMemoEvict[set];
+        final int adjusted = adjust(color);
+        sMemoKeys[first + way] = color;
+        sMemoColors[first + way] = adjusted;
+        sMemoHex[first + way] = toHex(adjusted);
+        sMemoEvict[set] = 1 - way;
+        return first + way;
+    }
+
+    private static void put(int color, int updatedColor) {
+        int i = slot(color);
+        while (sUpdatedUsed[i]) {
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        sUpdatedUsed[i] = true;
+        sUpdatedKeys[i] = color;
+        sUpdatedValues[i] = updatedColor;
+
+        if (indexOfDisplayColor(updatedColor) == -1) {
+            int d = slot(updatedColor);
+            while (sDisplayColorHex[d] != null) {
+                d = (d + 1) & (TABLE_SIZE - 1);
+            }
+            sDisplayColors[d] = updatedColor;
+            sDisplayColorHex[d] = toHex(updatedColor);
+        }
+    }
+
+    private static int indexOf(int[] keys, boolean[] used, int color) {
+        int i = slot(color);
+        while (used[i]) {
+            if (keys[i] == color) {
+                return i;
+            }
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    private static int indexOfDisplayColor(int color) {
+        int i = slot(color);
+        while (sDisplayColorHex[i] != null) {
+            if (sDisplayColors[i] == color) {
+                return i;
+            }
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    // colors of a palette differ in few bits, so spread them before masking
+    private static int slot(int color) {
+        final int h = color * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (TABLE_SIZE - 1);
     }
-}
\ No newline at end of file
+}
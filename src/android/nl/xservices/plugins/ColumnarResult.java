@@ -0,0 +1,69 @@
+package nl.xservices.plugins;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Collects rows in a compact column oriented shape: one header array with the column names
+ * and one value array per column, so the keys aren't repeated for every row that crosses the bridge.
+ * <p>
+ * JSON shape: {"columns": ["calendar_id", "id", ..], "values": [[..], [..], ..], "length": 2}
+ */
+public final class ColumnarResult {
+
+    private final String[] columns;
+    private final JSONArray[] values;
+    private int length;
+
+    public ColumnarResult(String... columns) {
+        this.columns = columns;
+        this.values = new JSONArray[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            values[c] = new JSONArray();
+        }
+    }
+
+    public void addRow(Object... row) {
+        for (int c = 0; c < columns.length; c++) {
+            values[c].put(row[c]);
+        }
+        length++;
+    }
+
+    /**
+     * @return the index of the column, or -1 when there's no such column
+     */
+    public int indexOf(String column) {
+        for (int c = 0; c < columns.length; c++) {
+            if (columns[c].equals(column)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces a value of a row which was added before, for values which are only known once all rows are there.
+     */
+    public void set(int column, int row, Object value) throws JSONException {
+        values[column].put(row, value);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public JSONObject toJSONObject() throws JSONException {
+        JSONArray header = new JSONArray();
+        JSONArray body = new JSONArray();
+        for (int c = 0; c < columns.length; c++) {
+            header.put(columns[c]);
+            body.put(values[c]);
+        }
+        return new JSONObject()
+                .put("columns", header)
+                .put("values", body)
+                .put("length", length);
+    }
+}
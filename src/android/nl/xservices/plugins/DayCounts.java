@@ -0,0 +1,154 @@
+package nl.xservices.plugins;
+
+import android.database.Cursor;
+import android.util.LongSparseArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static android.provider.CalendarContract.Instances;
+
+/**
+ * Counts the instances of every day of a range, for countEventsByDay, so a heatmap of a year is one array of numbers
+ * instead of every event. An instance counts for every local day it overlaps, all day instances (stored from midnight
+ * to midnight UTC) are moved to local midnight first.
+ */
+public final class DayCounts {
+
+    /**
+     * The columns the cursor passed to {@link #read} needs to have.
+     */
+    public static final String[] COLUMNS = {Instances.BEGIN, Instances.END, Instances.ALL_DAY, Instances.CALENDAR_ID};
+
+    // the local midnights of the days, plus the end of the last day
+    private final long[] midnights;
+    private final int[] counts;
+    private final LongSparseArray<int[]> calendarCounts;
+
+    /**
+     * @param byCalendar whether to count the instances of every calendar separately as well
+     */
+    public DayCounts(long start, long end, boolean byCalendar) {
+        final Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(start);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        long[] bounds = new long[32];
+        int size = 0;
+        do {
+            if (size == bounds.length) {
+                bounds = Arrays.copyOf(bounds, size * 2);
+            }
+            bounds[size++] = day.getTimeInMillis();
+            // adding a day rather than 24 hours, so the days the clock changes on start at midnight as well
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        } while (bounds[size - 1] < end);
+        this.midnights = Arrays.copyOf(bounds, size);
+        this.counts = new int[size - 1];
+        this.calendarCounts = byCalendar ? new LongSparseArray<int[]>() : null;
+    }
+
+    /**
+     * @return the local midnight the first day starts at, the range to query the instances of starts there
+     */
+    public long getStart() {
+        return midnights[0];
+    }
+
+    /**
+     * @return the end of the last day
+     */
+    public long getEnd() {
+        return midnights[midnights.length - 1];
+    }
+
+    /**
+     * Counts the instances in the cursor, in any order. Closes the cursor.
+     *
+     * @return the number of instances read
+     */
+    public int read(Cursor cursor) {
+        if (cursor == null) {
+            return 0;
+        }
+        int rows = 0;
+        try {
+            final TimeZone timeZone = TimeZone.getDefault();
+            final int beginIndex = cursor.getColumnIndex(Instances.BEGIN);
+            final int endIndex = cursor.getColumnIndex(Instances.END);
+            final int allDayIndex = cursor.getColumnIndex(Instances.ALL_DAY);
+            final int calendarIdIndex = cursor.getColumnIndex(Instances.CALENDAR_ID);
+            while (cursor.moveToNext()) {
+                rows++;
+                long begin = cursor.getLong(beginIndex);
+                long end = cursor.getLong(endIndex);
+                if (cursor.getInt(allDayIndex) == 1) {
+                    begin -= timeZone.getOffset(begin);
+                    end -= timeZone.getOffset(end);
+                }
+                int[] perCalendar = null;
+                if (calendarCounts != null) {
+                    final long calendarId = cursor.getLong(calendarIdIndex);
+                    perCalendar = calendarCounts.get(calendarId);
+                    if (perCalendar == null) {
+                        perCalendar = new int[counts.length];
+                        calendarCounts.put(calendarId, perCalendar);
+                    }
+                }
+                // an instance which ends at midnight doesn't count for the next day, one without a duration counts
+                // for the day it's at
+                final int firstDay = Math.max(0, dayOf(begin));
+                final int lastDay = Math.min(counts.length - 1, dayOf(Math.max(begin, end - 1)));
+                for (int d = firstDay; d <= lastDay; d++) {
+                    counts[d]++;
+                    if (perCalendar != null) {
+                        perCalendar[d]++;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    // the index of the day the time falls in, -1 before the first day and counts.length from the end of the last one
+    private int dayOf(long time) {
+        final int position = Arrays.binarySearch(midnights, time);
+        return position >= 0 ? position : -position - 2;
+    }
+
+    /**
+     * @return {startTime: the first midnight, days: n, counts: [n numbers], calendars: {calendarId: [n numbers]}}, the
+     * calendars only when counted by calendar
+     */
+    public JSONObject toJSONObject() throws JSONException {
+        final JSONObject result = new JSONObject()
+                .put("startTime", midnights[0])
+                .put("days", counts.length)
+                .put("counts", toJSONArray(counts));
+        if (calendarCounts != null) {
+            final JSONObject calendars = new JSONObject();
+            for (int i = 0; i < calendarCounts.size(); i++) {
+                calendars.put(String.valueOf(calendarCounts.keyAt(i)), toJSONArray(calendarCounts.valueAt(i)));
+            }
+            result.put("calendars", calendars);
+        }
+        return result;
+    }
+
+    private static JSONArray toJSONArray(int[] values) {
+        final JSONArray array = new JSONArray();
+        for (int value : values) {
+            array.put(value);
+        }
+        return array;
+    }
+}
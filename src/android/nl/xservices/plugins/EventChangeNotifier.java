@@ -0,0 +1,299 @@
+package nl.xservices.plugins;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import static android.provider.CalendarContract.Events;
+
+/**
+ * Tells subscribeEventChanges about changes to the events, without the app having to poll.
+ * <p>
+ * The provider notifies an observer for every single write, a sync easily makes hundreds of them in a row. So a
+ * notification only (re)starts a timer: once the provider has been quiet for the debounce time the current events
+ * are compared with an in-memory snapshot (ids plus a hash of their columns, like {@link EventChangeTracker}), and
+ * the listener gets one change for the lot. A burst which doesn't settle is still reported every
+ * {@link #MAX_DEBOUNCES} debounce times. Notifications which didn't change any event (like the provider updating
+ * its instances) aren't reported at all.
+ */
+public final class EventChangeNotifier {
+
+    /**
+     * Queries the provider for the current, non-deleted events, with {@link #COLUMNS} in {@link #SORT_ORDER}.
+     */
+    public interface Loader {
+        Cursor load();
+    }
+
+    /**
+     * Gets the coalesced changes (on a worker thread):
+     * {startTime, endTime, inserted: [ids], updated: [ids], deleted: [ids]}, where startTime and endTime are
+     * the range the changed events occupied before or after the change (in millis, UTC for all day events),
+     * endTime is null when a changed event recurs forever.
+     */
+    public interface Listener {
+        void onEventsChanged(JSONObject change);
+    }
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 1000;
+    public static final int MAX_DEBOUNCES = 10;
+
+    /**
+     * The columns the cursor of the {@link Loader} needs to have.
+     */
+    public static final String[] COLUMNS = new String[EventChangeTracker.COLUMNS.length + 1];
+
+    static {
+        System.arraycopy(EventChangeTracker.COLUMNS, 0, COLUMNS, 0, EventChangeTracker.COLUMNS.length);
+        COLUMNS[EventChangeTracker.COLUMNS.length] = Events.LAST_DATE;
+    }
+
+    public static final String SORT_ORDER = Events._ID + " ASC";
+
+    private static final String LOG_TAG = EventChangeNotifier.class.getCanonicalName();
+
+    private final CalendarExecutor executor;
+    private final Loader loader;
+    private final Listener listener;
+
+    // guarded by this
+    private boolean started;
+    private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+    private ScheduledFuture<?> pendingCompare;
+    private long burstStartNanos;
+
+    // guarded by the snapshotLock, null while stopped
+    private final Object snapshotLock = new Object();
+    private Snapshot snapshot;
+
+    private final ContentObserver observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            changed();
+        }
+    };
+
+    private final Runnable compareLater = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (EventChangeNotifier.this) {
+                pendingCompare = null;
+                if (!started) {
+                    return;
+                }
+            }
+            try {
+                executor.read(compare);
+            } catch (RejectedExecutionException e) {
+                // nothing gets lost, the next compare reports these changes as well
+                Log.w(LOG_TAG, "Too many pending calendar queries, not comparing the events yet", e);
+            }
+        }
+    };
+
+    private final Runnable compare = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                final JSONObject change = compare();
+                if (change != null) {
+                    listener.onEventsChanged(change);
+                }
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Can't compare the events", e);
+            }
+        }
+    };
+
+    public EventChangeNotifier(CalendarExecutor executor, Loader loader, Listener listener) {
+        this.executor = executor;
+        this.loader = loader;
+        this.listener = listener;
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Starts observing the events, and takes the snapshot later changes are compared with. This queries the
+     * provider, so don't call it on the main thread. Calling it again only registers the observer again
+     * (with another provider, in tests) and takes a new snapshot.
+     */
+    public void start(ContentResolver contentResolver, Uri events) {
+        synchronized (this) {
+            contentResolver.unregisterContentObserver(observer);
+            contentResolver.registerContentObserver(events, true, observer);
+            started = true;
+        }
+        synchronized (snapshotLock) {
+            snapshot = read(loader.load());
+        }
+    }
+
+    public void stop(ContentResolver contentResolver) {
+        synchronized (this) {
+            contentResolver.unregisterContentObserver(observer);
+            started = false;
+            if (pendingCompare != null) {
+                pendingCompare.cancel(false);
+                pendingCompare = null;
+            }
+        }
+        synchronized (snapshotLock) {
+            snapshot = null;
+        }
+    }
+
+    /**
+     * @param debounceMillis how long the provider has to be quiet before its changes are reported
+     */
+    public synchronized void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = Math.max(0, debounceMillis);
+    }
+
+    private synchronized void changed() {
+        if (!started) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (pendingCompare == null) {
+            burstStartNanos = now;
+        } else if (now - burstStartNanos >= MAX_DEBOUNCES * debounceMillis * 1000000L) {
+            // the pending compare goes ahead, otherwise a steady trickle of changes would never be reported
+            return;
+        } else {
+            pendingCompare.cancel(false);
+        }
+        try {
+            pendingCompare = executor.schedule(compareLater, debounceMillis);
+        } catch (RejectedExecutionException e) {
+            // the plugin is being destroyed
+            pendingCompare = null;
+        }
+    }
+
+    /**
+     * @return the changes since the previous compare, null when nothing changed
+     */
+    private JSONObject compare() throws JSONException {
+        synchronized (snapshotLock) {
+            final Snapshot before = snapshot;
+            if (before == null) {
+                return null;
+            }
+            final Snapshot after = read(loader.load());
+            snapshot = after;
+
+            final JSONArray inserted = new JSONArray();
+            final JSONArray updated = new JSONArray();
+            final JSONArray deleted = new JSONArray();
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+            // both are sorted by id, so they can be merged in one pass
+            int b = 0;
+            int a = 0;
+            while (b < before.size || a < after.size) {
+                if (a == after.size || (b < before.size && before.ids[b] < after.ids[a])) {
+                    deleted.put(String.valueOf(before.ids[b]));
+                    start = Math.min(start, before.begins[b]);
+                    end = Math.max(end, before.ends[b]);
+                    b++;
+                } else if (b == before.size || after.ids[a] < before.ids[b]) {
+                    inserted.put(String.valueOf(after.ids[a]));
+                    start = Math.min(start, after.begins[a]);
+                    end = Math.max(end, after.ends[a]);
+                    a++;
+                } else {
+                    if (before.hashes[b] != after.hashes[a]) {
+                        updated.put(String.valueOf(after.ids[a]));
+                        start = Math.min(start, Math.min(before.begins[b], after.begins[a]));
+                        end = Math.max(end, Math.max(before.ends[b], after.ends[a]));
+                    }
+                    a++;
+                    b++;
+                }
+            }
+            if (start == Long.MAX_VALUE) {
+                return null;
+            }
+            return new JSONObject()
+                    .put("startTime", start)
+                    .put("endTime", end == Long.MAX_VALUE ? JSONObject.NULL : end)
+                    .put("inserted", inserted)
+                    .put("updated", updated)
+                    .put("deleted", deleted);
+        }
+    }
+
+    private static Snapshot read(Cursor cursor) {
+        final Snapshot snapshot = new Snapshot(16);
+        if (cursor == null) {
+            return snapshot;
+        }
+        try {
+            final int idIndex = cursor.getColumnIndex(Events._ID);
+            final int dtstartIndex = cursor.getColumnIndex(Events.DTSTART);
+            final int dtendIndex = cursor.getColumnIndex(Events.DTEND);
+            final int lastDateIndex = cursor.getColumnIndex(Events.LAST_DATE);
+            final int rruleIndex = cursor.getColumnIndex(Events.RRULE);
+            final int[] hashedIndices = EventChangeTracker.getHashedIndices(cursor);
+            while (cursor.moveToNext()) {
+                final long begin = cursor.isNull(dtstartIndex) ? 0 : cursor.getLong(dtstartIndex);
+                final long end;
+                if (!cursor.isNull(lastDateIndex)) {
+                    end = cursor.getLong(lastDateIndex);
+                } else if (cursor.isNull(rruleIndex)) {
+                    end = cursor.isNull(dtendIndex) ? begin : cursor.getLong(dtendIndex);
+                } else {
+                    // a recurring event without a last date recurs forever
+                    end = Long.MAX_VALUE;
+                }
+                snapshot.add(cursor.getLong(idIndex), EventChangeTracker.hashRow(cursor, hashedIndices), begin, end);
+            }
+        } finally {
+            cursor.close();
+        }
+        return snapshot;
+    }
+
+    private static final class Snapshot {
+        private long[] ids;
+        private long[] hashes;
+        private long[] begins;
+        private long[] ends;
+        private int size;
+
+        private Snapshot(int capacity) {
+            ids = new long[capacity];
+            hashes = new long[capacity];
+            begins = new long[capacity];
+            ends = new long[capacity];
+        }
+
+        private void add(long id, long hash, long begin, long end) {
+            if (size == ids.length) {
+                final int capacity = Math.max(16, size * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                hashes = Arrays.copyOf(hashes, capacity);
+                begins = Arrays.copyOf(begins, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            ids[size] = id;
+            hashes[size] = hash;
+            begins[size] = begin;
+            ends[size] = end;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package nl.xservices.plugins;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static android.provider.CalendarContract.Events;
+
+/**
+ * Tells which events were inserted, updated or deleted since a previous call, for listEventChangesSince.
+ * <p>
+ * The provider doesn't keep a modification time for events, so the tracker keeps the state of every calendar: the
+ * sorted event ids plus a hash of their columns. Comparing the current events with that state yields the changes, a
+ * calendar whose aggregate hash didn't change is skipped altogether. Every call which finds changes starts a new
+ * generation, and every event remembers the generation it was inserted and last updated in, deleted events are kept
+ * as tombstones with the generation they were deleted in. A token is a generation, so any token handed out can be
+ * answered (by several callers each tracking their own), not just the latest one. The state is persisted in the
+ * files dir, so tokens survive an app restart.
+ * <p>
+ * Only the most recent {@link #MAX_TOMBSTONES} deletes are kept: passing a token from before the oldest of them
+ * (or an unknown one) results in a reset, after which the caller needs to reload everything.
+ */
+public final class EventChangeTracker {
+
+    private static final int FILE_VERSION = 2;
+
+    private static final int MAX_TOMBSTONES = 10000;
+
+    // any change to these columns is reported as an update. Dirty isn't, it's cleared by every sync
+    private static final String[] HASHED_COLUMNS = {
+            Events.TITLE, Events.DESCRIPTION, Events.EVENT_LOCATION, Events.DTSTART, Events.DTEND, Events.DURATION,
+            Events.EVENT_TIMEZONE, Events.ALL_DAY, Events.RRULE, Events.RDATE, Events.EXDATE, Events.EVENT_COLOR,
+            Events.AVAILABILITY, Events.STATUS, Events.HAS_ALARM
+    };
+
+    /**
+     * The columns the cursor passed to {@link #changesSince} needs to have.
+     */
+    public static final String[] COLUMNS = new String[HASHED_COLUMNS.length + 2];
+
+    static {
+        COLUMNS[0] = Events._ID;
+        COLUMNS[1] = Events.CALENDAR_ID;
+        System.arraycopy(HASHED_COLUMNS, 0, COLUMNS, 2, HASHED_COLUMNS.length);
+    }
+
+    /**
+     * The order the cursor passed to {@link #changesSince} needs to be in.
+     */
+    public static final String SORT_ORDER = Events.CALENDAR_ID + " ASC, " + Events._ID + " ASC";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // marks the events of a generation which weren't there before, until they're told apart from moved ones
+    private static final long PENDING = -1;
+
+    private static final String LOG_TAG = EventChangeTracker.class.getCanonicalName();
+
+    private final File file;
+    private final Random random = new Random();
+
+    // loaded from file on first use, null when there's no state yet
+    private State state;
+    private boolean loaded;
+
+    public EventChangeTracker(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Compares the events in the cursor (the current, non-deleted events, see {@link #COLUMNS} and {@link #SORT_ORDER})
+     * with the state so far, and tells what changed since the generation of the passed token.
+     *
+     * @param token a token returned by a previous call, null to start tracking
+     * @return {token, reset, inserted: [ids], updated: [ids], deleted: [ids]}, when reset is true the token wasn't
+     * (or no longer) known and the lists are empty
+     */
+    public synchronized JSONObject changesSince(String token, Cursor cursor) throws JSONException {
+        final Map<Long, CalendarSnapshot> current = read(cursor);
+        if (!loaded) {
+            state = load();
+            loaded = true;
+        }
+        if (state == null) {
+            // everything there is now is the first generation
+            state = new State(random.nextLong());
+            for (CalendarSnapshot calendar : current.values()) {
+                calendar.setGeneration(0);
+            }
+            state.calendars.putAll(current);
+            save(state);
+        } else if (update(state, current)) {
+            save(state);
+        }
+
+        final long since = state.parseToken(token);
+        final boolean reset = since < 0;
+        final Set<Long> inserted = new TreeSet<Long>();
+        final Set<Long> updated = new TreeSet<Long>();
+        final Set<Long> deleted = new TreeSet<Long>();
+        if (!reset) {
+            for (CalendarSnapshot calendar : state.calendars.values()) {
+                if (calendar.lastChanged <= since) {
+                    continue;
+                }
+                for (int i = 0; i < calendar.size; i++) {
+                    if (calendar.insertedIn[i] > since) {
+                        inserted.add(calendar.ids[i]);
+                    } else if (calendar.changedIn[i] > since) {
+                        updated.add(calendar.ids[i]);
+                    }
+                }
+            }
+            for (Map.Entry<Long, long[]> tombstone : state.tombstones.entrySet()) {
+                // events which came and went since are of no concern to the caller
+                if (tombstone.getValue()[1] > since && tombstone.getValue()[0] <= since) {
+                    deleted.add(tombstone.getKey());
+                }
+            }
+        }
+
+        return new JSONObject()
+                .put("token", state.getToken())
+                .put("reset", reset)
+                .put("inserted", toJSONArray(inserted))
+                .put("updated", toJSONArray(updated))
+                .put("deleted", toJSONArray(deleted));
+    }
+
+    /**
+     * Makes the current events the state, the changes are recorded in a new generation.
+     *
+     * @return whether anything changed
+     */
+    private static boolean update(State state, Map<Long, CalendarSnapshot> current) {
+        final long generation = state.generation + 1;
+        // the events which are gone from their calendar, with the generation they were inserted in
+        final Map<Long, Long> removed = new HashMap<Long, Long>();
+        final List<CalendarSnapshot> changed = new ArrayList<CalendarSnapshot>();
+        boolean updated = false;
+        final Set<Long> calendarIds = new LinkedHashSet<Long>(state.calendars.keySet());
+        calendarIds.addAll(current.keySet());
+        for (Long calendarId : calendarIds) {
+            final CalendarSnapshot before = state.calendars.get(calendarId);
+            final CalendarSnapshot after = current.get(calendarId);
+            if (after == null) {
+                for (int i = 0; i < before.size; i++) {
+                    removed.put(before.ids[i], before.insertedIn[i]);
+                }
+                state.calendars.remove(calendarId);
+            } else if (before != null && before.size == after.size && before.hash == after.hash) {
+                // nothing changed, the generations of before still apply
+            } else {
+                updated |= merge(before, after, generation, removed);
+                changed.add(after);
+                state.calendars.put(calendarId, after);
+            }
+        }
+
+        for (CalendarSnapshot calendar : changed) {
+            for (int i = 0; i < calendar.size; i++) {
+                if (calendar.insertedIn[i] != PENDING) {
+                    continue;
+                }
+                // an event which moved to another calendar is removed from one and added to the other
+                final Long insertedIn = removed.remove(calendar.ids[i]);
+                calendar.insertedIn[i] = insertedIn != null ? insertedIn : generation;
+                calendar.changedIn[i] = generation;
+                calendar.lastChanged = generation;
+                state.tombstones.remove(calendar.ids[i]);
+                updated = true;
+            }
+        }
+        for (Map.Entry<Long, Long> entry : removed.entrySet()) {
+            state.tombstones.put(entry.getKey(), new long[]{entry.getValue(), generation});
+            updated = true;
+        }
+        state.pruneTombstones();
+        if (updated) {
+            state.generation = generation;
+        }
+        return updated;
+    }
+
+    // copies the generations of the events which were there before to after, events which are new are PENDING
+    private static boolean merge(CalendarSnapshot before, CalendarSnapshot after, long generation, Map<Long, Long> removed) {
+        boolean updated = false;
+        after.lastChanged = 0;
+        int b = 0;
+        int a = 0;
+        // both are sorted by id, so they can be merged in one pass
+        while (before != null && b < before.size || a < after.size) {
+            if (a == after.size || (before != null && b < before.size && before.ids[b] < after.ids[a])) {
+                removed.put(before.ids[b], before.insertedIn[b]);
+                b++;
+            } else if (before == null || b == before.size || after.ids[a] < before.ids[b]) {
+                after.insertedIn[a] = PENDING;
+                a++;
+            } else {
+                after.insertedIn[a] = before.insertedIn[b];
+                if (before.hashes[b] != after.hashes[a]) {
+                    after.changedIn[a] = generation;
+                    updated = true;
+                } else {
+                    after.changedIn[a] = before.changedIn[b];
+                }
+                after.lastChanged = Math.max(after.lastChanged, after.changedIn[a]);
+                a++;
+                b++;
+            }
+        }
+        return updated;
+    }
+
+    private static Map<Long, CalendarSnapshot> read(Cursor cursor) {
+        final Map<Long, CalendarSnapshot> calendars = new HashMap<Long, CalendarSnapshot>();
+        if (cursor == null) {
+            return calendars;
+        }
+        try {
+            final int idIndex = cursor.getColumnIndex(Events._ID);
+            final int calendarIdIndex = cursor.getColumnIndex(Events.CALENDAR_ID);
+            final int[] hashedIndices = getHashedIndices(cursor);
+            CalendarSnapshot calendar = null;
+            while (cursor.moveToNext()) {
+                final long calendarId = cursor.getLong(calendarIdIndex);
+                if (calendar == null || calendar.calendarId != calendarId) {
+                    calendar = new CalendarSnapshot(calendarId, 16);
+                    calendars.put(calendarId, calendar);
+                }
+                calendar.add(cursor.getLong(idIndex), hashRow(cursor, hashedIndices), 0, 0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return calendars;
+    }
+
+    /**
+     * @return the indices of the hashed columns in the cursor, for {@link #hashRow}
+     */
+    static int[] getHashedIndices(Cursor cursor) {
+        final int[] hashedIndices = new int[HASHED_COLUMNS.length];
+        for (int c = 0; c < HASHED_COLUMNS.length; c++) {
+            hashedIndices[c] = cursor.getColumnIndex(HASHED_COLUMNS[c]);
+        }
+        return hashedIndices;
+    }
+
+    /**
+     * @return a hash of the columns of the current row which tell whether an event changed
+     */
+    static long hashRow(Cursor cursor, int[] hashedIndices) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int index : hashedIndices) {
+            hash = hash(hash, index == -1 || cursor.isNull(index) ? null : cursor.getString(index));
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            // distinguishes null from ""
+            return (hash ^ 0xff) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // a separator, so ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xfe) * FNV_PRIME;
+    }
+
+    private State load() {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            final State state = new State(in.readLong());
+            state.generation = in.readLong();
+            state.oldestGeneration = in.readLong();
+            final int calendars = in.readInt();
+            for (int c = 0; c < calendars; c++) {
+                final long calendarId = in.readLong();
+                final int size = in.readInt();
+                final CalendarSnapshot calendar = new CalendarSnapshot(calendarId, size);
+                for (int i = 0; i < size; i++) {
+                    calendar.add(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                }
+                state.calendars.put(calendarId, calendar);
+            }
+            final int tombstones = in.readInt();
+            for (int t = 0; t < tombstones; t++) {
+                state.tombstones.put(in.readLong(), new long[]{in.readLong(), in.readLong()});
+            }
+            return state;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't read the event snapshot, starting over", e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private void save(State state) {
+        // write to a temporary file first, so a crash never leaves a half written snapshot behind
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(state.epoch);
+            out.writeLong(state.generation);
+            out.writeLong(state.oldestGeneration);
+            out.writeInt(state.calendars.size());
+            for (CalendarSnapshot calendar : state.calendars.values()) {
+                out.writeLong(calendar.calendarId);
+                out.writeInt(calendar.size);
+                for (int i = 0; i < calendar.size; i++) {
+                    out.writeLong(calendar.ids[i]);
+                    out.writeLong(calendar.hashes[i]);
+                    out.writeLong(calendar.insertedIn[i]);
+                    out.writeLong(calendar.changedIn[i]);
+                }
+            }
+            out.writeInt(state.tombstones.size());
+            for (Map.Entry<Long, long[]> tombstone : state.tombstones.entrySet()) {
+                out.writeLong(tombstone.getKey());
+                out.writeLong(tombstone.getValue()[0]);
+                out.writeLong(tombstone.getValue()[1]);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            // the tokens still work until the app is restarted
+            Log.w(LOG_TAG, "Can't write the event snapshot", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static JSONArray toJSONArray(Set<Long> ids) {
+        final JSONArray array = new JSONArray();
+        for (Long id : ids) {
+            array.put(String.valueOf(id));
+        }
+        return array;
+    }
+
+    /**
+     * The events of all calendars, the deleted ones and the generations so far.
+     */
+    private static final class State {
+        // tells the tokens of this state apart from those of an earlier one which was lost
+        private final long epoch;
+        private final Map<Long, CalendarSnapshot> calendars = new HashMap<Long, CalendarSnapshot>();
+        // the generations an event was inserted and deleted in, by its id
+        private final Map<Long, long[]> tombstones = new HashMap<Long, long[]>();
+        private long generation;
+        // tokens from before this generation can't be answered, their tombstones are gone
+        private long oldestGeneration;
+
+        private State(long epoch) {
+            this.epoch = epoch;
+        }
+
+        private String getToken() {
+            return Long.toString(epoch, 36) + "." + Long.toString(generation, 36);
+        }
+
+        /**
+         * @return the generation of the token, -1 when it can't be answered
+         */
+        private long parseToken(String token) {
+            final int dot = token != null ? token.indexOf('.') : -1;
+            if (dot == -1) {
+                return -1;
+            }
+            try {
+                final long tokenGeneration = Long.parseLong(token.substring(dot + 1), 36);
+                if (Long.parseLong(token.substring(0, dot), 36) != epoch
+                        || tokenGeneration < oldestGeneration || tokenGeneration > generation) {
+                    return -1;
+                }
+                return tokenGeneration;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // drops the oldest tombstones beyond MAX_TOMBSTONES
+        private void pruneTombstones() {
+            if (tombstones.size() <= MAX_TOMBSTONES) {
+                return;
+            }
+            final long[] deletedIn = new long[tombstones.size()];
+            int t = 0;
+            for (long[] tombstone : tombstones.values()) {
+                deletedIn[t++] = tombstone[1];
+            }
+            Arrays.sort(deletedIn);
+            // all tombstones of a generation go at once, a token can't be answered with only some of them
+            final long dropped = deletedIn[deletedIn.length - MAX_TOMBSTONES - 1];
+            for (Iterator<long[]> it = tombstones.values().iterator(); it.hasNext(); ) {
+                if (it.next()[1] <= dropped) {
+                    it.remove();
+                }
+            }
+            oldestGeneration = Math.max(oldestGeneration, dropped);
+        }
+    }
+
+    /**
+     * The events of one calendar as parallel arrays, sorted by id.
+     */
+    private static final class CalendarSnapshot {
+        private final long calendarId;
+        private long[] ids;
+        private long[] hashes;
+        private long[] insertedIn;
+        private long[] changedIn;
+        private int size;
+        // combines the ids and hashes of all events, equal when nothing in the calendar changed
+        private long hash = FNV_OFFSET_BASIS;
+        // the generation any event of the calendar last changed in
+        private long lastChanged;
+
+        private CalendarSnapshot(long calendarId, int capacity) {
+            this.calendarId = calendarId;
+            this.ids = new long[Math.max(capacity, 1)];
+            this.hashes = new long[ids.length];
+            this.insertedIn = new long[ids.length];
+            this.changedIn = new long[ids.length];
+        }
+
+        private void add(long id, long rowHash, long inserted, long changed) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+                insertedIn = Arrays.copyOf(insertedIn, size * 2);
+                changedIn = Arrays.copyOf(changedIn, size * 2);
+            }
+            ids[size] = id;
+            hashes[size] = rowHash;
+            insertedIn[size] = inserted;
+            changedIn[size] = changed;
+            size++;
+            hash = (hash ^ id) * FNV_PRIME;
+            hash = (hash ^ rowHash) * FNV_PRIME;
+            lastChanged = Math.max(lastChanged, changed);
+        }
+
+        private void setGeneration(long generation) {
+            Arrays.fill(insertedIn, 0, size, generation);
+            Arrays.fill(changedIn, 0, size, generation);
+            lastChanged = generation;
+        }
+    }
+}
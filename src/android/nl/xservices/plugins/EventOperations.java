@@ -0,0 +1,348 @@
+package nl.xservices.plugins;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.provider.CalendarContract;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static android.provider.CalendarContract.Events;
+
+/**
+ * Builds the ContentProviderOperations to create, modify and delete events, so any number of them
+ * (including their reminders and attendees) can be written with a single applyBatch.
+ * <p>
+ * The event JSON has the shape JS passes to createEventWithOptions:
+ * {title, location, notes, startTime, endTime, options: {calendarId, firstReminderMinutes, recurrence, ..}, attendees: [{name, email}]}
+ */
+public final class EventOperations {
+
+    /**
+     * The fields of an event {@link #addUpdateEvent} compares the changes with.
+     */
+    public static final Projection CURRENT_EVENT_PROJECTION = new Projection()
+            .add(Events.CALENDAR_ID, Events.CALENDAR_ID, Projection.TYPE_LONG)
+            .add(Events.TITLE, Events.TITLE, Projection.TYPE_STRING)
+            .add(Events.EVENT_LOCATION, Events.EVENT_LOCATION, Projection.TYPE_STRING)
+            .add(Events.DESCRIPTION, Events.DESCRIPTION, Projection.TYPE_STRING)
+            .add(Events.DTSTART, Events.DTSTART, Projection.TYPE_LONG)
+            .add(Events.DTEND, Events.DTEND, Projection.TYPE_LONG)
+            .add(Events.DURATION, Events.DURATION, Projection.TYPE_STRING)
+            .add(Events.ALL_DAY, Events.ALL_DAY, Projection.TYPE_INT)
+            .add(Events.RRULE, Events.RRULE, Projection.TYPE_STRING)
+            .add(Events.HAS_ALARM, Events.HAS_ALARM, Projection.TYPE_FLAG)
+            .add(Events.DELETED, Events.DELETED, Projection.TYPE_INT);
+
+    /**
+     * The fields of a reminder {@link #addUpdateEvent} compares the changes with.
+     */
+    public static final Projection CURRENT_REMINDER_PROJECTION = new Projection()
+            .add("id", CalendarContract.Reminders._ID, Projection.TYPE_LONG)
+            .add(CalendarContract.Reminders.MINUTES, CalendarContract.Reminders.MINUTES, Projection.TYPE_INT);
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private EventOperations() {
+    }
+
+    /**
+     * Adds the operations to insert one event plus its reminders and attendees.
+     * The reminders and attendees refer to the event through a back-reference, so they can be part of the same batch.
+     *
+     * @return the index of the event insert in ops, its result holds the uri of the new event
+     */
+    public static int addInsertEvent(ArrayList<ContentProviderOperation> ops, JSONObject event) {
+        if (event.isNull("startTime") || event.isNull("endTime")) {
+            throw new IllegalArgumentException("startTime and endTime are mandatory");
+        }
+        final JSONObject options = event.optJSONObject("options") != null ? event.optJSONObject("options") : new JSONObject();
+        final long startTime = event.optLong("startTime");
+        final long endTime = event.optLong("endTime");
+        final boolean allDay = isAllDayEvent(startTime, endTime);
+        final String rrule = getRecurrenceRule(options);
+
+        final int eventIndex = ops.size();
+        final ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(CalendarUris.events())
+                .withValue(Events.CALENDAR_ID, options.optInt("calendarId", 1))
+                .withValue(Events.TITLE, getPossibleNullString("title", event))
+                .withValue(Events.EVENT_LOCATION, getPossibleNullString("location", event))
+                .withValue(Events.DESCRIPTION, getDescription(event, options))
+                .withValue(Events.ALL_DAY, allDay ? 1 : 0)
+                // all day events are stored in UTC, others in the user's timezone
+                .withValue(Events.EVENT_TIMEZONE, allDay ? "UTC" : TimeZone.getDefault().getID());
+
+        final long dtstart = allDay ? toUtcMidnight(startTime) : startTime;
+        final long dtend = allDay ? toUtcMidnight(endTime) : endTime;
+        builder.withValue(Events.DTSTART, dtstart);
+        if (rrule == null) {
+            builder.withValue(Events.DTEND, dtend);
+        } else {
+            // recurring events need a duration instead of an end time
+            builder.withValue(Events.RRULE, rrule)
+                    .withValue(Events.DURATION, allDay ? "P" + ((dtend - dtstart) / DAY_MILLIS) + "D" : "P" + ((dtend - dtstart) / 1000) + "S");
+        }
+
+        final long firstReminderMinutes = options.optLong("firstReminderMinutes", -1);
+        final long secondReminderMinutes = options.optLong("secondReminderMinutes", -1);
+        builder.withValue(Events.HAS_ALARM, firstReminderMinutes > -1 || secondReminderMinutes > -1 ? 1 : 0);
+        ops.add(builder.build());
+
+        if (firstReminderMinutes > -1) {
+            addInsertReminder(ops, eventIndex, firstReminderMinutes);
+        }
+        if (secondReminderMinutes > -1) {
+            addInsertReminder(ops, eventIndex, secondReminderMinutes);
+        }
+
+        final JSONArray attendees = event.optJSONArray("attendees");
+        if (attendees != null) {
+            for (int i = 0; i < attendees.length(); i++) {
+                final JSONObject attendee = attendees.optJSONObject(i);
+                if (attendee != null) {
+                    addInsertAttendee(ops, eventIndex, attendee);
+                }
+            }
+        }
+        return eventIndex;
+    }
+
+    /**
+     * Adds the operations to apply the changes to one event, writing only what differs from its current state: a single
+     * update with just the changed columns (none when nothing changed), a delete per reminder which is no longer wanted
+     * and an insert per missing one. Reminders which stay are left alone.
+     * <p>
+     * The changes are {title, location, notes, startTime, endTime, calendarId, reminders: [minutes, ..]}, fields which
+     * aren't there stay as they are. When only startTime is passed the end moves along, so the event keeps its length.
+     *
+     * @param current   the event, read with {@link #CURRENT_EVENT_PROJECTION}
+     * @param reminders the reminders of the event read with {@link #CURRENT_REMINDER_PROJECTION}, or null for none.
+     *                  Only needed when the changes have reminders
+     * @return the number of operations added
+     * @throws IllegalArgumentException when a reminder isn't a number of minutes, nothing is added then
+     */
+    public static int addUpdateEvent(ArrayList<ContentProviderOperation> ops, long id, JSONObject current, JSONArray reminders,
+                                     JSONObject changes) {
+        final ContentValues values = new ContentValues();
+        putIfChanged(values, Events.TITLE, current, changes, "title");
+        putIfChanged(values, Events.EVENT_LOCATION, current, changes, "location");
+        putIfChanged(values, Events.DESCRIPTION, current, changes, "notes");
+        if (!changes.isNull("calendarId") && changes.optLong("calendarId") != current.optLong(Events.CALENDAR_ID)) {
+            values.put(Events.CALENDAR_ID, changes.optLong("calendarId"));
+        }
+        if (!changes.isNull("startTime") || !changes.isNull("endTime")) {
+            putTimesIfChanged(values, current, changes);
+        }
+
+        final int size = ops.size();
+        final JSONArray wanted = changes.optJSONArray("reminders");
+        if (wanted != null) {
+            final List<Long> missing = new ArrayList<Long>();
+            for (int i = 0; i < wanted.length(); i++) {
+                missing.add(getReminderMinutes(wanted, i));
+            }
+            final List<Long> unwanted = new ArrayList<Long>();
+            for (int i = 0; reminders != null && i < reminders.length(); i++) {
+                final JSONObject reminder = reminders.optJSONObject(i);
+                // a reminder which is still wanted covers one of the wanted minutes, duplicates are kept as many times
+                if (!missing.remove(Long.valueOf(reminder.optLong(CalendarContract.Reminders.MINUTES)))) {
+                    unwanted.add(reminder.optLong("id"));
+                }
+            }
+            final boolean hasAlarm = wanted.length() > 0;
+            if (hasAlarm != current.optBoolean(Events.HAS_ALARM)) {
+                values.put(Events.HAS_ALARM, hasAlarm ? 1 : 0);
+            }
+            addEventUpdate(ops, id, values);
+            for (long reminderId : unwanted) {
+                ops.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(CalendarUris.reminders(), reminderId)).build());
+            }
+            for (long minutes : missing) {
+                ops.add(ContentProviderOperation.newInsert(CalendarUris.reminders())
+                        .withValue(CalendarContract.Reminders.EVENT_ID, id)
+                        .withValue(CalendarContract.Reminders.MINUTES, minutes)
+                        .withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT)
+                        .build());
+            }
+        } else {
+            addEventUpdate(ops, id, values);
+        }
+        return ops.size() - size;
+    }
+
+    private static long getReminderMinutes(JSONArray reminders, int i) {
+        final Object value = reminders.opt(i);
+        try {
+            final long minutes = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(String.valueOf(value));
+            if (minutes >= 0) {
+                return minutes;
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid reminder minutes: " + value);
+    }
+
+    private static void addEventUpdate(ArrayList<ContentProviderOperation> ops, long id, ContentValues values) {
+        if (values.size() > 0) {
+            ops.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(CalendarUris.events(), id))
+                    .withValues(values)
+                    .build());
+        }
+    }
+
+    private static void putIfChanged(ContentValues values, String column, JSONObject current, JSONObject changes, String field) {
+        if (!changes.has(field)) {
+            return;
+        }
+        final String value = getPossibleNullString(field, changes);
+        final String currentValue = getPossibleNullString(column, current);
+        if (value == null ? currentValue != null : !value.equals(currentValue)) {
+            values.put(column, value);
+        }
+    }
+
+    // the times are compared as stored, so an all day event moved to another day only rewrites dtstart and dtend
+    private static void putTimesIfChanged(ContentValues values, JSONObject current, JSONObject changes) {
+        final boolean currentAllDay = current.optInt(Events.ALL_DAY) == 1;
+        final long currentDtstart = current.optLong(Events.DTSTART);
+        final String currentDuration = getPossibleNullString(Events.DURATION, current);
+        final boolean recurring = getPossibleNullString(Events.RRULE, current) != null;
+        // recurring events have a duration instead of an end time
+        final long currentDtend = recurring && currentDuration != null
+                ? currentDtstart + RecurrenceExpander.parseDuration(currentDuration)
+                : current.optLong(Events.DTEND);
+        final long currentStart = currentAllDay ? fromUtcMidnight(currentDtstart) : currentDtstart;
+        final long currentEnd = currentAllDay ? fromUtcMidnight(currentDtend) : currentDtend;
+
+        final long startTime = changes.isNull("startTime") ? currentStart : changes.optLong("startTime");
+        final long endTime = changes.isNull("endTime") ? startTime + (currentEnd - currentStart) : changes.optLong("endTime");
+        final boolean allDay = isAllDayEvent(startTime, endTime);
+        final long dtstart = allDay ? toUtcMidnight(startTime) : startTime;
+        final long dtend = allDay ? toUtcMidnight(endTime) : endTime;
+
+        if (allDay != currentAllDay) {
+            values.put(Events.ALL_DAY, allDay ? 1 : 0);
+            values.put(Events.EVENT_TIMEZONE, allDay ? "UTC" : TimeZone.getDefault().getID());
+        }
+        if (dtstart != currentDtstart) {
+            values.put(Events.DTSTART, dtstart);
+        }
+        if (recurring) {
+            final String duration = allDay ? "P" + ((dtend - dtstart) / DAY_MILLIS) + "D" : "P" + ((dtend - dtstart) / 1000) + "S";
+            if (!duration.equals(currentDuration)) {
+                values.put(Events.DURATION, duration);
+            }
+        } else if (dtend != currentDtend) {
+            values.put(Events.DTEND, dtend);
+        }
+    }
+
+    public static void addDeleteEvent(ArrayList<ContentProviderOperation> ops, long id) {
+        ops.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(CalendarUris.events(), id)).build());
+    }
+
+    private static void addInsertReminder(ArrayList<ContentProviderOperation> ops, int eventIndex, long minutes) {
+        ops.add(ContentProviderOperation.newInsert(CalendarUris.reminders())
+                .withValueBackReference(CalendarContract.Reminders.EVENT_ID, eventIndex)
+                .withValue(CalendarContract.Reminders.MINUTES, minutes)
+                .withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT)
+                .build());
+    }
+
+    private static void addInsertAttendee(ArrayList<ContentProviderOperation> ops, int eventIndex, JSONObject attendee) {
+        ops.add(ContentProviderOperation.newInsert(CalendarUris.attendees())
+                .withValueBackReference(CalendarContract.Attendees.EVENT_ID, eventIndex)
+                .withValue(CalendarContract.Attendees.ATTENDEE_NAME, getPossibleNullString("name", attendee))
+                .withValue(CalendarContract.Attendees.ATTENDEE_EMAIL, getPossibleNullString("email", attendee))
+                .withValue(CalendarContract.Attendees.ATTENDEE_RELATIONSHIP, CalendarContract.Attendees.RELATIONSHIP_ATTENDEE)
+                .withValue(CalendarContract.Attendees.ATTENDEE_TYPE, "optional".equals(attendee.optString("type"))
+                        ? CalendarContract.Attendees.TYPE_OPTIONAL
+                        : CalendarContract.Attendees.TYPE_REQUIRED)
+                .withValue(CalendarContract.Attendees.ATTENDEE_STATUS, CalendarContract.Attendees.ATTENDEE_STATUS_INVITED)
+                .build());
+    }
+
+    // the url doesn't have a field of its own on Android, so it's appended to the notes
+    private static String getDescription(JSONObject event, JSONObject options) {
+        final String notes = getPossibleNullString("notes", event);
+        final String url = getPossibleNullString("url", options);
+        if (url == null) {
+            return notes;
+        }
+        return notes == null ? url : notes + " " + url;
+    }
+
+    static String getRecurrenceRule(JSONObject options) {
+        final String recurrence = getPossibleNullString("recurrence", options);
+        if (recurrence == null) {
+            return null;
+        }
+        final StringBuilder rrule = new StringBuilder("FREQ=").append(recurrence.toUpperCase(Locale.US));
+        final int interval = options.optInt("recurrenceInterval", -1);
+        if (interval > 1) {
+            rrule.append(";INTERVAL=").append(interval);
+        }
+        final String weekstart = getPossibleNullString("recurrenceWeekstart", options);
+        if (weekstart != null) {
+            rrule.append(";WKST=").append(weekstart);
+        }
+        final String byDay = getPossibleNullString("recurrenceByDay", options);
+        if (byDay != null) {
+            rrule.append(";BYDAY=").append(byDay);
+        }
+        final String byMonthDay = getPossibleNullString("recurrenceByMonthDay", options);
+        if (byMonthDay != null) {
+            rrule.append(";BYMONTHDAY=").append(byMonthDay);
+        }
+        final long recurrenceEndTime = options.optLong("recurrenceEndTime", -1);
+        final long recurrenceCount = options.optLong("recurrenceCount", -1);
+        if (recurrenceEndTime > -1) {
+            final SimpleDateFormat until = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+            until.setTimeZone(TimeZone.getTimeZone("UTC"));
+            rrule.append(";UNTIL=").append(until.format(new Date(recurrenceEndTime)));
+        } else if (recurrenceCount > -1) {
+            rrule.append(";COUNT=").append(recurrenceCount);
+        }
+        return rrule.toString();
+    }
+
+    /**
+     * An event is treated as all day when it runs from midnight to midnight (local time).
+     */
+    static boolean isAllDayEvent(long startTime, long endTime) {
+        return endTime > startTime && isLocalMidnight(startTime) && isLocalMidnight(endTime);
+    }
+
+    private static boolean isLocalMidnight(long time) {
+        final java.util.Calendar calendar = java.util.Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return calendar.get(java.util.Calendar.HOUR_OF_DAY) == 0
+                && calendar.get(java.util.Calendar.MINUTE) == 0
+                && calendar.get(java.util.Calendar.SECOND) == 0
+                && calendar.get(java.util.Calendar.MILLISECOND) == 0;
+    }
+
+    private static long toUtcMidnight(long localMidnight) {
+        return localMidnight + TimeZone.getDefault().getOffset(localMidnight);
+    }
+
+    private static long fromUtcMidnight(long utcMidnight) {
+        return utcMidnight - TimeZone.getDefault().getOffset(utcMidnight);
+    }
+
+    /**
+     * @return the string value of param, null when it's missing, null or "null" (as JS may pass it)
+     */
+    static String getPossibleNullString(String param, JSONObject from) {
+        return from.isNull(param) || "null".equals(from.optString(param)) ? null : from.optString(param);
+    }
+}
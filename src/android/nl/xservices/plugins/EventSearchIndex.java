@@ -0,0 +1,309 @@
+package nl.xservices.plugins;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static android.provider.CalendarContract.Events;
+
+/**
+ * An in-memory inverted index of the words in the title, location and description of every event, for searchEvents
+ * with useIndex. Looking up a word prefix is a walk over the sorted words, so type-ahead search across the whole
+ * calendar history doesn't touch the provider at all.
+ * <p>
+ * The index is marked stale when the provider reports a change to the events, the next search then refreshes it
+ * first. A refresh still reads every event (the provider can't tell which ones changed), but only the events whose
+ * hash changed (see {@link EventChangeTracker}) are tokenized and updated in the index again.
+ * <p>
+ * A query matches an event when every word of the query is a prefix of a word of the event, case insensitive.
+ * {@link #matches} applies the same rule to rows which weren't looked up in the index.
+ */
+public final class EventSearchIndex {
+
+    /**
+     * Queries the provider for the current, non-deleted events, with {@link #COLUMNS}.
+     */
+    public interface Loader {
+        Cursor load();
+    }
+
+    /**
+     * The columns the cursor of the {@link Loader} needs to have.
+     */
+    public static final String[] COLUMNS = EventChangeNotifier.COLUMNS;
+
+    // newest first, so type-ahead results start with what's most likely looked for
+    private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.dtstart != b.dtstart) {
+                return a.dtstart > b.dtstart ? -1 : 1;
+            }
+            return a.id > b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    };
+
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    // every word, with the ids of the events it occurs in
+    private final TreeMap<String, Set<Long>> postings = new TreeMap<String, Set<Long>>();
+    private boolean built;
+    private volatile boolean stale = true;
+
+    private final ContentObserver observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            stale = true;
+        }
+    };
+
+    public void register(ContentResolver contentResolver, Uri events) {
+        contentResolver.registerContentObserver(events, true, observer);
+    }
+
+    public void unregister(ContentResolver contentResolver) {
+        contentResolver.unregisterContentObserver(observer);
+        stale = true;
+    }
+
+    /**
+     * @param query      the words to look for
+     * @param start      only events which occur at or after this time (in millis), 0 for no bound
+     * @param end        only events which start at or before this time, 0 for no bound
+     * @param calendarIds only events in these calendars, null for all calendars
+     * @param limit      at most this many events, 0 for all
+     * @return the matching events, newest first
+     */
+    public synchronized List<Entry> search(String query, long start, long end, Set<String> calendarIds, int limit, Loader loader) {
+        if (stale || !built) {
+            // changes which come in while refreshing mark the index stale again
+            stale = false;
+            refresh(loader.load());
+            built = true;
+        }
+        final String[] words = tokenize(query).toArray(new String[0]);
+        if (words.length == 0) {
+            return Collections.emptyList();
+        }
+        // the longest word usually has the fewest candidates, the other words are checked per candidate
+        String longest = words[0];
+        for (String word : words) {
+            if (word.length() > longest.length()) {
+                longest = word;
+            }
+        }
+        final List<Entry> result = new ArrayList<Entry>();
+        final Set<Long> seen = new HashSet<Long>();
+        for (Set<Long> ids : withPrefix(postings, longest).values()) {
+            for (Long id : ids) {
+                if (!seen.add(id)) {
+                    continue;
+                }
+                final Entry entry = entries.get(id);
+                if ((start == 0 || entry.lastDate >= start)
+                        && (end == 0 || entry.dtstart <= end)
+                        && (calendarIds == null || calendarIds.contains(String.valueOf(entry.calendarId)))
+                        && containsAll(entry.words, words)) {
+                    result.add(entry);
+                }
+            }
+        }
+        Collections.sort(result, NEWEST_FIRST);
+        return limit > 0 && result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    /**
+     * @return whether every word of the query is a prefix of a word in one of the texts
+     */
+    public static boolean matches(Collection<String> queryWords, String... texts) {
+        final Set<String> words = new LinkedHashSet<String>();
+        for (String text : texts) {
+            words.addAll(tokenize(text));
+        }
+        final String[] sorted = words.toArray(new String[words.size()]);
+        Arrays.sort(sorted);
+        return containsAll(sorted, queryWords.toArray(new String[queryWords.size()]));
+    }
+
+    /**
+     * @return the lower case words (runs of letters and digits) of the text, in order of appearance
+     */
+    public static Set<String> tokenize(String text) {
+        final Set<String> words = new LinkedHashSet<String>();
+        if (text == null) {
+            return words;
+        }
+        final String lowerCase = text.toLowerCase(Locale.ROOT);
+        int wordStart = -1;
+        for (int i = 0; i <= lowerCase.length(); i++) {
+            final boolean wordChar = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (wordChar && wordStart == -1) {
+                wordStart = i;
+            } else if (!wordChar && wordStart != -1) {
+                words.add(lowerCase.substring(wordStart, i));
+                wordStart = -1;
+            }
+        }
+        return words;
+    }
+
+    private void refresh(Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        final Set<Long> deleted = new LinkedHashSet<Long>(entries.keySet());
+        try {
+            final int idIndex = cursor.getColumnIndex(Events._ID);
+            final int calendarIdIndex = cursor.getColumnIndex(Events.CALENDAR_ID);
+            final int titleIndex = cursor.getColumnIndex(Events.TITLE);
+            final int locationIndex = cursor.getColumnIndex(Events.EVENT_LOCATION);
+            final int descriptionIndex = cursor.getColumnIndex(Events.DESCRIPTION);
+            final int dtstartIndex = cursor.getColumnIndex(Events.DTSTART);
+            final int dtendIndex = cursor.getColumnIndex(Events.DTEND);
+            final int allDayIndex = cursor.getColumnIndex(Events.ALL_DAY);
+            final int rruleIndex = cursor.getColumnIndex(Events.RRULE);
+            final int lastDateIndex = cursor.getColumnIndex(Events.LAST_DATE);
+            final int[] hashedIndices = EventChangeTracker.getHashedIndices(cursor);
+            while (cursor.moveToNext()) {
+                final long id = cursor.getLong(idIndex);
+                final long calendarId = cursor.getLong(calendarIdIndex);
+                final long hash = EventChangeTracker.hashRow(cursor, hashedIndices);
+                deleted.remove(id);
+                final Entry existing = entries.get(id);
+                if (existing != null && existing.hash == hash && existing.calendarId == calendarId) {
+                    continue;
+                }
+                if (existing != null) {
+                    remove(existing);
+                }
+                final String title = cursor.getString(titleIndex);
+                final String location = cursor.getString(locationIndex);
+                final String rrule = cursor.getString(rruleIndex);
+                final long dtstart = cursor.getLong(dtstartIndex);
+                // recurring events have a duration instead of an end
+                final Long dtend = cursor.isNull(dtendIndex) ? null : cursor.getLong(dtendIndex);
+                final long lastDate;
+                if (!cursor.isNull(lastDateIndex)) {
+                    lastDate = cursor.getLong(lastDateIndex);
+                } else {
+                    // a recurring event without a last date recurs forever
+                    lastDate = rrule != null ? Long.MAX_VALUE : dtend != null ? Math.max(dtstart, dtend) : dtstart;
+                }
+                final Set<String> words = tokenize(title);
+                words.addAll(tokenize(location));
+                words.addAll(tokenize(cursor.getString(descriptionIndex)));
+                final String[] sortedWords = words.toArray(new String[words.size()]);
+                Arrays.sort(sortedWords);
+                add(new Entry(id, calendarId, hash, title, location, dtstart, dtend, cursor.getInt(allDayIndex), rrule, lastDate, sortedWords));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Long id : deleted) {
+            remove(entries.get(id));
+        }
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.id, entry);
+        for (String word : entry.words) {
+            Set<Long> ids = postings.get(word);
+            if (ids == null) {
+                ids = new LinkedHashSet<Long>(4);
+                postings.put(word, ids);
+            }
+            ids.add(entry.id);
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.id);
+        for (String word : entry.words) {
+            final Set<Long> ids = postings.get(word);
+            if (ids != null && ids.remove(entry.id) && ids.isEmpty()) {
+                postings.remove(word);
+            }
+        }
+    }
+
+    private static SortedMap<String, Set<Long>> withPrefix(TreeMap<String, Set<Long>> words, String prefix) {
+        return words.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    // sortedWords is sorted, so the words starting with a prefix are found by a binary search
+    private static boolean containsAll(String[] sortedWords, String[] prefixes) {
+        for (String prefix : prefixes) {
+            final int position = Arrays.binarySearch(sortedWords, prefix);
+            final int candidate = position >= 0 ? position : -position - 1;
+            if (candidate == sortedWords.length || !sortedWords[candidate].startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * What the index keeps of an event: the fields searchEvents returns, plus its words.
+     */
+    public static final class Entry {
+        private final long id;
+        private final long calendarId;
+        private final long hash;
+        private final String title;
+        private final String location;
+        private final long dtstart;
+        private final Long dtend;
+        private final int allDay;
+        private final String rrule;
+        private final long lastDate;
+        private final String[] words;
+
+        private Entry(long id, long calendarId, long hash, String title, String location, long dtstart, Long dtend,
+                      int allDay, String rrule, long lastDate, String[] words) {
+            this.id = id;
+            this.calendarId = calendarId;
+            this.hash = hash;
+            this.title = title;
+            this.location = location;
+            this.dtstart = dtstart;
+            this.dtend = dtend;
+            this.allDay = allDay;
+            this.rrule = rrule;
+            this.lastDate = lastDate;
+            this.words = words;
+        }
+
+        /**
+         * @return the event with the keys of a searchEvents result read from the provider
+         */
+        public JSONObject toJSONObject() throws JSONException {
+            return new JSONObject()
+                    .put("id", String.valueOf(id))
+                    .put(Events.CALENDAR_ID, String.valueOf(calendarId))
+                    .put(Events.TITLE, title)
+                    .put(Events.EVENT_LOCATION, location != null ? location : "")
+                    .put(Events.DTSTART, dtstart)
+                    .put(Events.DTEND, dtend)
+                    .put(Events.ALL_DAY, allDay)
+                    .put(Events.RRULE, rrule);
+        }
+    }
+}
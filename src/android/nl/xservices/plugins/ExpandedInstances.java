@@ -0,0 +1,321 @@
+package nl.xservices.plugins;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import static android.provider.CalendarContract.Events;
+
+/**
+ * Lists the instances of a range by expanding the events themselves with a {@link RecurrenceExpander}, for
+ * listEventsInRange with expandRecurrences. The provider only expands into its Instances table for the ranges it
+ * was asked for before, so a range far from today makes it expand every recurring event first, this reads every
+ * event which can occur in the range once and expands it in memory instead.
+ * <p>
+ * The result has the same columns (and filtering) as an Instances query. Instances don't have a row of their own,
+ * so their _id is made up of the event id and the begin: "eventId_begin". Exceptions to a recurring event replace
+ * the instance they were made for, canceled exceptions leave it out. Events with a rule the expander doesn't support
+ * are looked up in the Instances table of the provider after all.
+ */
+public final class ExpandedInstances {
+
+    // all-day events are stored in UTC, so they may start up to a day before the requested range in local time
+    private static final long MARGIN_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final int STATUS_CANCELED = 2;
+
+    private static final String[] EVENT_COLUMNS = {
+            Events._ID, Events.CALENDAR_ID, Events.TITLE, Events.EVENT_LOCATION, Events.EVENT_COLOR,
+            Events.DISPLAY_COLOR, Events.ALL_DAY, Events.DTSTART, Events.DTEND, Events.DURATION, Events.EVENT_TIMEZONE,
+            Events.RRULE, Events.RDATE, Events.EXDATE, Events.EXRULE, Events.ORIGINAL_ID, Events.ORIGINAL_INSTANCE_TIME,
+            Events.STATUS
+    };
+
+    private final String[] columns;
+    private final int beginIndex;
+
+    private final RecurrenceExpander expander = new RecurrenceExpander();
+
+    /**
+     * @param columns the columns of the returned cursor, any of the Instances columns listEventsInRange uses plus
+     *                eventTimezone
+     */
+    public ExpandedInstances(String[] columns) {
+        this.columns = columns;
+        int begin = -1;
+        for (int c = 0; c < columns.length; c++) {
+            if ("begin".equals(columns[c])) {
+                begin = c;
+            }
+        }
+        if (begin == -1) {
+            throw new IllegalArgumentException("The columns need to include begin");
+        }
+        this.beginIndex = begin;
+    }
+
+    /**
+     * Returns the instances within [start, end] (or overlapping it, see {@link #overlaps}), sorted by begin. Not thread safe, the expander
+     * is reused for every event.
+     *
+     * @param calendarIds only return the instances of these calendars, null for all of them
+     */
+    public Cursor query(ContentResolver contentResolver, long start, long end, boolean overlap, Set<String> calendarIds) {
+        final long from = start - MARGIN_MILLIS;
+        final long to = end + MARGIN_MILLIS;
+        final List<String> selectionArgs = new ArrayList<String>();
+        final StringBuilder selection = new StringBuilder(Events.DELETED + " = 0 AND ((")
+                .append(Events.DTSTART).append(" <= ? AND (").append(Events.LAST_DATE).append(" IS NULL OR ")
+                .append(Events.LAST_DATE).append(" >= ?)) OR (").append(Events.ORIGINAL_ID).append(" IS NOT NULL AND ")
+                .append(Events.ORIGINAL_INSTANCE_TIME).append(" BETWEEN ? AND ?))");
+        Collections.addAll(selectionArgs, String.valueOf(to), String.valueOf(from), String.valueOf(from), String.valueOf(to));
+        appendIn(selection, Events.CALENDAR_ID, calendarIds, selectionArgs);
+
+        final Cursor events = contentResolver.query(
+                CalendarUris.events(),
+                EVENT_COLUMNS,
+                selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                null);
+        if (events == null) {
+            return null;
+        }
+
+        final Filter filter = new Filter(start, end, overlap);
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final List<Object[]> recurring = new ArrayList<Object[]>();
+        // the original instance times which were replaced by an exception, by the id of the recurring event
+        final Map<String, Set<Long>> exceptions = new HashMap<String, Set<Long>>();
+        final Set<String> unsupported = new HashSet<String>();
+        try {
+            final int[] indices = new int[EVENT_COLUMNS.length];
+            for (int c = 0; c < EVENT_COLUMNS.length; c++) {
+                indices[c] = events.getColumnIndex(EVENT_COLUMNS[c]);
+            }
+            while (events.moveToNext()) {
+                final Object[] event = new Object[EVENT_COLUMNS.length];
+                for (int c = 0; c < EVENT_COLUMNS.length; c++) {
+                    event[c] = InstanceCache.readValue(events, indices[c]);
+                }
+                if (event[indexOf(Events.DTSTART)] == null) {
+                    continue;
+                }
+                final Object originalId = event[indexOf(Events.ORIGINAL_ID)];
+                final Object originalTime = event[indexOf(Events.ORIGINAL_INSTANCE_TIME)];
+                if (originalId != null && originalTime != null) {
+                    final String key = String.valueOf(originalId);
+                    Set<Long> times = exceptions.get(key);
+                    if (times == null) {
+                        times = new HashSet<Long>();
+                        exceptions.put(key, times);
+                    }
+                    times.add(toLong(originalTime));
+                    if (toLong(event[indexOf(Events.STATUS)]) == STATUS_CANCELED) {
+                        continue;
+                    }
+                }
+                if (event[indexOf(Events.RRULE)] == null && event[indexOf(Events.RDATE)] == null) {
+                    final long dtstart = toLong(event[indexOf(Events.DTSTART)]);
+                    final Object dtend = event[indexOf(Events.DTEND)];
+                    final long instanceEnd = dtend != null ? toLong(dtend) : dtstart + getDuration(event);
+                    if (filter.accepts(dtstart, instanceEnd, event[indexOf(Events.EVENT_TIMEZONE)])) {
+                        rows.add(toRow(event, dtstart, instanceEnd));
+                    }
+                } else {
+                    // expanded once all exceptions are known
+                    recurring.add(event);
+                }
+            }
+        } finally {
+            events.close();
+        }
+
+        for (Object[] event : recurring) {
+            final String eventId = String.valueOf(event[indexOf(Events._ID)]);
+            final Object timezone = event[indexOf(Events.EVENT_TIMEZONE)];
+            final boolean expandable = event[indexOf(Events.EXRULE)] == null && expander.reset(
+                    toLong(event[indexOf(Events.DTSTART)]),
+                    getDuration(event),
+                    timezone != null ? String.valueOf(timezone) : null,
+                    (String) event[indexOf(Events.RRULE)],
+                    (String) event[indexOf(Events.RDATE)],
+                    (String) event[indexOf(Events.EXDATE)],
+                    from,
+                    to);
+            if (!expandable) {
+                unsupported.add(eventId);
+                continue;
+            }
+            final Set<Long> replaced = exceptions.get(eventId);
+            while (expander.next()) {
+                final long begin = expander.getBegin();
+                if ((replaced == null || !replaced.contains(begin)) && filter.accepts(begin, expander.getEnd(), timezone)) {
+                    rows.add(toRow(event, begin, expander.getEnd()));
+                }
+            }
+        }
+
+        if (!unsupported.isEmpty()) {
+            addProviderInstances(contentResolver, from, to, unsupported, filter, rows);
+        }
+
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                final long beginA = ((Number) a[beginIndex]).longValue();
+                final long beginB = ((Number) b[beginIndex]).longValue();
+                return beginA < beginB ? -1 : (beginA == beginB ? 0 : 1);
+            }
+        });
+        final MatrixCursor cursor = new MatrixCursor(columns, rows.size());
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private void addProviderInstances(ContentResolver contentResolver, long from, long to, Set<String> eventIds, Filter filter, List<Object[]> rows) {
+        final List<String> selectionArgs = new ArrayList<String>();
+        final StringBuilder selection = new StringBuilder("deleted = 0");
+        appendIn(selection, "event_id", eventIds, selectionArgs);
+        final Cursor cursor = contentResolver.query(
+                CalendarUris.instances(from, to),
+                columns,
+                selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            final int[] indices = new int[columns.length];
+            int endIndex = -1;
+            int timezoneIndex = -1;
+            for (int c = 0; c < columns.length; c++) {
+                indices[c] = cursor.getColumnIndex(columns[c]);
+                if ("end".equals(columns[c])) {
+                    endIndex = c;
+                } else if (Events.EVENT_TIMEZONE.equals(columns[c])) {
+                    timezoneIndex = c;
+                }
+            }
+            while (cursor.moveToNext()) {
+                final Object[] row = new Object[columns.length];
+                for (int c = 0; c < columns.length; c++) {
+                    row[c] = InstanceCache.readValue(cursor, indices[c]);
+                }
+                if (row[beginIndex] != null && endIndex != -1 && row[endIndex] != null
+                        && filter.accepts(toLong(row[beginIndex]), toLong(row[endIndex]), timezoneIndex != -1 ? row[timezoneIndex] : null)) {
+                    rows.add(row);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Object[] toRow(Object[] event, long begin, long end) {
+        final Object[] row = new Object[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            final String column = columns[c];
+            if ("begin".equals(column)) {
+                row[c] = begin;
+            } else if ("end".equals(column)) {
+                row[c] = end;
+            } else if ("_id".equals(column)) {
+                row[c] = event[indexOf(Events._ID)] + "_" + begin;
+            } else if ("event_id".equals(column)) {
+                row[c] = event[indexOf(Events._ID)];
+            } else if (Events.DELETED.equals(column)) {
+                row[c] = 0L;
+            } else {
+                final int index = indexOf(column);
+                row[c] = index != -1 ? event[index] : null;
+            }
+        }
+        return row;
+    }
+
+    private static long getDuration(Object[] event) {
+        final Object dtend = event[indexOf(Events.DTEND)];
+        if (dtend != null && event[indexOf(Events.RRULE)] == null) {
+            return toLong(dtend) - toLong(event[indexOf(Events.DTSTART)]);
+        }
+        final Object duration = event[indexOf(Events.DURATION)];
+        return duration != null ? RecurrenceExpander.parseDuration(String.valueOf(duration)) : 0;
+    }
+
+    private static void appendIn(StringBuilder selection, String column, Set<String> ids, List<String> selectionArgs) {
+        if (ids == null) {
+            return;
+        }
+        selection.append(" AND ").append(column).append(" IN (");
+        int c = 0;
+        for (String id : ids) {
+            selection.append(c++ == 0 ? "?" : ", ?");
+            selectionArgs.add(id);
+        }
+        selection.append(")");
+    }
+
+    private static int indexOf(String column) {
+        for (int c = 0; c < EVENT_COLUMNS.length; c++) {
+            if (EVENT_COLUMNS[c].equals(column)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private static long toLong(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(String.valueOf(value));
+    }
+
+    /**
+     * The range check of listEventsInRange: all day events are stored in UTC, others in the user's timezone.
+     */
+    private static final class Filter {
+        private final long start;
+        private final long end;
+        private final long utcStart;
+        private final long utcEnd;
+        private final boolean overlap;
+
+        private Filter(long start, long end, boolean overlap) {
+            this.start = start;
+            this.end = end;
+            this.utcStart = start + TimeZone.getDefault().getOffset(start);
+            this.utcEnd = end + TimeZone.getDefault().getOffset(end);
+            this.overlap = overlap;
+        }
+
+        private boolean accepts(long begin, long instanceEnd, Object timezone) {
+            final boolean utc = "UTC".equals(timezone);
+            final long rangeStart = utc ? utcStart : start;
+            final long rangeEnd = utc ? utcEnd : end;
+            return overlap ? overlaps(begin, instanceEnd, rangeStart, rangeEnd) : begin >= rangeStart && instanceEnd <= rangeEnd;
+        }
+    }
+
+    /**
+     * Whether an instance overlaps the range. Both are half open, so an instance ending right when the range starts
+     * (or starting when it ends) doesn't, and adjacent ranges don't both list it. An instance without a length overlaps
+     * the range it starts in.
+     */
+    static boolean overlaps(long begin, long end, long rangeStart, long rangeEnd) {
+        return begin == end ? begin >= rangeStart && begin < rangeEnd : begin < rangeEnd && end > rangeStart;
+    }
+}
@@ -0,0 +1,203 @@
+package nl.xservices.plugins;
+
+import android.database.Cursor;
+
+import org.json.JSONArray;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static android.provider.CalendarContract.Instances;
+
+/**
+ * Merges the instances of a range into busy blocks in a single pass, for getFreeBusy and findFreeSlots, so JS gets a
+ * few intervals instead of every instance.
+ * <p>
+ * The instances are read sorted by begin, so an instance either extends the last block or starts a new one. All day
+ * instances are stored from midnight to midnight UTC: they're moved to local midnight first, which puts them out of
+ * order with the others, so they're merged into blocks of their own and both lists are merged at the end.
+ */
+public final class FreeBusy {
+
+    /**
+     * The columns the cursor passed to {@link #read} needs to have.
+     */
+    public static final String[] COLUMNS = {Instances.BEGIN, Instances.END, Instances.ALL_DAY};
+
+    /**
+     * The order the cursor passed to {@link #read} needs to be in.
+     */
+    public static final String SORT_ORDER = Instances.BEGIN + " ASC";
+
+    private final long start;
+    private final long end;
+    private final boolean includeAllDay;
+
+    private final Blocks timed = new Blocks();
+    private final Blocks allDay = new Blocks();
+    private Blocks busy;
+
+    /**
+     * @param includeAllDay whether all day instances make the day busy
+     */
+    public FreeBusy(long start, long end, boolean includeAllDay) {
+        this.start = start;
+        this.end = end;
+        this.includeAllDay = includeAllDay;
+    }
+
+    /**
+     * Merges the instances in the cursor into the busy blocks, the blocks are clipped to the range. Closes the cursor.
+     *
+     * @return the number of instances read
+     */
+    public int read(Cursor cursor) {
+        if (cursor == null) {
+            return 0;
+        }
+        int rows = 0;
+        try {
+            final TimeZone timeZone = TimeZone.getDefault();
+            final int beginIndex = cursor.getColumnIndex(Instances.BEGIN);
+            final int endIndex = cursor.getColumnIndex(Instances.END);
+            final int allDayIndex = cursor.getColumnIndex(Instances.ALL_DAY);
+            while (cursor.moveToNext()) {
+                rows++;
+                final long begin = cursor.getLong(beginIndex);
+                final long instanceEnd = cursor.getLong(endIndex);
+                if (cursor.getInt(allDayIndex) == 1) {
+                    if (includeAllDay) {
+                        allDay.add(begin - timeZone.getOffset(begin), instanceEnd - timeZone.getOffset(instanceEnd), start, end);
+                    }
+                } else {
+                    timed.add(begin, instanceEnd, start, end);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        busy = null;
+        return rows;
+    }
+
+    /**
+     * @return the busy blocks as [[start, end], ..], sorted and not overlapping
+     */
+    public JSONArray getBusy() {
+        final Blocks blocks = merged();
+        final JSONArray result = new JSONArray();
+        for (int i = 0; i < blocks.size; i += 2) {
+            result.put(pair(blocks.bounds[i], blocks.bounds[i + 1]));
+        }
+        return result;
+    }
+
+    /**
+     * The free time between the busy blocks, as [[start, end], ..]. Pass a day start and end (in minutes since
+     * local midnight, like 9 * 60 and 17 * 60) to only look within those hours, or -1 for both to look all day.
+     *
+     * @param minDurationMillis only slots which are at least this long
+     * @param limit             at most this many slots, 0 for all
+     */
+    public JSONArray getFreeSlots(long minDurationMillis, int dayStartMinutes, int dayEndMinutes, int limit) {
+        final Blocks blocks = merged();
+        final boolean allDayLong = dayStartMinutes < 0 || dayEndMinutes <= dayStartMinutes;
+        final JSONArray result = new JSONArray();
+        long free = start;
+        for (int i = 0; i <= blocks.size && (limit <= 0 || result.length() < limit); i += 2) {
+            final long freeEnd = i < blocks.size ? blocks.bounds[i] : end;
+            if (allDayLong) {
+                addSlot(result, free, freeEnd, minDurationMillis);
+            } else {
+                addDaySlots(result, free, freeEnd, minDurationMillis, dayStartMinutes, dayEndMinutes, limit);
+            }
+            if (i < blocks.size) {
+                free = blocks.bounds[i + 1];
+            }
+        }
+        return result;
+    }
+
+    // the part of [free, freeEnd] within the hours of every day it spans
+    private static void addDaySlots(JSONArray result, long free, long freeEnd, long minDurationMillis, int dayStartMinutes,
+                                    int dayEndMinutes, int limit) {
+        final Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(free);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        final Calendar bound = Calendar.getInstance();
+        while (day.getTimeInMillis() < freeEnd && (limit <= 0 || result.length() < limit)) {
+            // set the hours rather than adding millis, so days on which the clock changes get the same hours
+            final long dayStart = timeOfDay(bound, day, dayStartMinutes);
+            final long dayEnd = timeOfDay(bound, day, dayEndMinutes);
+            addSlot(result, Math.max(free, dayStart), Math.min(freeEnd, dayEnd), minDurationMillis);
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    private static long timeOfDay(Calendar bound, Calendar day, int minutes) {
+        bound.setTimeInMillis(day.getTimeInMillis());
+        // 24:00 rolls over to midnight of the next day
+        bound.set(Calendar.HOUR_OF_DAY, minutes / 60);
+        bound.set(Calendar.MINUTE, minutes % 60);
+        return bound.getTimeInMillis();
+    }
+
+    private static void addSlot(JSONArray result, long slotStart, long slotEnd, long minDurationMillis) {
+        if (slotEnd > slotStart && slotEnd - slotStart >= minDurationMillis) {
+            result.put(pair(slotStart, slotEnd));
+        }
+    }
+
+    private static JSONArray pair(long first, long second) {
+        return new JSONArray().put(first).put(second);
+    }
+
+    private Blocks merged() {
+        if (busy == null) {
+            // both are sorted, so they can be merged in one pass
+            busy = new Blocks();
+            int t = 0;
+            int a = 0;
+            while (t < timed.size || a < allDay.size) {
+                if (a == allDay.size || (t < timed.size && timed.bounds[t] <= allDay.bounds[a])) {
+                    busy.add(timed.bounds[t], timed.bounds[t + 1], start, end);
+                    t += 2;
+                } else {
+                    busy.add(allDay.bounds[a], allDay.bounds[a + 1], start, end);
+                    a += 2;
+                }
+            }
+        }
+        return busy;
+    }
+
+    /**
+     * Non-overlapping blocks as start, end pairs. Blocks have to be added sorted by start.
+     */
+    private static final class Blocks {
+        private long[] bounds = new long[32];
+        private int size;
+
+        private void add(long blockStart, long blockEnd, long rangeStart, long rangeEnd) {
+            blockStart = Math.max(blockStart, rangeStart);
+            blockEnd = Math.min(blockEnd, rangeEnd);
+            if (blockEnd <= blockStart) {
+                return;
+            }
+            if (size > 0 && blockStart <= bounds[size - 1]) {
+                bounds[size - 1] = Math.max(bounds[size - 1], blockEnd);
+                return;
+            }
+            if (size == bounds.length) {
+                final long[] grown = new long[size * 2];
+                System.arraycopy(bounds, 0, grown, 0, size);
+                bounds = grown;
+            }
+            bounds[size++] = blockStart;
+            bounds[size++] = blockEnd;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package nl.xservices.plugins;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Keeps recently listed Instances rows in memory, so overlapping listEventsInRange calls
+ * (think of a user scrolling through the agenda) don't all have to go to the calendar provider.
+ * <p>
+ * Rows are stored per week bucket (by the begin of the instance) and per calendar id. A query only
+ * fetches the buckets it doesn't have yet, and serves the result as a cursor with the same columns
+ * the provider would have returned. Everything is dropped as soon as the provider reports a change.
+ */
+public final class InstanceCache {
+
+    public static final long BUCKET_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Ranges wider than this aren't cached, they're better off being streamed straight from the provider.
+     */
+    public static final long MAX_SPAN_MILLIS = 53 * BUCKET_MILLIS;
+
+    // all-day events are stored in UTC, so they may start up to a day before the requested range in local time
+    private static final long MARGIN_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final int MAX_BUCKETS = (int) (MAX_SPAN_MILLIS / BUCKET_MILLIS) + 3;
+
+    private static final String LOG_TAG = InstanceCache.class.getCanonicalName();
+
+    /**
+     * Queries the provider for all instances between begin and end, with (at least) the columns of the cache.
+     */
+    public interface Loader {
+        Cursor query(long begin, long end);
+    }
+
+    private final String[] columns;
+    private final int beginIndex;
+    private final int endIndex;
+    private final int calendarIdIndex;
+    private final int deletedIndex;
+    private final int timezoneIndex;
+
+    private final LinkedHashMap<Long, Bucket> buckets = new LinkedHashMap<Long, Bucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Bucket> eldest) {
+            return size() > MAX_BUCKETS;
+        }
+    };
+
+    // bumped on every invalidation, so a load which raced with a change doesn't end up in the cache
+    private int generation;
+
+    private final ContentObserver observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    /**
+     * @param columns the columns to keep for every instance, must include
+     *                begin, end, calendar_id, deleted and eventTimezone
+     */
+    public InstanceCache(String[] columns) {
+        this.columns = columns;
+        this.beginIndex = indexOf(columns, "begin");
+        this.endIndex = indexOf(columns, "end");
+        this.calendarIdIndex = indexOf(columns, "calendar_id");
+        this.deletedIndex = indexOf(columns, "deleted");
+        this.timezoneIndex = indexOf(columns, "eventTimezone");
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Starts listening for changes of the given uris, any change invalidates the whole cache.
+     */
+    public void register(ContentResolver contentResolver, Uri... uris) {
+        for (Uri uri : uris) {
+            contentResolver.registerContentObserver(uri, true, observer);
+        }
+    }
+
+    public void unregister(ContentResolver contentResolver) {
+        contentResolver.unregisterContentObserver(observer);
+        invalidate();
+    }
+
+    public synchronized void invalidate() {
+        generation++;
+        buckets.clear();
+    }
+
+    /**
+     * Returns the instances which start and end within [start, end], sorted by begin, like listEventsInRange does.
+     * Only the buckets which aren't cached yet are loaded.
+     *
+     * @param calendarIds only return the instances of these calendars, null for all of them
+     */
+    public Cursor query(long start, long end, Set<String> calendarIds, Loader loader) {
+        final long firstBucket = bucketOf(start - MARGIN_MILLIS);
+        final long lastBucket = bucketOf(end + MARGIN_MILLIS);
+
+        final Map<Long, Bucket> found = new HashMap<Long, Bucket>();
+        final int loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+            for (long b = firstBucket; b <= lastBucket; b++) {
+                Bucket bucket = buckets.get(b);
+                if (bucket != null) {
+                    found.put(b, bucket);
+                }
+            }
+        }
+
+        // fetch each run of missing buckets with one provider query
+        final Map<Long, Bucket> loaded = new HashMap<Long, Bucket>();
+        for (long b = firstBucket; b <= lastBucket; b++) {
+            if (found.containsKey(b)) {
+                continue;
+            }
+            long runEnd = b;
+            while (runEnd < lastBucket && !found.containsKey(runEnd + 1)) {
+                runEnd++;
+            }
+            load(b, runEnd, loader, loaded);
+            b = runEnd;
+        }
+
+        if (!loaded.isEmpty()) {
+            found.putAll(loaded);
+            synchronized (this) {
+                if (generation == loadGeneration) {
+                    buckets.putAll(loaded);
+                } else {
+                    Log.d(LOG_TAG, "Calendar changed while loading, not caching " + loaded.size() + " buckets");
+                }
+            }
+        }
+
+        // all day events are stored in UTC, others in the user's timezone
+        final long utcStart = start + TimeZone.getDefault().getOffset(start);
+        final long utcEnd = end + TimeZone.getDefault().getOffset(end);
+
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        for (Bucket bucket : found.values()) {
+            for (Map.Entry<String, List<Object[]>> calendarRows : bucket.rowsByCalendar.entrySet()) {
+                if (calendarIds != null && !calendarIds.contains(calendarRows.getKey())) {
+                    continue;
+                }
+                for (Object[] row : calendarRows.getValue()) {
+                    final long begin = ((Number) row[beginIndex]).longValue();
+                    final long rowEnd = ((Number) row[endIndex]).longValue();
+                    final boolean utc = "UTC".equals(row[timezoneIndex]);
+                    if (utc ? begin >= utcStart && rowEnd <= utcEnd : begin >= start && rowEnd <= end) {
+                        rows.add(row);
+                    }
+                }
+            }
+        }
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                final long beginA = ((Number) a[beginIndex]).longValue();
+                final long beginB = ((Number) b[beginIndex]).longValue();
+                return beginA < beginB ? -1 : (beginA == beginB ? 0 : 1);
+            }
+        });
+
+        MatrixCursor cursor = new MatrixCursor(columns, rows.size());
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private void load(long firstBucket, long lastBucket, Loader loader, Map<Long, Bucket> into) {
+        // also remember the buckets without any instances
+        for (long b = firstBucket; b <= lastBucket; b++) {
+            into.put(b, new Bucket());
+        }
+        Cursor cursor = loader.query(firstBucket * BUCKET_MILLIS, (lastBucket + 1) * BUCKET_MILLIS);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            final int[] indices = new int[columns.length];
+            for (int c = 0; c < columns.length; c++) {
+                indices[c] = cursor.getColumnIndex(columns[c]);
+            }
+            while (cursor.moveToNext()) {
+                final Object[] row = new Object[columns.length];
+                for (int c = 0; c < columns.length; c++) {
+                    row[c] = readValue(cursor, indices[c]);
+                }
+                if (row[beginIndex] == null || row[endIndex] == null || "1".equals(String.valueOf(row[deletedIndex]))) {
+                    continue;
+                }
+                // instances overlapping the range but starting before it belong to an earlier bucket
+                final long bucket = bucketOf(((Number) row[beginIndex]).longValue());
+                if (bucket >= firstBucket && bucket <= lastBucket) {
+                    into.get(bucket).add(String.valueOf(row[calendarIdIndex]), row);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static Object readValue(Cursor cursor, int index) {
+        if (index == -1) {
+            return null;
+        }
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(index);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(index);
+            default:
+                return cursor.getString(index);
+        }
+    }
+
+    private static long bucketOf(long time) {
+        // floor division, so times before 1970 end up in the right bucket as well
+        long bucket = time / BUCKET_MILLIS;
+        return time < 0 && bucket * BUCKET_MILLIS != time ? bucket - 1 : bucket;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int c = 0; c < columns.length; c++) {
+            if (columns[c].equals(column)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("The cached columns need to include " + column);
+    }
+
+    private static final class Bucket {
+        private final Map<String, List<Object[]>> rowsByCalendar = new HashMap<String, List<Object[]>>();
+
+        private void add(String calendarId, Object[] row) {
+            List<Object[]> rows = rowsByCalendar.get(calendarId);
+            if (rows == null) {
+                rows = new ArrayList<Object[]>();
+                rowsByCalendar.put(calendarId, rows);
+            }
+            rows.add(row);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package nl.xservices.plugins;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * A copy of the instances of the coming weeks in the files dir, for getCachedEventsInRange, so an app can draw its
+ * agenda right after a cold start instead of waiting for the provider to expand the instances.
+ * <p>
+ * The file is memory-mapped and laid out so a query only decodes the rows it returns: a header, then an index with
+ * the begin, end, calendar id and data offset of every row (fixed width, sorted by begin), then the rows themselves.
+ * The snapshot is only a head start: the caller reads the provider right after serving it, and saves what it read as
+ * the next snapshot.
+ */
+public final class InstanceSnapshot {
+
+    private static final int FILE_VERSION = 1;
+
+    // begin, end, calendar id, data offset and flags of a row
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 8 + 4 + 4;
+    private static final int FLAG_UTC = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_STRING = 3;
+
+    /**
+     * How far the provider has to be read around the window: all day events are stored in UTC, so they may start up to
+     * a day before (or end a day after) the window in local time.
+     */
+    public static final long MARGIN_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String LOG_TAG = InstanceSnapshot.class.getCanonicalName();
+
+    private final File file;
+    private final String[] columns;
+    private final int beginIndex;
+    private final int endIndex;
+    private final int calendarIdIndex;
+    private final int timezoneIndex;
+
+    // mapped on first use, null when there's no (usable) snapshot
+    private ByteBuffer buffer;
+    private boolean loaded;
+    private String authority;
+    private long savedAt;
+    private long windowStart;
+    private long windowEnd;
+    private int rowCount;
+    private int indexPosition;
+    private int dataPosition;
+
+    /**
+     * @param columns the columns to keep for every instance, must include begin, end, calendar_id and eventTimezone
+     */
+    public InstanceSnapshot(File file, String[] columns) {
+        this.file = file;
+        this.columns = columns;
+        this.beginIndex = indexOf(columns, "begin");
+        this.endIndex = indexOf(columns, "end");
+        this.calendarIdIndex = indexOf(columns, "calendar_id");
+        this.timezoneIndex = indexOf(columns, "eventTimezone");
+    }
+
+    /**
+     * @return the range to keep in the snapshot: the coming weeks from the start of today, extended to the requested
+     * range when that doesn't make the snapshot wider than {@link InstanceCache#MAX_SPAN_MILLIS}
+     */
+    public static long[] getWindow(long start, long end, int weeks) {
+        final Calendar day = Calendar.getInstance();
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        final long windowStart = day.getTimeInMillis();
+        // adding days rather than millis, so the window ends at midnight when the clock changes in between
+        day.add(Calendar.DAY_OF_MONTH, 7 * weeks);
+        final long windowEnd = day.getTimeInMillis();
+        if (Math.max(end, windowEnd) - Math.min(start, windowStart) <= InstanceCache.MAX_SPAN_MILLIS) {
+            return new long[]{Math.min(start, windowStart), Math.max(end, windowEnd)};
+        }
+        return new long[]{windowStart, windowEnd};
+    }
+
+    /**
+     * @return when the snapshot was saved, 0 when there's none
+     */
+    public synchronized long getSavedAt() {
+        return load() ? savedAt : 0;
+    }
+
+    /**
+     * Returns the instances within [start, end] (or overlapping it, see {@link ExpandedInstances#overlaps}), sorted by
+     * begin, like listEventsInRange does.
+     *
+     * @param authority   the provider the instances should come from, a snapshot of another one isn't used
+     * @param calendarIds only return the instances of these calendars, null for all of them
+     * @return a cursor with the columns of the snapshot, null when the snapshot doesn't cover the range
+     */
+    public synchronized Cursor query(String authority, long start, long end, boolean overlap, Set<String> calendarIds) {
+        if (!load() || !authority.equals(this.authority) || start < windowStart || end > windowEnd) {
+            return null;
+        }
+        // all day events are stored in UTC, others in the user's timezone
+        final long utcStart = start + TimeZone.getDefault().getOffset(start);
+        final long utcEnd = end + TimeZone.getDefault().getOffset(end);
+        final long lastBegin = Math.max(end, utcEnd);
+        final MatrixCursor cursor = new MatrixCursor(columns);
+        try {
+            // only an overlapping instance can begin before the range
+            for (int row = overlap ? 0 : firstRowFrom(Math.min(start, utcStart)); row < rowCount; row++) {
+                final int entry = indexPosition + row * INDEX_ENTRY_SIZE;
+                final long begin = buffer.getLong(entry);
+                if (begin > lastBegin) {
+                    break;
+                }
+                final long rowEnd = buffer.getLong(entry + 8);
+                final boolean utc = (buffer.getInt(entry + 28) & FLAG_UTC) != 0;
+                final long from = utc ? utcStart : start;
+                final long to = utc ? utcEnd : end;
+                if (overlap ? !ExpandedInstances.overlaps(begin, rowEnd, from, to) : begin < from || rowEnd > to) {
+                    continue;
+                }
+                if (calendarIds != null && !calendarIds.contains(String.valueOf(buffer.getLong(entry + 16)))) {
+                    continue;
+                }
+                cursor.addRow(readRow(dataPosition + buffer.getInt(entry + 24)));
+            }
+        } catch (BufferUnderflowException e) {
+            return corrupt(cursor, e);
+        } catch (IndexOutOfBoundsException e) {
+            return corrupt(cursor, e);
+        }
+        return cursor;
+    }
+
+    /**
+     * Replaces the snapshot with the instances of the cursor, which should hold every instance overlapping
+     * [windowStart - {@link #MARGIN_MILLIS}, windowEnd + {@link #MARGIN_MILLIS}], sorted by begin. Closes the cursor.
+     * This writes a file, so don't call it on the main thread.
+     */
+    public void save(String authority, long windowStart, long windowEnd, Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int rows = 0;
+        try {
+            final DataOutputStream indexOut = new DataOutputStream(index);
+            final DataOutputStream dataOut = new DataOutputStream(data);
+            final int[] indices = new int[columns.length];
+            for (int c = 0; c < columns.length; c++) {
+                indices[c] = cursor.getColumnIndex(columns[c]);
+            }
+            final Object[] row = new Object[columns.length];
+            long previousBegin = Long.MIN_VALUE;
+            while (cursor.moveToNext()) {
+                for (int c = 0; c < columns.length; c++) {
+                    row[c] = InstanceCache.readValue(cursor, indices[c]);
+                }
+                if (!(row[beginIndex] instanceof Long) || !(row[endIndex] instanceof Long)) {
+                    continue;
+                }
+                final long begin = (Long) row[beginIndex];
+                if (begin < previousBegin) {
+                    throw new IllegalArgumentException("The instances need to be sorted by begin");
+                }
+                previousBegin = begin;
+                indexOut.writeLong(begin);
+                indexOut.writeLong((Long) row[endIndex]);
+                indexOut.writeLong(row[calendarIdIndex] instanceof Long ? (Long) row[calendarIdIndex] : -1);
+                indexOut.writeInt(dataOut.size());
+                indexOut.writeInt("UTC".equals(row[timezoneIndex]) ? FLAG_UTC : 0);
+                for (Object value : row) {
+                    writeValue(dataOut, value);
+                }
+                rows++;
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        } finally {
+            cursor.close();
+        }
+
+        // write to a temporary file first, so a crash never leaves a half written snapshot behind. Every save gets a
+        // file of its own, saves on different read threads would otherwise write into the same one
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(authority);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(windowStart);
+            out.writeLong(windowEnd);
+            out.writeInt(columns.length);
+            for (String column : columns) {
+                out.writeUTF(column);
+            }
+            out.writeInt(rows);
+            index.writeTo(out);
+            data.writeTo(out);
+            out.close();
+            out = null;
+            synchronized (this) {
+                // the mapping of the old file stays valid after the rename, but it's no longer needed
+                buffer = null;
+                loaded = false;
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Can't rename " + temp + " to " + file);
+                }
+            }
+            temp = null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't write the instance snapshot", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (temp != null && temp.exists() && !temp.delete()) {
+                Log.w(LOG_TAG, "Can't delete " + temp);
+            }
+        }
+    }
+
+    public synchronized void delete() {
+        buffer = null;
+        loaded = true;
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Can't delete the instance snapshot " + file);
+        }
+    }
+
+    // maps the file and reads its header, when that hasn't been done yet
+    private boolean load() {
+        if (loaded) {
+            return buffer != null;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            final ByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (mapped.getInt() != FILE_VERSION) {
+                return false;
+            }
+            final String mappedAuthority = readUTF(mapped);
+            final long mappedSavedAt = mapped.getLong();
+            final long mappedWindowStart = mapped.getLong();
+            final long mappedWindowEnd = mapped.getLong();
+            // a snapshot written by a version of the plugin which kept other columns is of no use
+            final String[] mappedColumns = new String[mapped.getInt()];
+            for (int c = 0; c < mappedColumns.length; c++) {
+                mappedColumns[c] = readUTF(mapped);
+            }
+            if (!Arrays.equals(columns, mappedColumns)) {
+                return false;
+            }
+            rowCount = mapped.getInt();
+            indexPosition = mapped.position();
+            dataPosition = indexPosition + rowCount * INDEX_ENTRY_SIZE;
+            if (rowCount < 0 || dataPosition > mapped.limit()) {
+                throw new IOException("Truncated instance snapshot");
+            }
+            authority = mappedAuthority;
+            savedAt = mappedSavedAt;
+            windowStart = mappedWindowStart;
+            windowEnd = mappedWindowEnd;
+            buffer = mapped;
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't read the instance snapshot", e);
+            return false;
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Can't read the instance snapshot", e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    // the mapping stays valid after the file is closed
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private Cursor corrupt(Cursor cursor, RuntimeException e) {
+        Log.w(LOG_TAG, "The instance snapshot is corrupt", e);
+        cursor.close();
+        delete();
+        return null;
+    }
+
+    // the first row which begins at or after the time, the index is sorted by begin
+    private int firstRowFrom(long time) {
+        int low = 0;
+        int high = rowCount;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (buffer.getLong(indexPosition + middle * INDEX_ENTRY_SIZE) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private Object[] readRow(int position) {
+        // a duplicate, so concurrent queries don't share a position
+        final ByteBuffer in = buffer.duplicate();
+        in.position(position);
+        final Object[] row = new Object[columns.length];
+        for (int c = 0; c < row.length; c++) {
+            switch (in.get()) {
+                case TYPE_NULL:
+                    break;
+                case TYPE_LONG:
+                    row[c] = in.getLong();
+                    break;
+                case TYPE_DOUBLE:
+                    row[c] = in.getDouble();
+                    break;
+                case TYPE_STRING:
+                    final byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    row[c] = new String(bytes, UTF_8);
+                    break;
+                default:
+                    throw new IndexOutOfBoundsException("Unknown value type at " + in.position());
+            }
+        }
+        return row;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else {
+            final byte[] bytes = value.toString().getBytes(UTF_8);
+            out.writeByte(TYPE_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // reads what DataOutputStream.writeUTF wrote, the names written are plain ASCII
+    private static String readUTF(ByteBuffer in) {
+        final byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int c = 0; c < columns.length; c++) {
+            if (columns[c].equals(column)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("The snapshot columns need to include " + column);
+    }
+}
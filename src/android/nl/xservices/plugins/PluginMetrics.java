@@ -0,0 +1,334 @@
+package nl.xservices.plugins;
+
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters per plugin action, for getPluginMetrics and the periodic logcat dump.
+ * <p>
+ * Every invocation gets a {@link Sample} (through the CallbackContext it's invoked with) which the action fills in
+ * as it goes: the time it waited for a thread, the provider query, iterating the cursor, serializing the result, and
+ * the number of rows. The sample is recorded when the final result is sent, together with the total time and the
+ * size of the payloads. Recording is a couple of atomic increments, so the hot paths can stay instrumented.
+ */
+public final class PluginMetrics {
+
+    public static final String QUEUE_WAIT = "queueWaitMicros";
+    public static final String QUERY = "queryMicros";
+    public static final String ITERATION = "iterationMicros";
+    public static final String SERIALIZATION = "serializationMicros";
+    public static final String TOTAL = "totalMicros";
+    public static final String ROWS = "rows";
+    public static final String PAYLOAD_BYTES = "payloadBytes";
+
+    private static final String[] PHASES = {QUEUE_WAIT, QUERY, ITERATION, SERIALIZATION};
+
+    private static final String LOG_TAG = PluginMetrics.class.getCanonicalName();
+
+    // the sample of calls which aren't metered, so callers never have to check for null
+    private static final Sample NO_SAMPLE = new Sample(null, null);
+
+    private final ConcurrentHashMap<String, ActionMetrics> actions = new ConcurrentHashMap<String, ActionMetrics>();
+    private volatile long sinceMillis = System.currentTimeMillis();
+    private Timer logTimer;
+
+    /**
+     * Wraps the callback of an invocation, so the results it sends are metered. A callback which is metered already
+     * (a request which is invoked again after a permission dialog) is returned as is.
+     */
+    public CallbackContext meter(String action, CallbackContext callbackContext, CordovaWebView webView) {
+        if (callbackContext instanceof MeteredCallbackContext) {
+            return callbackContext;
+        }
+        return new MeteredCallbackContext(callbackContext.getCallbackId(), webView, new Sample(this, action));
+    }
+
+    /**
+     * @return the sample of the invocation the callback belongs to, one which records nothing for callbacks which
+     * weren't created by {@link #meter}
+     */
+    public static Sample sampleOf(CallbackContext callbackContext) {
+        return callbackContext instanceof MeteredCallbackContext ? ((MeteredCallbackContext) callbackContext).sample : NO_SAMPLE;
+    }
+
+    public JSONObject toJSONObject() throws JSONException {
+        final JSONObject result = new JSONObject()
+                .put("sinceMillis", sinceMillis)
+                .put("nowMillis", System.currentTimeMillis());
+        final JSONObject actionsResult = new JSONObject();
+        for (Map.Entry<String, ActionMetrics> entry : new TreeMap<String, ActionMetrics>(actions).entrySet()) {
+            actionsResult.put(entry.getKey(), entry.getValue().toJSONObject());
+        }
+        return result.put("actions", actionsResult);
+    }
+
+    public void reset() {
+        actions.clear();
+        sinceMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes the metrics to logcat every intervalMillis, until {@link #stopLogging}.
+     */
+    public synchronized void startLogging(long intervalMillis) {
+        stopLogging();
+        logTimer = new Timer("Calendar-metrics", true);
+        logTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    Log.i(LOG_TAG, toJSONObject().toString());
+                } catch (JSONException e) {
+                    Log.w(LOG_TAG, "Can't log the plugin metrics", e);
+                }
+            }
+        }, intervalMillis, intervalMillis);
+    }
+
+    public synchronized void stopLogging() {
+        if (logTimer != null) {
+            logTimer.cancel();
+            logTimer = null;
+        }
+    }
+
+    private void record(Sample sample, long totalNanos, boolean error) {
+        ActionMetrics metrics = actions.get(sample.action);
+        if (metrics == null) {
+            metrics = new ActionMetrics();
+            final ActionMetrics raced = actions.putIfAbsent(sample.action, metrics);
+            if (raced != null) {
+                metrics = raced;
+            }
+        }
+        metrics.calls.incrementAndGet();
+        if (error) {
+            metrics.errors.incrementAndGet();
+        }
+        metrics.total.record(totalNanos / 1000);
+        for (int p = 0; p < PHASES.length; p++) {
+            if (sample.phaseNanos[p] >= 0) {
+                metrics.phases[p].record(sample.phaseNanos[p] / 1000);
+            }
+        }
+        if (sample.rows >= 0) {
+            metrics.rows.record(sample.rows);
+        }
+        metrics.payloadBytes.record(sample.payloadBytes);
+    }
+
+    /**
+     * What one invocation spent its time on. Phases which were never recorded are left out of the histograms.
+     * A sample is filled in by one thread at a time, the executor hands it over from the caller to a worker.
+     */
+    public static final class Sample {
+        private final PluginMetrics metrics;
+        private final String action;
+        private final long createdNanos = System.nanoTime();
+        private final long[] phaseNanos = {-1, -1, -1, -1};
+        private long rows = -1;
+        private long payloadBytes;
+        private boolean recorded;
+
+        private Sample(PluginMetrics metrics, String action) {
+            this.metrics = metrics;
+            this.action = action;
+        }
+
+        /**
+         * Marks the moment a worker thread picks up the invocation, the time since it was invoked is the queue wait.
+         *
+         * @return now, to pass to the {@link #query} etc. of the first phase
+         */
+        public long started() {
+            final long now = System.nanoTime();
+            if (metrics != null && phaseNanos[0] < 0) {
+                phaseNanos[0] = now - createdNanos;
+            }
+            return now;
+        }
+
+        /**
+         * Adds the time since phaseStart to the provider query time.
+         *
+         * @return now, the start of the next phase
+         */
+        public long query(long phaseStart) {
+            return add(1, phaseStart);
+        }
+
+        public long iteration(long phaseStart) {
+            return add(2, phaseStart);
+        }
+
+        public long serialization(long phaseStart) {
+            return add(3, phaseStart);
+        }
+
+        public void addRows(long count) {
+            if (metrics != null) {
+                rows = Math.max(rows, 0) + count;
+            }
+        }
+
+        private long add(int phase, long phaseStart) {
+            final long now = System.nanoTime();
+            if (metrics == null) {
+                return now;
+            }
+            phaseNanos[phase] = Math.max(phaseNanos[phase], 0) + now - phaseStart;
+            return now;
+        }
+
+        private synchronized void sent(PluginResult pluginResult) {
+            if (metrics == null || recorded) {
+                return;
+            }
+            final String message = pluginResult.getMessage();
+            payloadBytes += message != null ? message.length() : 0;
+            if (!pluginResult.getKeepCallback()) {
+                recorded = true;
+                final int status = pluginResult.getStatus();
+                metrics.record(this, System.nanoTime() - createdNanos,
+                        status != PluginResult.Status.OK.ordinal() && status != PluginResult.Status.NO_RESULT.ordinal());
+            }
+        }
+    }
+
+    private static final class MeteredCallbackContext extends CallbackContext {
+        private final Sample sample;
+
+        private MeteredCallbackContext(String callbackId, CordovaWebView webView, Sample sample) {
+            super(callbackId, webView);
+            this.sample = sample;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            if (!isFinished()) {
+                sample.sent(pluginResult);
+            }
+            super.sendPluginResult(pluginResult);
+        }
+    }
+
+    private static final class ActionMetrics {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final Histogram total = new Histogram();
+        private final Histogram[] phases = {new Histogram(), new Histogram(), new Histogram(), new Histogram()};
+        private final Histogram rows = new Histogram();
+        private final Histogram payloadBytes = new Histogram();
+
+        private JSONObject toJSONObject() throws JSONException {
+            final JSONObject result = new JSONObject()
+                    .put("calls", calls.get())
+                    .put("errors", errors.get())
+                    .put(TOTAL, total.toJSONObject());
+            for (int p = 0; p < PHASES.length; p++) {
+                if (phases[p].getCount() > 0) {
+                    result.put(PHASES[p], phases[p].toJSONObject());
+                }
+            }
+            if (rows.getCount() > 0) {
+                result.put(ROWS, rows.toJSONObject());
+            }
+            return result.put(PAYLOAD_BYTES, payloadBytes.toJSONObject());
+        }
+    }
+
+    /**
+     * A histogram of non-negative values in the manner of HdrHistogram: values below 16 get a bucket of their own,
+     * larger ones share a bucket with the values which have the same top 4 bits, so every bucket is accurate within
+     * 12.5%. It takes a fixed ~2.5 KB and recording a value is a few instructions plus atomic increments.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+        // values are clamped to 2^40: 12 days in micros, a terabyte in bytes
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, Math.min(value, (1L << MAX_EXPONENT) - 1));
+            counts.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+                // retry
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the highest value of the bucket holding the value at the percentile, 0 when nothing was recorded
+         */
+        long getValueAtPercentile(double percentile) {
+            final long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts.get(b);
+                if (seen >= rank) {
+                    return Math.min(lowestValueOf(b + 1) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private JSONObject toJSONObject() throws JSONException {
+            final long n = count.get();
+            return new JSONObject()
+                    .put("count", n)
+                    .put("mean", n > 0 ? sum.get() / n : 0)
+                    .put("p50", getValueAtPercentile(50))
+                    .put("p90", getValueAtPercentile(90))
+                    .put("p99", getValueAtPercentile(99))
+                    .put("max", max.get());
+        }
+
+        static int bucketOf(long value) {
+            if (value < LINEAR_LIMIT) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long lowestValueOf(int bucket) {
+            if (bucket < LINEAR_LIMIT) {
+                return bucket;
+            }
+            final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+            final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package nl.xservices.plugins;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Describes which provider columns a query reads and how every column ends up in the JSON passed to JS.
+ * <p>
+ * A projection is set up once (typically as a constant) and bound to every cursor it's used for,
+ * see {@link #bind(Cursor)}. The returned {@link RowMapper} has the column indices resolved, so
+ * converting a row doesn't need any column name lookups.
+ */
+public final class Projection {
+
+    /** cursor.getString */
+    public static final int TYPE_STRING = 0;
+    /** cursor.getString, or "" when the column is null */
+    public static final int TYPE_STRING_NOT_NULL = 1;
+    /** cursor.getLong */
+    public static final int TYPE_LONG = 2;
+    /** cursor.getInt */
+    public static final int TYPE_INT = 3;
+    /** cursor.getInt, passed to JS as a #RRGGBB display color */
+    public static final int TYPE_COLOR_HEX = 4;
+    /** true when the column is "1" */
+    public static final int TYPE_FLAG = 5;
+    /** cursor.getLong, or null when the column is null */
+    public static final int TYPE_NULLABLE_LONG = 6;
+
+    private final List<String> keys = new ArrayList<String>();
+    private final List<String[]> columns = new ArrayList<String[]>();
+    private final List<Integer> types = new ArrayList<Integer>();
+
+    /**
+     * Adds a field which is read from column and passed to JS as key.
+     * Any fallbackColumns are tried (in order) when a provider doesn't return the column by its regular name.
+     */
+    public Projection add(String key, String column, int type, String... fallbackColumns) {
+        String[] names = new String[fallbackColumns.length + 1];
+        names[0] = column;
+        System.arraycopy(fallbackColumns, 0, names, 1, fallbackColumns.length);
+        keys.add(key);
+        columns.add(names);
+        types.add(type);
+        return this;
+    }
+
+    /**
+     * Narrows this projection down to the given keys, so a query only reads the columns the caller asked for.
+     *
+     * @return a projection with the fields of this one whose key was passed, in the order of this projection
+     * @throws IllegalArgumentException when a key isn't a field of this projection
+     */
+    public Projection select(Collection<String> selectedKeys) {
+        for (String key : selectedKeys) {
+            if (!keys.contains(key)) {
+                throw new IllegalArgumentException("Unknown field: " + key);
+            }
+        }
+        Projection selected = new Projection();
+        for (int field = 0; field < keys.size(); field++) {
+            if (selectedKeys.contains(keys.get(field))) {
+                selected.keys.add(keys.get(field));
+                selected.columns.add(columns.get(field));
+                selected.types.add(types.get(field));
+            }
+        }
+        return selected;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public String getKey(int field) {
+        return keys.get(field);
+    }
+
+    public int getType(int field) {
+        return types.get(field);
+    }
+
+    /**
+     * @return the JS keys in field order, handy as the header of a {@link ColumnarResult}
+     */
+    public String[] getKeys() {
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * @return the distinct columns to pass as the projection of a ContentResolver query
+     */
+    public String[] getColumns() {
+        List<String> distinct = new ArrayList<String>(columns.size());
+        for (String[] names : columns) {
+            if (!distinct.contains(names[0])) {
+                distinct.add(names[0]);
+            }
+        }
+        return distinct.toArray(new String[distinct.size()]);
+    }
+
+    /**
+     * Resolves the column indices of this projection for the given cursor.
+     */
+    public RowMapper bind(Cursor cursor) {
+        int[] indices = new int[columns.size()];
+        for (int field = 0; field < indices.length; field++) {
+            String[] names = columns.get(field);
+            int index = -1;
+            for (int n = 0; n < names.length && index == -1; n++) {
+                index = cursor.getColumnIndex(names[n]);
+            }
+            indices[field] = index;
+        }
+        return new RowMapper(this, cursor, indices);
+    }
+}
@@ -0,0 +1,669 @@
+package nl.xservices.plugins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Expands the occurrences of an event from its DTSTART, duration, RRULE, RDATE and EXDATE (RFC 5545) for a window,
+ * without going through the Instances table of the provider.
+ * <p>
+ * One expander is meant to be reused for all events of a listing: {@link #reset} takes in the rules of an event,
+ * after which {@link #next} walks its occurrences within the window in order. Periods before the window are skipped
+ * arithmetically, or, when the rule has a COUNT, walked through with the same reused buffers, so occurrences outside
+ * the window don't allocate anything.
+ * <p>
+ * Supported are FREQ=DAILY, WEEKLY, MONTHLY and YEARLY with INTERVAL, COUNT, UNTIL, WKST, BYMONTH, BYMONTHDAY,
+ * BYDAY (with ordinals) and BYSETPOS. For any other rule {@link #reset} returns false, the caller can then have the
+ * provider expand that event.
+ */
+public final class RecurrenceExpander {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final int DAILY = 0;
+    private static final int WEEKLY = 1;
+    private static final int MONTHLY = 2;
+    private static final int YEARLY = 3;
+
+    private static final String[] WEEKDAYS = {"MO", "TU", "WE", "TH", "FR", "SA", "SU"};
+
+    // a year has at most 366 candidate days, the largest period there is
+    private static final int MAX_CANDIDATES = 366;
+    // rules listing more BYMONTHDAY, BYDAY or BYSETPOS values are left to the provider
+    private static final int MAX_RULE_VALUES = 64;
+
+    private final Map<String, TimeZone> timeZones = new HashMap<String, TimeZone>();
+
+    // the rule of the current event
+    private boolean recurring;
+    private int freq;
+    private int interval;
+    private int count;
+    private long until;
+    private int weekStart;
+    private int byMonthMask;
+    private final int[] byMonthDay = new int[MAX_RULE_VALUES];
+    private int byMonthDayCount;
+    private final int[] byDayWeekday = new int[MAX_RULE_VALUES];
+    private final int[] byDayOrdinal = new int[MAX_RULE_VALUES];
+    private int byDayCount;
+    private final int[] bySetPos = new int[MAX_RULE_VALUES];
+    private int bySetPosCount;
+
+    // the current event
+    private TimeZone timeZone;
+    private long dtstart;
+    private long duration;
+    private long startDay;
+    private long startWeek;
+    private long timeOfDay;
+    private int startYear;
+    private int startMonth;
+    private int startDayOfMonth;
+    private int startWeekday;
+    private long[] rdates = new long[8];
+    private int rdateCount;
+    private long[] exdates = new long[8];
+    private int exdateCount;
+
+    // the window
+    private long windowBegin;
+    private long windowEnd;
+    private long lastDay;
+
+    // the iteration
+    private long period;
+    private final long[] candidates = new long[MAX_CANDIDATES];
+    private final long[] selected = new long[MAX_CANDIDATES];
+    private int candidateCount;
+    private int candidateIndex;
+    private int emitted;
+    private long nextRule;
+    private int rdateIndex;
+    private long begin;
+
+    // the number of dates the last parseDates call found
+    private int parsedCount;
+
+    // the result of civil(day)
+    private int civilYear;
+    private int civilMonth;
+    private int civilDay;
+
+    /**
+     * Starts expanding an event. Recurring events need a duration, single events pass dtend - dtstart.
+     *
+     * @param timezone the timezone of the event, null for the default one. Its local time is what the rule repeats
+     * @param rrule    null for an event which only has a dtstart (and possibly rdates)
+     * @return false when the rule has parts this expander doesn't support, next() won't return anything then
+     */
+    public boolean reset(long dtstart, long duration, String timezone, String rrule, String rdate, String exdate,
+                         long windowBegin, long windowEnd) {
+        this.timeZone = getTimeZone(timezone);
+        this.dtstart = dtstart;
+        this.duration = Math.max(duration, 0);
+        this.windowBegin = windowBegin;
+        this.windowEnd = windowEnd;
+        this.recurring = rrule != null && rrule.length() > 0;
+        this.candidateCount = 0;
+        this.candidateIndex = 0;
+        this.rdateIndex = 0;
+
+        if (recurring && !parseRule(rrule)) {
+            recurring = false;
+            nextRule = Long.MAX_VALUE;
+            rdateCount = 0;
+            return false;
+        }
+        rdates = parseDates(rdate, rdates);
+        rdateCount = parsedCount;
+        exdates = parseDates(exdate, exdates);
+        exdateCount = parsedCount;
+
+        // DTSTART always is the first occurrence
+        nextRule = dtstart;
+        emitted = 1;
+        if (recurring) {
+            final long localStart = dtstart + timeZone.getOffset(dtstart);
+            startDay = floorDiv(localStart, DAY_MILLIS);
+            timeOfDay = localStart - startDay * DAY_MILLIS;
+            civil(startDay);
+            startYear = civilYear;
+            startMonth = civilMonth;
+            startDayOfMonth = civilDay;
+            startWeekday = dayOfWeek(startDay);
+            startWeek = startDay - floorMod(startWeekday - weekStart, 7);
+            lastDay = localDay(Math.min(windowEnd, until)) + 1;
+            // without a COUNT there's no need to walk through the periods before the window
+            period = count < 0 ? Math.max(0, periodOf(localDay(windowBegin - this.duration)) - 1) : 0;
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next occurrence which overlaps the window.
+     */
+    public boolean next() {
+        while (true) {
+            final long rdate = rdateIndex < rdateCount ? rdates[rdateIndex] : Long.MAX_VALUE;
+            final long occurrence;
+            if (nextRule <= rdate) {
+                occurrence = nextRule;
+                if (occurrence == Long.MAX_VALUE) {
+                    return false;
+                }
+                nextRule = recurring ? nextRuleOccurrence() : Long.MAX_VALUE;
+                if (rdate == occurrence) {
+                    rdateIndex++;
+                }
+            } else {
+                occurrence = rdate;
+                rdateIndex++;
+            }
+            if (occurrence > windowEnd) {
+                return false;
+            }
+            if (occurrence + duration < windowBegin) {
+                continue;
+            }
+            if (exdateCount > 0 && Arrays.binarySearch(exdates, 0, exdateCount, occurrence) >= 0) {
+                continue;
+            }
+            begin = occurrence;
+            return true;
+        }
+    }
+
+    public long getBegin() {
+        return begin;
+    }
+
+    public long getEnd() {
+        return begin + duration;
+    }
+
+    private long nextRuleOccurrence() {
+        while (count < 0 || emitted < count) {
+            if (candidateIndex == candidateCount) {
+                if (firstDayOfPeriod(period) > lastDay) {
+                    return Long.MAX_VALUE;
+                }
+                fillPeriod(period++);
+                candidateIndex = 0;
+                continue;
+            }
+            final long occurrence = toUtc(candidates[candidateIndex++] * DAY_MILLIS + timeOfDay);
+            if (occurrence <= dtstart) {
+                continue;
+            }
+            if (occurrence > until) {
+                return Long.MAX_VALUE;
+            }
+            emitted++;
+            return occurrence;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // the candidate days (local epoch days) of a period, sorted and with BYSETPOS applied
+    private void fillPeriod(long p) {
+        candidateCount = 0;
+        switch (freq) {
+            case DAILY: {
+                final long day = startDay + p * interval;
+                civil(day);
+                if (monthAllowed(civilMonth) && monthDayAllowed(civilDay, daysInMonth(civilYear, civilMonth))
+                        && (byDayCount == 0 || hasWeekday(dayOfWeek(day)))) {
+                    candidates[candidateCount++] = day;
+                }
+                break;
+            }
+            case WEEKLY: {
+                final long first = startWeek + p * interval * 7;
+                for (long day = first; day < first + 7; day++) {
+                    final int weekday = dayOfWeek(day);
+                    if (byDayCount > 0 ? hasWeekday(weekday) : weekday == startWeekday) {
+                        civil(day);
+                        if (monthAllowed(civilMonth)) {
+                            candidates[candidateCount++] = day;
+                        }
+                    }
+                }
+                break;
+            }
+            case MONTHLY: {
+                final long month = startYear * 12L + startMonth - 1 + p * interval;
+                final int year = (int) floorDiv(month, 12);
+                final int monthOfYear = (int) floorMod(month, 12) + 1;
+                if (monthAllowed(monthOfYear)) {
+                    addMonth(year, monthOfYear);
+                }
+                break;
+            }
+            default: {
+                final int year = (int) (startYear + p * interval);
+                if (byMonthMask != 0) {
+                    for (int month = 1; month <= 12; month++) {
+                        if ((byMonthMask & (1 << month)) != 0) {
+                            addMonth(year, month);
+                        }
+                    }
+                } else if (byMonthDayCount > 0) {
+                    for (int month = 1; month <= 12; month++) {
+                        addMonth(year, month);
+                    }
+                } else if (byDayCount > 0) {
+                    addYearWeekdays(year);
+                } else if (startDayOfMonth <= daysInMonth(year, startMonth)) {
+                    candidates[candidateCount++] = daysFromCivil(year, startMonth, startDayOfMonth);
+                }
+                break;
+            }
+        }
+        sortCandidates();
+        if (bySetPosCount > 0) {
+            applySetPos();
+        }
+    }
+
+    private void addMonth(int year, int month) {
+        final int days = daysInMonth(year, month);
+        final long first = daysFromCivil(year, month, 1);
+        if (byMonthDayCount > 0) {
+            // BYMONTHDAY=1,-31 can name a day twice, only add it once so 12 months fit in the candidates
+            long added = 0;
+            for (int i = 0; i < byMonthDayCount; i++) {
+                final int dayOfMonth = byMonthDay[i] > 0 ? byMonthDay[i] : days + byMonthDay[i] + 1;
+                if (dayOfMonth >= 1 && dayOfMonth <= days && (added & (1L << dayOfMonth)) == 0
+                        && (byDayCount == 0 || matchesByDay(dayOfWeek(first + dayOfMonth - 1), dayOfMonth, days))) {
+                    added |= 1L << dayOfMonth;
+                    candidates[candidateCount++] = first + dayOfMonth - 1;
+                }
+            }
+        } else if (byDayCount > 0) {
+            for (int dayOfMonth = 1; dayOfMonth <= days; dayOfMonth++) {
+                if (matchesByDay(dayOfWeek(first + dayOfMonth - 1), dayOfMonth, days)) {
+                    candidates[candidateCount++] = first + dayOfMonth - 1;
+                }
+            }
+        } else if (startDayOfMonth <= days) {
+            // months without the day of DTSTART (like the 31st) are skipped
+            candidates[candidateCount++] = first + startDayOfMonth - 1;
+        }
+    }
+
+    private void addYearWeekdays(int year) {
+        final long first = daysFromCivil(year, 1, 1);
+        final int days = (int) (daysFromCivil(year + 1, 1, 1) - first);
+        for (int dayOfYear = 1; dayOfYear <= days; dayOfYear++) {
+            if (matchesByDay(dayOfWeek(first + dayOfYear - 1), dayOfYear, days)) {
+                candidates[candidateCount++] = first + dayOfYear - 1;
+            }
+        }
+    }
+
+    // the ordinal of a BYDAY (like -1FR) counts within the month, or within the year for a plain YEARLY rule
+    private boolean matchesByDay(int weekday, int dayOfPeriod, int daysInPeriod) {
+        for (int i = 0; i < byDayCount; i++) {
+            if (byDayWeekday[i] != weekday) {
+                continue;
+            }
+            final int ordinal = byDayOrdinal[i];
+            if (ordinal == 0
+                    || (ordinal > 0 && (dayOfPeriod - 1) / 7 + 1 == ordinal)
+                    || (ordinal < 0 && -((daysInPeriod - dayOfPeriod) / 7 + 1) == ordinal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasWeekday(int weekday) {
+        for (int i = 0; i < byDayCount; i++) {
+            if (byDayWeekday[i] == weekday) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean monthAllowed(int month) {
+        return byMonthMask == 0 || (byMonthMask & (1 << month)) != 0;
+    }
+
+    private boolean monthDayAllowed(int dayOfMonth, int days) {
+        if (byMonthDayCount == 0) {
+            return true;
+        }
+        for (int i = 0; i < byMonthDayCount; i++) {
+            if (byMonthDay[i] == dayOfMonth || days + byMonthDay[i] + 1 == dayOfMonth) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sortCandidates() {
+        // insertion sort, the candidates are (nearly) sorted already; duplicates are dropped
+        int size = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            final long day = candidates[i];
+            int j = size - 1;
+            while (j >= 0 && candidates[j] > day) {
+                candidates[j + 1] = candidates[j];
+                j--;
+            }
+            if (j >= 0 && candidates[j] == day) {
+                System.arraycopy(candidates, j + 2, candidates, j + 1, size - j - 1);
+                continue;
+            }
+            candidates[j + 1] = day;
+            size++;
+        }
+        candidateCount = size;
+    }
+
+    private void applySetPos() {
+        int size = 0;
+        for (int i = 0; i < bySetPosCount; i++) {
+            final int index = bySetPos[i] > 0 ? bySetPos[i] - 1 : candidateCount + bySetPos[i];
+            if (index >= 0 && index < candidateCount) {
+                selected[size++] = candidates[index];
+            }
+        }
+        System.arraycopy(selected, 0, candidates, 0, size);
+        candidateCount = size;
+        sortCandidates();
+    }
+
+    private long firstDayOfPeriod(long p) {
+        switch (freq) {
+            case DAILY:
+                return startDay + p * interval;
+            case WEEKLY:
+                return startWeek + p * interval * 7;
+            case MONTHLY: {
+                final long month = startYear * 12L + startMonth - 1 + p * interval;
+                return daysFromCivil((int) floorDiv(month, 12), (int) floorMod(month, 12) + 1, 1);
+            }
+            default:
+                return daysFromCivil((int) (startYear + p * interval), 1, 1);
+        }
+    }
+
+    // the index of the period holding the given day
+    private long periodOf(long day) {
+        if (day <= startDay) {
+            return 0;
+        }
+        switch (freq) {
+            case DAILY:
+                return (day - startDay) / interval;
+            case WEEKLY:
+                return (day - startWeek) / (7L * interval);
+            case MONTHLY:
+                civil(day);
+                return (civilYear * 12L + civilMonth - (startYear * 12L + startMonth)) / interval;
+            default:
+                civil(day);
+                return (civilYear - startYear) / interval;
+        }
+    }
+
+    private boolean parseRule(String rrule) {
+        freq = -1;
+        interval = 1;
+        count = -1;
+        until = Long.MAX_VALUE;
+        weekStart = 0;
+        byMonthMask = 0;
+        byMonthDayCount = 0;
+        byDayCount = 0;
+        bySetPosCount = 0;
+        if (rrule.indexOf('\n') != -1) {
+            // more than one rule
+            return false;
+        }
+        try {
+            for (String part : rrule.toUpperCase(Locale.US).split(";")) {
+                final int eq = part.indexOf('=');
+                if (eq == -1) {
+                    continue;
+                }
+                final String name = part.substring(0, eq).trim();
+                final String value = part.substring(eq + 1).trim();
+                if ("FREQ".equals(name)) {
+                    freq = "DAILY".equals(value) ? DAILY : "WEEKLY".equals(value) ? WEEKLY
+                            : "MONTHLY".equals(value) ? MONTHLY : "YEARLY".equals(value) ? YEARLY : -1;
+                    if (freq == -1) {
+                        return false;
+                    }
+                } else if ("INTERVAL".equals(name)) {
+                    interval = Math.max(1, Integer.parseInt(value));
+                } else if ("COUNT".equals(name)) {
+                    count = Integer.parseInt(value);
+                } else if ("UNTIL".equals(name)) {
+                    until = parseDate(value, timeZone, true);
+                } else if ("WKST".equals(name)) {
+                    weekStart = Math.max(0, Arrays.asList(WEEKDAYS).indexOf(value));
+                } else if ("BYMONTH".equals(name)) {
+                    for (String month : value.split(",")) {
+                        final int monthOfYear = Integer.parseInt(month.trim());
+                        if (monthOfYear < 1 || monthOfYear > 12) {
+                            return false;
+                        }
+                        byMonthMask |= 1 << monthOfYear;
+                    }
+                } else if ("BYMONTHDAY".equals(name)) {
+                    for (String dayOfMonth : value.split(",")) {
+                        if (byMonthDayCount == MAX_RULE_VALUES) {
+                            return false;
+                        }
+                        byMonthDay[byMonthDayCount++] = Integer.parseInt(dayOfMonth.trim());
+                    }
+                } else if ("BYDAY".equals(name)) {
+                    for (String day : value.split(",")) {
+                        day = day.trim();
+                        final int weekday = Arrays.asList(WEEKDAYS).indexOf(day.substring(Math.max(0, day.length() - 2)));
+                        if (weekday == -1) {
+                            return false;
+                        }
+                        if (byDayCount == MAX_RULE_VALUES) {
+                            return false;
+                        }
+                        final String ordinal = day.substring(0, day.length() - 2).replace("+", "");
+                        byDayWeekday[byDayCount] = weekday;
+                        byDayOrdinal[byDayCount++] = ordinal.length() > 0 ? Integer.parseInt(ordinal) : 0;
+                    }
+                } else if ("BYSETPOS".equals(name)) {
+                    for (String position : value.split(",")) {
+                        if (bySetPosCount == MAX_RULE_VALUES) {
+                            return false;
+                        }
+                        bySetPos[bySetPosCount++] = Integer.parseInt(position.trim());
+                    }
+                } else if (name.startsWith("BY") || "RSCALE".equals(name)) {
+                    // BYWEEKNO, BYYEARDAY, BYHOUR, BYMINUTE, BYSECOND
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return freq != -1;
+    }
+
+    /**
+     * Parses an RDATE or EXDATE value, "20180122T100000Z,20180123T100000Z" optionally preceded by "Europe/Amsterdam;",
+     * into the (possibly grown) array. The number of dates ends up in parsedCount, they're sorted.
+     */
+    private long[] parseDates(String value, long[] into) {
+        parsedCount = 0;
+        if (value == null || value.length() == 0) {
+            return into;
+        }
+        TimeZone zone = timeZone;
+        String dates = value;
+        final int separator = value.indexOf(';');
+        if (separator != -1) {
+            zone = getTimeZone(value.substring(0, separator).replace("TZID=", ""));
+            dates = value.substring(separator + 1);
+        }
+        for (String date : dates.split(",")) {
+            date = date.trim();
+            if (date.length() < 8) {
+                continue;
+            }
+            if (parsedCount == into.length) {
+                into = Arrays.copyOf(into, into.length * 2);
+            }
+            into[parsedCount++] = parseDate(date, zone, false);
+        }
+        Arrays.sort(into, 0, parsedCount);
+        return into;
+    }
+
+    /**
+     * Parses 20180122, 20180122T100000 (local time in the zone) or 20180122T100000Z.
+     *
+     * @param endOfDay for a date without a time: return the last millisecond of that day instead of its start
+     */
+    private static long parseDate(String value, TimeZone zone, boolean endOfDay) {
+        final int year = Integer.parseInt(value.substring(0, 4));
+        final int month = Integer.parseInt(value.substring(4, 6));
+        final int day = Integer.parseInt(value.substring(6, 8));
+        long local = daysFromCivil(year, month, day) * DAY_MILLIS;
+        if (value.length() < 15 || value.charAt(8) != 'T') {
+            return toUtc(zone, local) + (endOfDay ? DAY_MILLIS - 1 : 0);
+        }
+        local += Integer.parseInt(value.substring(9, 11)) * 3600000L
+                + Integer.parseInt(value.substring(11, 13)) * 60000L
+                + Integer.parseInt(value.substring(13, 15)) * 1000L;
+        return value.endsWith("Z") ? local : toUtc(zone, local);
+    }
+
+    /**
+     * Parses an RFC 5545 duration as the provider stores it, like P3600S, PT1H30M or P1D.
+     *
+     * @return the duration in millis, 0 when it can't be parsed
+     */
+    public static long parseDuration(String duration) {
+        if (duration == null || duration.length() < 2) {
+            return 0;
+        }
+        int i = 0;
+        final boolean negative = duration.charAt(0) == '-';
+        if (negative || duration.charAt(0) == '+') {
+            i++;
+        }
+        if (i >= duration.length() || duration.charAt(i) != 'P') {
+            return 0;
+        }
+        long millis = 0;
+        long number = 0;
+        for (i++; i < duration.length(); i++) {
+            final char c = duration.charAt(i);
+            if (c >= '0' && c <= '9') {
+                number = number * 10 + (c - '0');
+                continue;
+            }
+            switch (c) {
+                case 'W':
+                    millis += number * 7 * DAY_MILLIS;
+                    break;
+                case 'D':
+                    millis += number * DAY_MILLIS;
+                    break;
+                case 'H':
+                    millis += number * 3600000L;
+                    break;
+                case 'M':
+                    millis += number * 60000L;
+                    break;
+                case 'S':
+                    millis += number * 1000L;
+                    break;
+                case 'T':
+                    break;
+                default:
+                    return 0;
+            }
+            number = 0;
+        }
+        return negative ? -millis : millis;
+    }
+
+    private TimeZone getTimeZone(String id) {
+        if (id == null) {
+            return TimeZone.getDefault();
+        }
+        TimeZone zone = timeZones.get(id);
+        if (zone == null) {
+            zone = TimeZone.getTimeZone(id);
+            timeZones.put(id, zone);
+        }
+        return zone;
+    }
+
+    private long localDay(long utc) {
+        return floorDiv(utc + timeZone.getOffset(utc), DAY_MILLIS);
+    }
+
+    private long toUtc(long local) {
+        return toUtc(timeZone, local);
+    }
+
+    private static long toUtc(TimeZone zone, long local) {
+        final int offset = zone.getOffset(local - zone.getRawOffset());
+        final long utc = local - offset;
+        final int actual = zone.getOffset(utc);
+        return actual == offset ? utc : local - actual;
+    }
+
+    // days since 1970-01-01 of a date in the proleptic Gregorian calendar
+    static long daysFromCivil(int year, int month, int day) {
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = floorDiv(y, 400);
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // sets civilYear, civilMonth and civilDay to the date of the epoch day
+    private void civil(long epochDay) {
+        final long z = epochDay + 719468;
+        final long era = floorDiv(z, 146097);
+        final long dayOfEra = z - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        civilDay = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        civilMonth = (int) (mp < 10 ? mp + 3 : mp - 9);
+        civilYear = (int) (yearOfEra + era * 400 + (civilMonth <= 2 ? 1 : 0));
+    }
+
+    // 0 is monday, like WEEKDAYS. 1970-01-01 was a thursday
+    private static int dayOfWeek(long epochDay) {
+        return (int) floorMod(epochDay + 3, 7);
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static long floorDiv(long x, long y) {
+        final long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+}
@@ -0,0 +1,102 @@
+package nl.xservices.plugins;
+
+import android.database.Cursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Converts the rows of one cursor according to a {@link Projection}. Obtain one through {@link Projection#bind(Cursor)}.
+ * <p>
+ * All methods read the row the cursor is currently positioned at.
+ */
+public final class RowMapper {
+
+    private final Projection projection;
+    private final Cursor cursor;
+    private final String[] keys;
+    private final int[] types;
+    private final int[] indices;
+
+    RowMapper(Projection projection, Cursor cursor, int[] indices) {
+        this.projection = projection;
+        this.cursor = cursor;
+        this.indices = indices;
+        this.keys = projection.getKeys();
+        this.types = new int[indices.length];
+        for (int field = 0; field < types.length; field++) {
+            types[field] = projection.getType(field);
+        }
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return the cursor index of the given field, or -1 when the cursor doesn't have the column
+     */
+    public int getColumnIndex(int field) {
+        return indices[field];
+    }
+
+    public Object get(int field) {
+        final int index = indices[field];
+        if (index == -1) {
+            return null;
+        }
+        switch (types[field]) {
+            case Projection.TYPE_STRING_NOT_NULL:
+                final String value = cursor.getString(index);
+                return value != null ? value : "";
+            case Projection.TYPE_LONG:
+                return cursor.getLong(index);
+            case Projection.TYPE_NULLABLE_LONG:
+                return cursor.isNull(index) ? null : cursor.getLong(index);
+            case Projection.TYPE_INT:
+                return cursor.getInt(index);
+            case Projection.TYPE_COLOR_HEX:
+                return CalendarUtils.getDisplayColorHex(cursor.getInt(index));
+            case Projection.TYPE_FLAG:
+                return "1".equals(cursor.getString(index));
+            default:
+                return cursor.getString(index);
+        }
+    }
+
+    /**
+     * @return the value of the field, 0 when the cursor doesn't have the column
+     */
+    public long getLong(int field) {
+        final int index = indices[field];
+        return index != -1 ? cursor.getLong(index) : 0;
+    }
+
+    /**
+     * @return the value of the field, null when the cursor doesn't have the column
+     */
+    public String getString(int field) {
+        final int index = indices[field];
+        return index != -1 ? cursor.getString(index) : null;
+    }
+
+    public Object[] toRow() {
+        Object[] row = new Object[indices.length];
+        for (int field = 0; field < row.length; field++) {
+            row[field] = get(field);
+        }
+        return row;
+    }
+
+    public JSONObject toJSONObject() throws JSONException {
+        JSONObject object = new JSONObject();
+        for (int field = 0; field < indices.length; field++) {
+            object.put(keys[field], get(field));
+        }
+        return object;
+    }
+
+    public void addTo(ColumnarResult columnarResult) {
+        columnarResult.addRow(toRow());
+    }
+}
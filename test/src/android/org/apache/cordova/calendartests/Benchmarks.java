@@ -0,0 +1,370 @@
+package org.apache.cordova.calendartests;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import nl.xservices.plugins.Calendar;
+import nl.xservices.plugins.CalendarUtils;
+import nl.xservices.plugins.RowMapper;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * On-device micro benchmarks for the hot paths of the Calendar plugin.
+ * Every benchmark runs against an in-memory cursor so the numbers don't depend on the calendar provider.
+ */
+public class Benchmarks extends CordovaPlugin {
+
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int[] DEFAULT_SIZES = {1000, 10000, 100000};
+
+  private interface Workload {
+    void run() throws JSONException;
+  }
+
+  @Override
+  public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    final JSONObject opts = args.optJSONObject(0) != null ? args.optJSONObject(0) : new JSONObject();
+
+    if ("benchmarkRowMapping".equals(action)) {
+      cordova.getThreadPool().execute(new Runnable() { @Override public void run() {
+        try {
+          callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, benchmarkRowMapping(opts.optInt("rows", 50000))));
+        } catch (JSONException e) {
+          callbackContext.error(e.getMessage());
+        }
+      }});
+      return true;
+    } else if ("benchmarkHotPaths".equals(action)) {
+      cordova.getThreadPool().execute(new Runnable() { @Override public void run() {
+        try {
+          callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, benchmarkHotPaths(opts.optJSONArray("sizes"))));
+        } catch (JSONException e) {
+          callbackContext.error(e.getMessage());
+        }
+      }});
+      return true;
+    } else if ("benchmarkDisplayColor".equals(action)) {
+      cordova.getThreadPool().execute(new Runnable() { @Override public void run() {
+        try {
+          callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, benchmarkDisplayColor(opts.optInt("lookups", 200000))));
+        } catch (JSONException e) {
+          callbackContext.error(e.getMessage());
+        }
+      }});
+      return true;
+    }
+    return false;
+  }
+
+  private JSONObject benchmarkRowMapping(int rows) throws JSONException {
+    Cursor cursor = createInstancesCursor(rows);
+    long perRowLookup = 0;
+    long boundMapper = 0;
+    for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+      perRowLookup = mapWithColumnLookups(cursor);
+      boundMapper = mapWithRowMapper(cursor);
+    }
+    cursor.close();
+    return new JSONObject()
+        .put("rows", rows)
+        .put("perRowLookupNanosPerRow", perRowLookup / rows)
+        .put("rowMapperNanosPerRow", boundMapper / rows);
+  }
+
+  // the way listEventsInRange converted rows before the Projection / RowMapper layer existed
+  private static long mapWithColumnLookups(Cursor cursor) throws JSONException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext()) {
+      new JSONObject()
+          .put("calendar_id", cursor.getString(cursor.getColumnIndex("calendar_id")))
+          .put("id", cursor.getString(cursor.getColumnIndex("_id")))
+          .put("event_id", cursor.getString(cursor.getColumnIndex("event_id")))
+          .put("deleted", cursor.getString(cursor.getColumnIndex("deleted")))
+          .put("rrule", cursor.getString(cursor.getColumnIndex("rrule")))
+          .put("rdate", cursor.getString(cursor.getColumnIndex("rdate")))
+          .put("exdate", cursor.getString(cursor.getColumnIndex("exdate")))
+          .put("title", cursor.getString(cursor.getColumnIndex("title")))
+          .put("dtstart", cursor.getLong(cursor.getColumnIndex("begin")))
+          .put("dtend", cursor.getLong(cursor.getColumnIndex("end")))
+          .put("eventLocation", cursor.getString(cursor.getColumnIndex("eventLocation")) != null ? cursor.getString(cursor.getColumnIndex("eventLocation")) : "")
+          .put("eventColor", cursor.getLong(cursor.getColumnIndex("eventColor")))
+          .put("displayColor", CalendarUtils.getDisplayColorHex(cursor.getInt(cursor.getColumnIndex("displayColor"))))
+          .put("allDay", cursor.getInt(cursor.getColumnIndex("allDay")));
+    }
+    return SystemClock.elapsedRealtimeNanos() - start;
+  }
+
+  private static long mapWithRowMapper(Cursor cursor) throws JSONException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    cursor.moveToPosition(-1);
+    RowMapper rowMapper = Calendar.INSTANCE_PROJECTION.bind(cursor);
+    while (cursor.moveToNext()) {
+      rowMapper.toJSONObject();
+    }
+    return SystemClock.elapsedRealtimeNanos() - start;
+  }
+
+  private JSONObject benchmarkDisplayColor(int lookups) throws JSONException {
+    int[] colors = createColorSamples(lookups);
+    long legacy = 0;
+    long current = 0;
+    for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+      long start = SystemClock.elapsedRealtimeNanos();
+      for (int color : colors) {
+        LegacyCalendarUtils.getDisplayColorHex(color);
+      }
+      legacy = SystemClock.elapsedRealtimeNanos() - start;
+
+      start = SystemClock.elapsedRealtimeNanos();
+      for (int color : colors) {
+        CalendarUtils.getDisplayColorHex(color);
+      }
+      current = SystemClock.elapsedRealtimeNanos() - start;
+    }
+    return new JSONObject()
+        .put("lookups", lookups)
+        .put("legacyNanosPerLookup", (double) legacy / lookups)
+        .put("currentNanosPerLookup", (double) current / lookups);
+  }
+
+  /**
+   * Runs the paths every listing goes through (instance rows, calendar rows and display colors) at each size,
+   * and reports the time and the bytes allocated per row.
+   */
+  private JSONObject benchmarkHotPaths(JSONArray sizesArg) throws JSONException {
+    int[] sizes = DEFAULT_SIZES;
+    if (sizesArg != null) {
+      sizes = new int[sizesArg.length()];
+      for (int i = 0; i < sizes.length; i++) {
+        sizes[i] = sizesArg.getInt(i);
+      }
+    }
+    JSONArray results = new JSONArray();
+    for (final int rows : sizes) {
+      final Cursor instances = createInstancesCursor(rows);
+      results.put(measure("instanceRows", rows, new Workload() { @Override public void run() throws JSONException {
+        mapWithRowMapper(instances);
+      }}));
+      instances.close();
+
+      final Cursor calendars = createCalendarsCursor(rows);
+      results.put(measure("calendarRows", rows, new Workload() { @Override public void run() throws JSONException {
+        calendars.moveToPosition(-1);
+        RowMapper rowMapper = Calendar.CALENDAR_PROJECTION.bind(calendars);
+        while (calendars.moveToNext()) {
+          rowMapper.toJSONObject();
+        }
+      }}));
+      calendars.close();
+
+      final int[] colors = createColorSamples(rows);
+      results.put(measure("displayColorHex", rows, new Workload() { @Override public void run() {
+        for (int color : colors) {
+          CalendarUtils.getDisplayColorHex(color);
+        }
+      }}));
+    }
+    return new JSONObject()
+        .put("allocationTracking", allocatedBytes() != -1)
+        .put("results", results);
+  }
+
+  private static JSONObject measure(String path, int rows, Workload workload) throws JSONException {
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      workload.run();
+    }
+    long allocatedBefore = allocatedBytes();
+    long start = SystemClock.elapsedRealtimeNanos();
+    workload.run();
+    long nanos = SystemClock.elapsedRealtimeNanos() - start;
+    long allocatedAfter = allocatedBytes();
+
+    JSONObject result = new JSONObject()
+        .put("path", path)
+        .put("rows", rows)
+        .put("nanosPerRow", (double) nanos / rows);
+    if (allocatedBefore != -1 && allocatedAfter != -1) {
+      long bytes = allocatedAfter - allocatedBefore;
+      result.put("bytesPerRow", (double) bytes / rows)
+          .put("allocatedMegabytesPerSecond", bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+    }
+    return result;
+  }
+
+  // the bytes the runtime allocated so far (all threads, so keep the app idle), -1 when it doesn't tell
+  private static long allocatedBytes() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      return -1;
+    }
+    try {
+      String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+      return allocated != null ? Long.parseLong(allocated) : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // most events use a color of the (old) Google palette, some the updated palette and a few a custom color
+  private static int[] createColorSamples(int count) {
+    int[] oldPalette = {-509406, -370884, -35529, -21178, -339611, -267901, -4989844, -8662712, -15292571, -12396910, -7151168};
+    int[] updatedPalette = {-2818048, -765666, -1086464, -1010944, -606426, -1784767, -4142541, -8604862};
+    java.util.Random random = new java.util.Random(42);
+    int[] colors = new int[count];
+    for (int i = 0; i < count; i++) {
+      int p = random.nextInt(100);
+      if (p < 70) {
+        colors[i] = oldPalette[random.nextInt(oldPalette.length)];
+      } else if (p < 90) {
+        colors[i] = updatedPalette[random.nextInt(updatedPalette.length)];
+      } else {
+        colors[i] = 0xFF000000 | (random.nextInt(16) * 0x0F0F0F);
+      }
+    }
+    return colors;
+  }
+
+  static Cursor createInstancesCursor(int rows) {
+    String[] columns = Calendar.INSTANCE_PROJECTION.getColumns();
+    MatrixCursor cursor = new MatrixCursor(columns, rows);
+    long begin = 1516521600000L;
+    for (int r = 0; r < rows; r++) {
+      Object[] row = new Object[columns.length];
+      for (int c = 0; c < columns.length; c++) {
+        row[c] = sampleValue(columns[c], r, begin + r * 1800000L);
+      }
+      cursor.addRow(row);
+    }
+    return cursor;
+  }
+
+  // CalendarUtils before its lookups were made primitive, kept to benchmark against
+  private static final class LegacyCalendarUtils {
+    private static final java.util.Map<Integer, Integer> sColors = new java.util.HashMap<Integer, Integer>();
+
+    static {
+      sColors.put(-509406, -2818048);
+      sColors.put(-370884, -765666);
+      sColors.put(-35529, -1086464);
+      sColors.put(-21178, -1010944);
+      sColors.put(-339611, -606426);
+      sColors.put(-267901, -1784767);
+      sColors.put(-4989844, -4142541);
+      sColors.put(-8662712, -8604862);
+      sColors.put(-15292571, -16023485);
+      sColors.put(-12396910, -16738680);
+      sColors.put(-7151168, -13388167);
+      sColors.put(-6299161, -16540699);
+      sColors.put(-6306073, -12417548);
+      sColors.put(-11958553, -12627531);
+      sColors.put(-6644481, -8812853);
+      sColors.put(-4613377, -5005861);
+      sColors.put(-5997854, -6395473);
+      sColors.put(-3312410, -7461718);
+      sColors.put(-3365204, -5434281);
+      sColors.put(-618062, -2614432);
+      sColors.put(-3118236, -1672077);
+      sColors.put(-5475746, -8825528);
+      sColors.put(-4013374, -10395295);
+      sColors.put(-3490369, -5792882);
+      sColors.put(-2350809, -2818048);
+      sColors.put(-18312, -765666);
+      sColors.put(-272549, -606426);
+      sColors.put(-11421879, -16023485);
+      sColors.put(-8722497, -13388167);
+      sColors.put(-12134693, -16540699);
+      sColors.put(-11238163, -12627531);
+      sColors.put(-5980676, -8812853);
+      sColors.put(-2380289, -7461718);
+      sColors.put(-30596, -1672077);
+      sColors.put(-1973791, -10395295);
+      sColors.put(-2883584, -2818048);
+      sColors.put(-831459, -765666);
+      sColors.put(-1152256, -1086464);
+      sColors.put(-1076736, -1010944);
+      sColors.put(-672219, -606426);
+      sColors.put(-1914036, -1784767);
+      sColors.put(-4208334, -4142541);
+      sColors.put(-8670655, -8604862);
+      sColors.put(-16089278, -16023485);
+      sColors.put(-16738937, -16738680);
+      sColors.put(-16606492, -16540699);
+      sColors.put(-12483341, -12417548);
+      sColors.put(-12624727, -12627531);
+      sColors.put(-8878646, -8812853);
+      sColors.put(-5071654, -5005861);
+      sColors.put(-7527511, -7461718);
+      sColors.put(-5500074, -5434281);
+      sColors.put(-2680225, -2614432);
+      sColors.put(-1737870, -1672077);
+      sColors.put(-8891321, -8825528);
+      sColors.put(-10263709, -10395295);
+    }
+
+    static int getDisplayColor(int color) {
+      if (sColors.containsKey(color)) {
+        return (sColors.get(color));
+      }
+      if (sColors.containsValue(color)) {
+        return color;
+      }
+      float[] fArr = new float[3];
+      Color.colorToHSV(color, fArr);
+      if (fArr[2] > 0.79f) {
+        fArr[1] = Math.min(fArr[1] * 1.3f, 1.0f);
+        fArr[2] = fArr[2] * 0.8f;
+      }
+      return Color.HSVToColor(Color.alpha(color), fArr);
+    }
+
+    static String getDisplayColorHex(int color) {
+      return String.format("#%06X", 0xFFFFFF & getDisplayColor(color));
+    }
+  }
+
+  static Cursor createCalendarsCursor(int rows) {
+    String[] columns = Calendar.CALENDAR_PROJECTION.getColumns();
+    MatrixCursor cursor = new MatrixCursor(columns, rows);
+    for (int r = 0; r < rows; r++) {
+      Object[] row = new Object[columns.length];
+      for (int c = 0; c < columns.length; c++) {
+        row[c] = sampleCalendarValue(columns[c], r);
+      }
+      cursor.addRow(row);
+    }
+    return cursor;
+  }
+
+  private static Object sampleCalendarValue(String column, int r) {
+    if ("_id".equals(column)) return String.valueOf(r + 1);
+    if ("name".equals(column)) return "benchmark" + r + "@example.com";
+    if ("calendar_displayName".equals(column)) return "Benchmark calendar " + r;
+    if ("calendar_color".equals(column)) return -509406 - (r % 7) * 4096;
+    if ("visible".equals(column)) return "1";
+    if ("isPrimary".equals(column)) return r == 0 ? 1 : 0;
+    return null;
+  }
+
+  private static Object sampleValue(String column, int r, long begin) {
+    if ("calendar_id".equals(column)) return String.valueOf(1 + r % 4);
+    if ("_id".equals(column)) return String.valueOf(r);
+    if ("event_id".equals(column)) return String.valueOf(r / 3);
+    if ("deleted".equals(column)) return "0";
+    if ("rrule".equals(column)) return r % 3 == 0 ? "FREQ=WEEKLY;BYDAY=MO,WE" : null;
+    if ("title".equals(column)) return "Benchmark event " + r;
+    if ("begin".equals(column)) return begin;
+    if ("end".equals(column)) return begin + 3600000L;
+    if ("eventLocation".equals(column)) return r % 2 == 0 ? "Meeting room " + (r % 10) : null;
+    if ("eventColor".equals(column) || "displayColor".equals(column)) return -509406 - (r % 7) * 4096;
+    if ("allDay".equals(column)) return r % 20 == 0 ? 1 : 0;
+    return null;
+  }
+}
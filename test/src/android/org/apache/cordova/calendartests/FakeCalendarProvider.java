@@ -0,0 +1,458 @@
+package org.apache.cordova.calendartests;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for the calendar provider, backed by an in-memory SQLite database, so the plugin can be
+ * load tested without a calendar account. Point the plugin at it with CalendarUris.setAuthority(getAuthority(context)).
+ * <p>
+ * It serves the paths the plugin uses: events, instances/when/begin/end, calendars, reminders and attendees. Like the
+ * real provider it expands recurring events into an Instances table for the range queried so far, and drops that
+ * expansion when events change. Only FREQ, INTERVAL, COUNT and UNTIL of an RRULE are expanded.
+ * <p>
+ * {@link #call} offers "seed" (a deterministic dataset for a seed), "reset" and "setLatency" (a delay added to every
+ * call, to simulate the IPC to the real provider).
+ */
+public class FakeCalendarProvider extends ContentProvider {
+
+  public static final String METHOD_SEED = "seed";
+  public static final String METHOD_RESET = "reset";
+  public static final String METHOD_SET_LATENCY = "setLatency";
+
+  private static final long MINUTE_MILLIS = 60 * 1000L;
+  private static final long DAY_MILLIS = 24 * 60 * MINUTE_MILLIS;
+
+  private static final String[] EVENT_COLUMNS = {
+      "calendar_id", "title", "description", "eventLocation", "eventColor", "dtstart", "dtend", "duration",
+      "eventTimezone", "eventEndTimezone", "allDay", "rrule", "rdate", "exrule", "exdate", "original_id",
+      "originalInstanceTime", "lastDate", "hasAlarm", "hasAttendeeData", "availability", "eventStatus",
+      "organizer", "customAppUri", "dirty", "deleted", "_sync_id"
+  };
+
+  private static final int[] CALENDAR_COLORS = {-509406, -370884, -35529, -21178, -339611, -267901, -4989844, -8662712};
+  private static final String[] FREQUENCIES = {"DAILY", "WEEKLY", "WEEKLY", "WEEKLY", "MONTHLY", "YEARLY"};
+
+  private static final Pattern DURATION = Pattern.compile("P(?:(\\d+)W)?(?:(\\d+)D)?(?:T(?:(\\d+)H)?(?:(\\d+)M)?(?:(\\d+)S)?)?");
+
+  private static volatile long sLatencyMillis;
+
+  private final ThreadLocal<Boolean> inBatch = new ThreadLocal<Boolean>();
+  private SQLiteDatabase db;
+
+  // the range the Instances table has been expanded for, empty when expandedEnd <= expandedBegin
+  private long expandedBegin;
+  private long expandedEnd;
+
+  public static String getAuthority(Context context) {
+    return context.getPackageName() + ".calendartests";
+  }
+
+  @Override
+  public boolean onCreate() {
+    db = SQLiteDatabase.create(null);
+    db.execSQL("CREATE TABLE Calendars (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT, calendar_displayName TEXT,"
+        + " calendar_color INTEGER, visible INTEGER NOT NULL DEFAULT 1, isPrimary INTEGER, ownerAccount TEXT,"
+        + " account_name TEXT, account_type TEXT, calendar_access_level INTEGER NOT NULL DEFAULT 700,"
+        + " sync_events INTEGER NOT NULL DEFAULT 1, dirty INTEGER NOT NULL DEFAULT 0, deleted INTEGER NOT NULL DEFAULT 0)");
+    db.execSQL("CREATE TABLE Events (_id INTEGER PRIMARY KEY AUTOINCREMENT, calendar_id INTEGER NOT NULL, title TEXT,"
+        + " description TEXT, eventLocation TEXT, eventColor INTEGER, dtstart INTEGER, dtend INTEGER, duration TEXT,"
+        + " eventTimezone TEXT, eventEndTimezone TEXT, allDay INTEGER NOT NULL DEFAULT 0, rrule TEXT, rdate TEXT,"
+        + " exrule TEXT, exdate TEXT, original_id INTEGER, originalInstanceTime INTEGER, lastDate INTEGER,"
+        + " hasAlarm INTEGER NOT NULL DEFAULT 0, hasAttendeeData INTEGER NOT NULL DEFAULT 0,"
+        + " availability INTEGER NOT NULL DEFAULT 0, eventStatus INTEGER, organizer TEXT, customAppUri TEXT,"
+        + " dirty INTEGER NOT NULL DEFAULT 1, deleted INTEGER NOT NULL DEFAULT 0, _sync_id TEXT)");
+    db.execSQL("CREATE INDEX EventsCalendarIndex ON Events (calendar_id)");
+    db.execSQL("CREATE TABLE Instances (_id INTEGER PRIMARY KEY AUTOINCREMENT, event_id INTEGER NOT NULL,"
+        + " begin INTEGER NOT NULL, end INTEGER NOT NULL)");
+    db.execSQL("CREATE INDEX InstancesBeginIndex ON Instances (begin)");
+    db.execSQL("CREATE TABLE Reminders (_id INTEGER PRIMARY KEY AUTOINCREMENT, event_id INTEGER NOT NULL,"
+        + " minutes INTEGER, method INTEGER NOT NULL DEFAULT 0)");
+    db.execSQL("CREATE TABLE Attendees (_id INTEGER PRIMARY KEY AUTOINCREMENT, event_id INTEGER NOT NULL,"
+        + " attendeeName TEXT, attendeeEmail TEXT, attendeeRelationship INTEGER, attendeeType INTEGER, attendeeStatus INTEGER)");
+
+    // events and instances carry the columns of their calendar, like the real provider's views
+    StringBuilder eventColumns = new StringBuilder();
+    for (String column : EVENT_COLUMNS) {
+      eventColumns.append(", Events.").append(column).append(" AS ").append(column);
+    }
+    String calendarColumns = ", COALESCE(Events.eventColor, Calendars.calendar_color) AS displayColor,"
+        + " Calendars.calendar_color AS calendar_color, Calendars.calendar_displayName AS calendar_displayName,"
+        + " Calendars.visible AS visible, Calendars.account_name AS account_name, Calendars.account_type AS account_type,"
+        + " Calendars.ownerAccount AS ownerAccount";
+    db.execSQL("CREATE VIEW EventsView AS SELECT Events._id AS _id" + eventColumns + calendarColumns
+        + " FROM Events INNER JOIN Calendars ON Events.calendar_id = Calendars._id");
+    db.execSQL("CREATE VIEW InstancesView AS SELECT Instances._id AS _id, Instances.event_id AS event_id,"
+        + " Instances.begin AS begin, Instances.end AS end" + eventColumns + calendarColumns
+        + " FROM Instances INNER JOIN Events ON Instances.event_id = Events._id"
+        + " INNER JOIN Calendars ON Events.calendar_id = Calendars._id");
+    return true;
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    return null;
+  }
+
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    simulateIpc();
+    List<String> path = uri.getPathSegments();
+    String table = table(path);
+    if ("Instances".equals(table)) {
+      if (path.size() != 4 || !"when".equals(path.get(1))) {
+        throw new IllegalArgumentException("Unsupported uri " + uri);
+      }
+      long begin = Long.parseLong(path.get(2));
+      long end = Long.parseLong(path.get(3));
+      synchronized (this) {
+        expand(begin, end);
+        Cursor cursor = db.query("InstancesView", projection,
+            where("begin <= " + end + " AND end >= " + begin, selection), selectionArgs, null, null, sortOrder);
+        // fill the cursor window now, before a write can drop the expansion
+        cursor.getCount();
+        return cursor;
+      }
+    }
+    String view = "Events".equals(table) ? "EventsView" : table;
+    return db.query(view, projection, where(idSelection(path), selection), selectionArgs, null, null, sortOrder);
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    simulateIpc();
+    List<String> path = uri.getPathSegments();
+    String table = table(path);
+    long id;
+    synchronized (this) {
+      id = db.insertOrThrow(table, null, values);
+      changed(table);
+    }
+    notifyChange(uri);
+    return ContentUris.withAppendedId(Uri.parse("content://" + uri.getAuthority() + "/" + path.get(0)), id);
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    simulateIpc();
+    List<String> path = uri.getPathSegments();
+    String table = table(path);
+    int rows;
+    synchronized (this) {
+      if ("Events".equals(table) && !values.containsKey("dirty")) {
+        values = new ContentValues(values);
+        values.put("dirty", 1);
+      }
+      rows = db.update(table, values, where(idSelection(path), selection), selectionArgs);
+      changed(table);
+    }
+    notifyChange(uri);
+    return rows;
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    simulateIpc();
+    List<String> path = uri.getPathSegments();
+    String table = table(path);
+    String where = where(idSelection(path), selection);
+    int rows;
+    synchronized (this) {
+      if ("Events".equals(table)) {
+        String events = "SELECT _id FROM Events" + (where != null ? " WHERE " + where : "");
+        db.delete("Reminders", "event_id IN (" + events + ")", selectionArgs);
+        db.delete("Attendees", "event_id IN (" + events + ")", selectionArgs);
+      }
+      rows = db.delete(table, where, selectionArgs);
+      changed(table);
+    }
+    notifyChange(uri);
+    return rows;
+  }
+
+  /**
+   * Applies all operations in one transaction, paying the simulated latency once like a single binder call.
+   */
+  @Override
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+    simulateIpc();
+    inBatch.set(Boolean.TRUE);
+    db.beginTransaction();
+    try {
+      ContentProviderResult[] results = super.applyBatch(operations);
+      db.setTransactionSuccessful();
+      return results;
+    } finally {
+      db.endTransaction();
+      inBatch.remove();
+    }
+  }
+
+  @Override
+  public Bundle call(String method, String arg, Bundle extras) {
+    Bundle result = new Bundle();
+    if (METHOD_SET_LATENCY.equals(method)) {
+      sLatencyMillis = extras != null ? extras.getLong("latencyMillis", 0) : 0;
+    } else if (METHOD_RESET.equals(method)) {
+      synchronized (this) {
+        for (String table : new String[]{"Instances", "Reminders", "Attendees", "Events", "Calendars"}) {
+          db.delete(table, null, null);
+        }
+        // start the ids over as well, so a seed always yields the same ids
+        db.delete("sqlite_sequence", null, null);
+        changed("Events");
+      }
+      // the root uri reaches the observers of every table
+      notifyChange(Uri.parse("content://" + getAuthority(getContext())));
+    } else if (METHOD_SEED.equals(method)) {
+      Bundle opts = extras != null ? extras : new Bundle();
+      int events = seed(opts.getLong("seed", 1), opts.getInt("calendars", 3), opts.getInt("events", 1000),
+          opts.getInt("recurringPercentage", 20), opts.getLong("startTime", System.currentTimeMillis()), opts.getInt("days", 365));
+      result.putInt("events", events);
+      notifyChange(Uri.parse("content://" + getAuthority(getContext())));
+    } else {
+      throw new IllegalArgumentException("Unsupported method " + method);
+    }
+    return result;
+  }
+
+  /**
+   * Fills the calendars with a dataset which only depends on the arguments: one hour-ish events spread over the
+   * days after startTime, every twentieth an all day event, recurringPercentage of them recurring, half with a reminder.
+   *
+   * @return the number of events created
+   */
+  private synchronized int seed(long seed, int calendars, int events, int recurringPercentage, long startTime, int days) {
+    Random random = new Random(seed);
+    String timezone = TimeZone.getDefault().getID();
+    db.beginTransaction();
+    try {
+      long[] calendarIds = new long[calendars];
+      for (int c = 0; c < calendars; c++) {
+        ContentValues calendar = new ContentValues();
+        calendar.put("name", "seed" + c + "@example.com");
+        calendar.put("calendar_displayName", "Seeded calendar " + c);
+        calendar.put("calendar_color", CALENDAR_COLORS[c % CALENDAR_COLORS.length]);
+        calendar.put("isPrimary", c == 0 ? 1 : 0);
+        calendar.put("ownerAccount", "seed" + c + "@example.com");
+        calendar.put("account_name", "seed" + c + "@example.com");
+        calendar.put("account_type", "org.apache.cordova.calendartests");
+        calendarIds[c] = db.insertOrThrow("Calendars", null, calendar);
+      }
+
+      SQLiteStatement insertEvent = db.compileStatement("INSERT INTO Events (calendar_id, title, eventLocation, dtstart,"
+          + " dtend, duration, eventTimezone, allDay, rrule, hasAlarm, dirty) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)");
+      SQLiteStatement insertReminder = db.compileStatement("INSERT INTO Reminders (event_id, minutes, method) VALUES (?, ?, 1)");
+      for (int e = 0; e < events; e++) {
+        boolean allDay = random.nextInt(20) == 0;
+        boolean recurring = random.nextInt(100) < recurringPercentage;
+        boolean reminder = random.nextBoolean();
+        long day = startTime + random.nextInt(Math.max(days, 1)) * DAY_MILLIS;
+        long begin;
+        long length;
+        if (allDay) {
+          begin = day - day % DAY_MILLIS;
+          length = (1 + random.nextInt(3)) * DAY_MILLIS;
+        } else {
+          begin = day - day % (15 * MINUTE_MILLIS) + random.nextInt(10 * 4) * 15 * MINUTE_MILLIS;
+          length = (1 + random.nextInt(8)) * 15 * MINUTE_MILLIS;
+        }
+
+        insertEvent.clearBindings();
+        insertEvent.bindLong(1, calendarIds[random.nextInt(calendars)]);
+        insertEvent.bindString(2, "Seeded event " + e);
+        if (random.nextBoolean()) {
+          insertEvent.bindString(3, "Room " + random.nextInt(20));
+        }
+        insertEvent.bindLong(4, begin);
+        if (recurring) {
+          String frequency = FREQUENCIES[random.nextInt(FREQUENCIES.length)];
+          insertEvent.bindString(6, allDay ? "P" + (length / DAY_MILLIS) + "D" : "P" + (length / 1000) + "S");
+          insertEvent.bindString(9, "FREQ=" + frequency + (random.nextBoolean() ? ";COUNT=" + (2 + random.nextInt(50)) : ""));
+        } else {
+          insertEvent.bindLong(5, begin + length);
+        }
+        insertEvent.bindString(7, allDay ? "UTC" : timezone);
+        insertEvent.bindLong(8, allDay ? 1 : 0);
+        insertEvent.bindLong(10, reminder ? 1 : 0);
+        long eventId = insertEvent.executeInsert();
+
+        if (reminder) {
+          insertReminder.clearBindings();
+          insertReminder.bindLong(1, eventId);
+          insertReminder.bindLong(2, 5 + random.nextInt(12) * 5);
+          insertReminder.executeInsert();
+        }
+      }
+      insertEvent.close();
+      insertReminder.close();
+      changed("Events");
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return events;
+  }
+
+  /**
+   * Makes sure the Instances table holds all instances overlapping [begin, end]. Callers hold the lock.
+   */
+  private void expand(long begin, long end) {
+    if (expandedEnd > expandedBegin && begin >= expandedBegin && end <= expandedEnd) {
+      return;
+    }
+    long from = expandedEnd > expandedBegin ? Math.min(begin, expandedBegin) : begin;
+    long to = expandedEnd > expandedBegin ? Math.max(end, expandedEnd) : end;
+
+    db.beginTransaction();
+    try {
+      db.delete("Instances", null, null);
+      SQLiteStatement insertInstance = db.compileStatement("INSERT INTO Instances (event_id, begin, end) VALUES (?, ?, ?)");
+      Cursor events = db.rawQuery("SELECT _id, dtstart, dtend, duration, eventTimezone, rrule FROM Events"
+          + " WHERE dtstart <= ? AND (rrule IS NOT NULL OR dtend >= ?)", new String[]{String.valueOf(to), String.valueOf(from)});
+      try {
+        while (events.moveToNext()) {
+          long id = events.getLong(0);
+          long dtstart = events.getLong(1);
+          long length = events.isNull(2) ? parseDuration(events.getString(3)) : events.getLong(2) - dtstart;
+          String rrule = events.getString(5);
+          if (rrule == null) {
+            addInstance(insertInstance, id, dtstart, dtstart + length);
+            continue;
+          }
+          java.util.Calendar occurrence = java.util.Calendar.getInstance(
+              TimeZone.getTimeZone(events.isNull(4) ? "UTC" : events.getString(4)));
+          occurrence.setTimeInMillis(dtstart);
+          String frequency = ruleValue(rrule, "FREQ", "DAILY");
+          int interval = Integer.parseInt(ruleValue(rrule, "INTERVAL", "1"));
+          int count = Integer.parseInt(ruleValue(rrule, "COUNT", "-1"));
+          long until = parseUntil(ruleValue(rrule, "UNTIL", null));
+          int field = "YEARLY".equals(frequency) ? java.util.Calendar.YEAR
+              : "MONTHLY".equals(frequency) ? java.util.Calendar.MONTH
+              : "WEEKLY".equals(frequency) ? java.util.Calendar.WEEK_OF_YEAR
+              : java.util.Calendar.DAY_OF_YEAR;
+          for (int n = 0; count < 0 || n < count; n++) {
+            long instanceBegin = occurrence.getTimeInMillis();
+            if (instanceBegin > to || instanceBegin > until) {
+              break;
+            }
+            if (instanceBegin + length >= from) {
+              addInstance(insertInstance, id, instanceBegin, instanceBegin + length);
+            }
+            occurrence.add(field, interval);
+          }
+        }
+      } finally {
+        events.close();
+        insertInstance.close();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    expandedBegin = from;
+    expandedEnd = to;
+  }
+
+  private static void addInstance(SQLiteStatement insertInstance, long eventId, long begin, long end) {
+    insertInstance.bindLong(1, eventId);
+    insertInstance.bindLong(2, begin);
+    insertInstance.bindLong(3, end);
+    insertInstance.executeInsert();
+  }
+
+  private static String ruleValue(String rrule, String name, String defaultValue) {
+    for (String part : rrule.split(";")) {
+      if (part.startsWith(name + "=")) {
+        return part.substring(name.length() + 1);
+      }
+    }
+    return defaultValue;
+  }
+
+  private static long parseUntil(String until) {
+    if (until == null) {
+      return Long.MAX_VALUE;
+    }
+    java.text.SimpleDateFormat format = new java.text.SimpleDateFormat(
+        until.length() > 8 ? "yyyyMMdd'T'HHmmss'Z'" : "yyyyMMdd", java.util.Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    try {
+      return format.parse(until).getTime();
+    } catch (java.text.ParseException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static long parseDuration(String duration) {
+    Matcher matcher = duration != null ? DURATION.matcher(duration) : null;
+    if (matcher == null || !matcher.matches()) {
+      return 0;
+    }
+    long[] unitMillis = {7 * DAY_MILLIS, DAY_MILLIS, 60 * MINUTE_MILLIS, MINUTE_MILLIS, 1000};
+    long millis = 0;
+    for (int g = 1; g <= 5; g++) {
+      if (matcher.group(g) != null) {
+        millis += Long.parseLong(matcher.group(g)) * unitMillis[g - 1];
+      }
+    }
+    return millis;
+  }
+
+  // the expansion is out of date as soon as events change. Callers hold the lock
+  private void changed(String table) {
+    if ("Events".equals(table)) {
+      expandedBegin = 0;
+      expandedEnd = 0;
+    }
+  }
+
+  private void notifyChange(Uri uri) {
+    getContext().getContentResolver().notifyChange(uri, null);
+  }
+
+  private void simulateIpc() {
+    long latency = sLatencyMillis;
+    if (latency > 0 && inBatch.get() == null) {
+      SystemClock.sleep(latency);
+    }
+  }
+
+  private static String table(List<String> path) {
+    String first = path.isEmpty() ? "" : path.get(0);
+    if ("events".equals(first)) return "Events";
+    if ("instances".equals(first)) return "Instances";
+    if ("calendars".equals(first)) return "Calendars";
+    if ("reminders".equals(first)) return "Reminders";
+    if ("attendees".equals(first)) return "Attendees";
+    throw new IllegalArgumentException("Unsupported path " + path);
+  }
+
+  private static String idSelection(List<String> path) {
+    return path.size() == 2 ? "_id = " + Long.parseLong(path.get(1)) : null;
+  }
+
+  private static String where(String a, String b) {
+    if (a == null) return b;
+    if (b == null) return a;
+    return "(" + a + ") AND (" + b + ")";
+  }
+}
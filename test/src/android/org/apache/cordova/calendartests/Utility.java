@@ -1,46 +1,93 @@
 package org.apache.cordova.calendartests;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
 import android.os.Bundle;
+import android.provider.CalendarContract;
+import nl.xservices.plugins.CalendarUris;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 public class Utility extends CordovaPlugin {
 
-  private CallbackContext callback;
-
   @Override
   public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
-    this.callback = callbackContext;
-
-    if ("syncAndroidGoogleCalendar".equals(action)) {
-      syncAndroidGoogleCalendar();
+    if ("useFakeCalendarProvider".equals(action)) {
+      useFakeCalendarProvider(args.optJSONObject(0) != null ? args.optJSONObject(0) : new JSONObject(), callbackContext);
+      return true;
+    } else if ("useDeviceCalendarProvider".equals(action)) {
+      CalendarUris.setAuthority(null);
+      callbackContext.success();
+      return true;
+    } else if ("createEventException".equals(action)) {
+      createEventException(args.getJSONObject(0), callbackContext);
       return true;
     }
     return false;
   }
 
-  private void syncAndroidGoogleCalendar() {
+  /**
+   * Moves (startTime, endTime) or cancels (canceled: true) the instance of a recurring event which begins at
+   * originalTime, through the exception uri of the provider like calendar apps do.
+   */
+  private void createEventException(final JSONObject opts, final CallbackContext callbackContext) {
     cordova.getThreadPool().execute(new Runnable() { @Override public void run() {
-      String authority = "com.android.calendar";
-
-      Bundle settingsBundle = new Bundle();
-      settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-      settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-      for (android.accounts.Account acc : android.accounts.AccountManager.get(cordova.getActivity()).getAccountsByType("com.google")) {
-        ContentResolver.requestSync(acc, authority, settingsBundle);
-
-        // Wait for completion
-        try { Thread.sleep(1000); } catch (InterruptedException e) {}
-        int ii = 0;
-        while (++ii < 30 && ContentResolver.isSyncActive(acc, authority)) {
-          try { Thread.sleep(1000); } catch (InterruptedException e) {}
+      try {
+        ContentValues values = new ContentValues();
+        values.put(CalendarContract.Events.ORIGINAL_INSTANCE_TIME, opts.getLong("originalTime"));
+        if (opts.optBoolean("canceled")) {
+          values.put(CalendarContract.Events.STATUS, CalendarContract.Events.STATUS_CANCELED);
+        } else {
+          values.put(CalendarContract.Events.DTSTART, opts.getLong("startTime"));
+          values.put(CalendarContract.Events.DTEND, opts.getLong("endTime"));
         }
+        Uri uri = Uri.parse("content://" + CalendarUris.getAuthority() + "/exception/" + opts.getString("eventId"));
+        Uri exception = cordova.getActivity().getContentResolver().insert(uri, values);
+        if (exception == null) {
+          callbackContext.error("Failed to create the exception");
+        } else {
+          callbackContext.success(exception.getLastPathSegment());
+        }
+      } catch (Exception e) {
+        callbackContext.error(e.getMessage());
+      }
+    }});
+  }
+
+  /**
+   * Points the Calendar plugin at a FakeCalendarProvider filled with a dataset which only depends on the passed seed.
+   */
+  private void useFakeCalendarProvider(final JSONObject opts, final CallbackContext callbackContext) {
+    cordova.getThreadPool().execute(new Runnable() { @Override public void run() {
+      try {
+        String authority = FakeCalendarProvider.getAuthority(cordova.getActivity());
+        Uri uri = Uri.parse("content://" + authority);
+        ContentResolver contentResolver = cordova.getActivity().getContentResolver();
+
+        Bundle latency = new Bundle();
+        latency.putLong("latencyMillis", opts.optLong("latencyMillis", 0));
+        contentResolver.call(uri, FakeCalendarProvider.METHOD_SET_LATENCY, null, latency);
+        contentResolver.call(uri, FakeCalendarProvider.METHOD_RESET, null, null);
+
+        Bundle seed = new Bundle();
+        seed.putLong("seed", opts.optLong("seed", 1));
+        seed.putInt("calendars", opts.optInt("calendars", 3));
+        seed.putInt("events", opts.optInt("events", 1000));
+        seed.putInt("recurringPercentage", opts.optInt("recurringPercentage", 20));
+        seed.putLong("startTime", opts.optLong("startTime", System.currentTimeMillis()));
+        seed.putInt("days", opts.optInt("days", 365));
+        Bundle seeded = contentResolver.call(uri, FakeCalendarProvider.METHOD_SEED, null, seed);
+
+        CalendarUris.setAuthority(authority);
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, seeded.getInt("events")));
+      } catch (Exception e) {
+        callbackContext.error(e.getMessage());
       }
-      callback.sendPluginResult(new PluginResult(PluginResult.Status.OK));
     }});
   }
 }
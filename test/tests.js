@@ -36,13 +36,40 @@ exports.defineAutoTests = function() {
   var createEventP = promisifyScbEcb(plugins.calendar.createEvent);
   var createEventWithOptionsP = promisifyScbEcb(plugins.calendar.createEventWithOptions);
   var deleteEventByIdP = promisifyScbEcb(plugins.calendar.deleteEventById);
+  var createEventsBatchP = promisifyScbEcb(plugins.calendar.createEventsBatch);
+  var deleteEventsByIdsP = promisifyScbEcb(plugins.calendar.deleteEventsByIds);
+  var listEventsInRangeP = promisifyScbEcb(plugins.calendar.listEventsInRange);
+  var modifyEventsP = promisifyScbEcb(plugins.calendar.modifyEvents);
+  var listEventsInRangeWithOptionsP = promisifyScbEcb(plugins.calendar.listEventsInRangeWithOptions);
+  var listEventChangesSinceP = promisifyScbEcb(plugins.calendar.listEventChangesSince);
+  var getPluginMetricsP = promisifyScbEcb(plugins.calendar.getPluginMetrics);
+  var getEventsByIdsP = promisifyScbEcb(plugins.calendar.getEventsByIds);
+  var searchEventsP = promisifyScbEcb(plugins.calendar.searchEvents);
+  var getFreeBusyP = promisifyScbEcb(plugins.calendar.getFreeBusy);
+  var findFreeSlotsP = promisifyScbEcb(plugins.calendar.findFreeSlots);
+  var countEventsByDayP = promisifyScbEcb(plugins.calendar.countEventsByDay);
+  var listEventsInRangesP = promisifyScbEcb(plugins.calendar.listEventsInRanges);
   var syncAndroidGoogleCalendarP = promisifyScbEcb(function(successCallback, errorCallback) {
     if (cordova.platformId == 'android') {
-      cordova.exec(successCallback, errorCallback, "CalendarTestsUtility", "syncAndroidGoogleCalendar", []);
+      plugins.calendar.syncCalendars({ accountTypes: ['com.google'] }, function (result) {
+        if (result.done) {
+          successCallback();
+        }
+      }, errorCallback);
     } else {
       successCallback();
     }
   });
+  var utilityP = function (name, opts) {
+    return new Promise(function (resolve, reject) {
+      cordova.exec(resolve, reject, "CalendarTestsUtility", name, [opts || {}]);
+    });
+  };
+  var benchmarkP = function (name, opts) {
+    return new Promise(function (resolve, reject) {
+      cordova.exec(resolve, reject, "CalendarTestsBenchmarks", name, [opts || {}]);
+    });
+  };
   var parseEventDate = plugins.calendar.parseEventDate;
 
   var newDate = function (dd, hh, mm) {
@@ -330,4 +357,841 @@ exports.defineAutoTests = function() {
     };
   });
 
+  if (cordova.platformId == 'android') {
+    describe('createEventsBatch / deleteEventsByIds', function () {
+      itP('should create and delete several events at once', function () {
+        var title = 'Batch event' + runTag + ' ';
+        var ids;
+        var ownEvents = function (events) {
+          return events.map(function (event) { return event.title; })
+            .filter(function (eventTitle) { return eventTitle && eventTitle.indexOf(title) === 0; })
+            .sort();
+        };
+
+        return createEventsBatchP([
+          { title: title + 'first', startDate: newDate(3, 9), endDate: newDate(3, 10) },
+          { title: title + 'second', startDate: newDate(3, 11), endDate: newDate(3, 12), options: { firstReminderMinutes: 15 } },
+          { title: title + 'invalid', startDate: null, endDate: null },
+          { title: title + 'unknown calendar', startDate: newDate(3, 13), endDate: newDate(3, 14), options: { calendarName: 'No calendar' + runTag } }
+        ])
+          .then(function (results) {
+            expect(results.length).toBe(4);
+            expect(results[0].id).toBeDefined();
+            expect(results[1].id).toBeDefined();
+            expect(results[2].error).toBeDefined();
+            expect(results[3].error).toBe('No calendar named No calendar' + runTag);
+            ids = [results[0].id, results[1].id];
+            return listEventsInRangeP(newDate(3, 0), newDate(4, 0));
+          })
+          .then(function (events) {
+            expect(ownEvents(events)).toEqual([title + 'first', title + 'second']);
+            return deleteEventsByIdsP(ids.concat(['not an id']));
+          })
+          .then(function (results) {
+            expect(results).toEqual([
+              { id: ids[0], deleted: true },
+              { id: ids[1], deleted: true },
+              { id: 'not an id', error: 'Invalid id' }
+            ]);
+            return listEventsInRangeP(newDate(3, 0), newDate(4, 0));
+          })
+          .then(function (events) {
+            expect(ownEvents(events)).toEqual([]);
+          });
+      });
+    });
+
+    describe('modifyEvents', function () {
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      itP('should only write what changed and keep the ids', function () {
+        var ids;
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            return createEventsBatchP([
+              { title: 'Standup', startDate: newDate(1, 9), endDate: newDate(1, 10),
+                options: { firstReminderMinutes: 15, secondReminderMinutes: 5 } },
+              { title: 'Lunch', startDate: newDate(1, 12), endDate: newDate(1, 13) },
+              { title: 'Review', startDate: newDate(1, 15), endDate: newDate(1, 16) }
+            ]);
+          })
+          .then(function (results) {
+            ids = results.map(function (result) { return result.id; });
+            return modifyEventsP([
+              { id: ids[0], title: 'Moved standup', startDate: newDate(2, 9), reminders: [15, 30] },
+              { id: ids[1], title: 'Lunch' },
+              { id: ids[2], title: 'Renamed review', reminders: ['soon'] },
+              { id: ids[0], reminders: [15, 30, 45] },
+              { id: '-1', title: 'Nope' }
+            ]);
+          })
+          .then(function (results) {
+            expect(results).toEqual([
+              { id: ids[0], updated: true },
+              { id: ids[1], updated: false },
+              { id: ids[2], error: 'Invalid reminder minutes: soon' },
+              { id: ids[0], error: 'Duplicate id' },
+              { id: '-1', error: 'Event not found' }
+            ]);
+            return getEventsByIdsP(ids, { fields: ['title', 'dtstart', 'dtend', 'reminders'] });
+          })
+          .then(function (events) {
+            expect(events[0].title).toBe('Moved standup');
+            // the event keeps its length
+            expect(events[0].dtstart).toBe(newDate(2, 9).getTime());
+            expect(events[0].dtend).toBe(newDate(2, 10).getTime());
+            expect(events[0].reminders.map(function (reminder) { return reminder.minutes; }).sort()).toEqual([15, 30]);
+            expect(events[1].title).toBe('Lunch');
+            expect(events[1].dtstart).toBe(newDate(1, 12).getTime());
+            // nothing of an entry with an error is written
+            expect(events[2].title).toBe('Review');
+          });
+      }, 120000);
+    });
+
+    describe('listEventsInRangeWithOptions', function () {
+      var title = 'Range event' + runTag + ' ';
+      var ownEvents = function (events) {
+        return events.filter(function (event) { return event.title && event.title.indexOf(title) === 0; })
+          .map(function (event) { return event.title.substring(title.length); });
+      };
+
+      beforeEach(function (done) {
+        createEventsBatchP([
+          { title: title + 'morning', startDate: newDate(3, 9), endDate: newDate(3, 11) },
+          { title: title + 'noon', startDate: newDate(3, 12), endDate: newDate(3, 13) }
+        ])
+          .catch(fail)
+          .then(done, done);
+      });
+
+      itP('should only match events within the range by default', function () {
+        return listEventsInRangeWithOptionsP(newDate(3, 10), newDate(3, 14), {})
+          .then(function (events) {
+            expect(ownEvents(events)).toEqual(['noon']);
+          });
+      });
+
+      itP('should match events crossing the bounds of the range with match: "overlap"', function () {
+        return listEventsInRangeWithOptionsP(newDate(3, 10), newDate(3, 14), { match: 'overlap' })
+          .then(function (events) {
+            expect(ownEvents(events)).toEqual(['morning', 'noon']);
+          });
+      });
+
+      itP('should not match events which only touch the bounds of the range with match: "overlap"', function () {
+        return listEventsInRangeWithOptionsP(newDate(3, 11), newDate(3, 12), { match: 'overlap' })
+          .then(function (events) {
+            expect(ownEvents(events)).toEqual([]);
+          });
+      });
+
+      itP('should only list the passed calendarIds', function () {
+        return listEventsInRangeWithOptionsP(newDate(3, 0), newDate(4, 0), { calendarIds: ['-1'] })
+          .then(function (events) {
+            expect(events.length).toBe(0);
+          });
+      });
+
+      itP('should return no more than limit events', function () {
+        return listEventsInRangeWithOptionsP(newDate(3, 0), newDate(4, 0), { limit: 1 })
+          .then(function (events) {
+            expect(events.length).toBe(1);
+          });
+      });
+
+      itP('should only return the requested fields and fetch the details with getEventsByIds', function () {
+        var summaries;
+        return listEventsInRangeWithOptionsP(newDate(3, 0), newDate(4, 0), { fields: ['event_id', 'title'], useCache: false })
+          .then(function (events) {
+            summaries = events.filter(function (event) { return event.title.indexOf(title) === 0; });
+            expect(summaries.length).toBe(2);
+            summaries.forEach(function (event) {
+              expect(Object.keys(event).sort()).toEqual(['event_id', 'title']);
+            });
+            return getEventsByIdsP(summaries.map(function (event) { return event.event_id; }).concat(['-1']), {});
+          })
+          .then(function (events) {
+            expect(events.map(function (event) { return event.title; })).toEqual(summaries.map(function (event) { return event.title; }));
+            expect(events[0].dtstart).toBe(newDate(3, 9).getTime());
+            expect(events[0].reminders).toEqual(jasmine.any(Array));
+            expect(events[0].attendees).toEqual(jasmine.any(Array));
+            return getEventsByIdsP([summaries[0].event_id], { fields: ['title'] });
+          })
+          .then(function (events) {
+            expect(Object.keys(events[0])).toEqual(['title']);
+          });
+      });
+
+      itP('should fail on unknown fields', function () {
+        return listEventsInRangeWithOptionsP(newDate(3, 0), newDate(4, 0), { fields: ['nope'] })
+          .then(fail, function (message) {
+            expect(message).toBe('Unknown field: nope');
+          });
+      });
+
+      itP('should expand recurring events like the provider does with expandRecurrences', function () {
+        var recurringTitle = title + 'weekly';
+        var beginsOf = function (events) {
+          return events.filter(function (event) { return event.title === recurringTitle; })
+            .map(function (event) { return event.dtstart; });
+        };
+        var id, expected;
+        var compareWithExpanded = function () {
+          return listEventsInRangeWithOptionsP(newDate(9), newDate(60), { expandRecurrences: true })
+            .then(function (events) {
+              expect(beginsOf(events)).toEqual(expected);
+            });
+        };
+        var times = function (dates) {
+          return dates.map(function (date) { return date.getTime(); });
+        };
+        // the instances are on Jan 23, Jan 30, Feb 6, Feb 13, Feb 20 and Feb 27, the range starts on Jan 30
+        return createEventWithOptionsP(recurringTitle, null, null, newDate(2, 18), newDate(2, 19),
+          { recurrence: 'weekly', recurrenceCount: 6 })
+          .then(function (createdId) {
+            id = createdId;
+            return listEventsInRangeWithOptionsP(newDate(9), newDate(60), { useCache: false });
+          })
+          .then(function (events) {
+            expected = beginsOf(events);
+            expect(expected.length).toBe(5);
+            return compareWithExpanded();
+          })
+          .then(function () {
+            // move the instance of Feb 6 a day and cancel the one of Feb 13
+            return utilityP('createEventException', {
+              eventId: id, originalTime: newDate(16, 18).getTime(), startTime: newDate(17, 18).getTime(), endTime: newDate(17, 19).getTime()
+            });
+          })
+          .then(function () {
+            return utilityP('createEventException', { eventId: id, originalTime: newDate(23, 18).getTime(), canceled: true });
+          })
+          .then(function () {
+            return listEventsInRangeWithOptionsP(newDate(9), newDate(60), { useCache: false });
+          })
+          .then(function (events) {
+            expected = beginsOf(events);
+            expect(expected).toEqual(times([newDate(9, 18), newDate(17, 18), newDate(30, 18), newDate(37, 18)]));
+            return compareWithExpanded();
+          });
+      });
+    });
+
+    describe('listEventChangesSince', function () {
+      itP('should only report the events changed since the token', function () {
+        var title = 'Changed event' + runTag;
+        var firstToken, token, id;
+
+        return listEventChangesSinceP(null)
+          .then(function (changes) {
+            expect(changes.reset).toBe(true);
+            firstToken = changes.token;
+            token = changes.token;
+            return createEventP(title, null, null, newDate(5, 9), newDate(5, 10));
+          })
+          .then(function (createdId) {
+            id = createdId;
+            return listEventChangesSinceP(token);
+          })
+          .then(function (changes) {
+            expect(changes.reset).toBe(false);
+            expect(changes.inserted).toEqual([id]);
+            expect(changes.updated).toEqual([]);
+            expect(changes.deleted).toEqual([]);
+            token = changes.token;
+            return deleteEventByIdP(id);
+          })
+          .then(function () {
+            return listEventChangesSinceP(token);
+          })
+          .then(function (changes) {
+            expect(changes.deleted).toEqual([id]);
+            // older tokens are still known, so several callers can each keep their own
+            return listEventChangesSinceP(token);
+          })
+          .then(function (changes) {
+            expect(changes.reset).toBe(false);
+            expect(changes.deleted).toEqual([id]);
+            return listEventChangesSinceP(firstToken);
+          })
+          .then(function (changes) {
+            // the event came and went since the first token
+            expect(changes.reset).toBe(false);
+            expect(changes.inserted).toEqual([]);
+            expect(changes.deleted).toEqual([]);
+            return listEventChangesSinceP('unknown');
+          })
+          .then(function (changes) {
+            expect(changes.reset).toBe(true);
+          });
+      });
+    });
+
+    describe('searchEvents', function () {
+      var idsOf = function (events) {
+        return events.map(function (event) { return event.id; }).sort();
+      };
+
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      itP('should find events by word prefixes, with and without the index', function () {
+        var ids;
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            return createEventsBatchP([
+              { title: 'Quarterly planning', location: 'Boardroom', startDate: newDate(2, 9), endDate: newDate(2, 10) },
+              { title: 'Planning poker', notes: 'bring cards', startDate: newDate(3, 9), endDate: newDate(3, 10) },
+              { title: 'Lunch', location: 'Airplane', startDate: newDate(4, 9), endDate: newDate(4, 10) }
+            ]);
+          })
+          .then(function (created) {
+            ids = created;
+            return searchEventsP('PLAN', {});
+          })
+          .then(function (events) {
+            // airplane only contains the word, it doesn't start with it
+            expect(events.map(function (event) { return event.title; })).toEqual(['Planning poker', 'Quarterly planning']);
+            return searchEventsP('plan board', { useIndex: true });
+          })
+          .then(function (events) {
+            expect(idsOf(events)).toEqual([String(ids[0])]);
+            expect(events[0].eventLocation).toBe('Boardroom');
+            return searchEventsP('plan', { useIndex: true, limit: 1 });
+          })
+          .then(function (events) {
+            expect(events.length).toBe(1);
+            expect(events[0].title).toBe('Planning poker');
+            return searchEventsP('cards', { useIndex: true, endDate: newDate(2, 12) });
+          })
+          .then(function (events) {
+            expect(events.length).toBe(0);
+            return createEventP('Sprint planning', null, null, newDate(5, 9), newDate(5, 10));
+          })
+          .then(function () {
+            // the index picks up the change
+            return searchEventsP('plan', { useIndex: true });
+          })
+          .then(function (events) {
+            expect(events.length).toBe(3);
+            expect(events[0].title).toBe('Sprint planning');
+            return utilityP('useFakeCalendarProvider', { events: 0 });
+          })
+          .then(function () {
+            return searchEventsP('plan', { useIndex: true });
+          })
+          .then(function (events) {
+            expect(events.length).toBe(0);
+          });
+      }, 120000);
+    });
+
+    describe('getFreeBusy / findFreeSlots', function () {
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      var times = function (date) {
+        return date.getTime();
+      };
+
+      itP('should merge the instances into busy blocks and find the slots in between', function () {
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            return createEventsBatchP([
+              { title: 'Standup', startDate: newDate(2, 9), endDate: newDate(2, 10) },
+              { title: 'Overlapping', startDate: newDate(2, 9, 30), endDate: newDate(2, 11) },
+              { title: 'Lunch', startDate: newDate(2, 13), endDate: newDate(2, 14) },
+              { title: 'Tomorrow', startDate: newDate(3, 9), endDate: newDate(3, 10) }
+            ]);
+          })
+          .then(function () {
+            return getFreeBusyP(newDate(2, 8), newDate(2, 18), {});
+          })
+          .then(function (busy) {
+            expect(busy).toEqual([
+              [newDate(2, 9), newDate(2, 11)].map(times),
+              [newDate(2, 13), newDate(2, 14)].map(times)
+            ]);
+            return findFreeSlotsP(newDate(2, 8), newDate(2, 18), { minDurationMinutes: 90 });
+          })
+          .then(function (slots) {
+            expect(slots).toEqual([
+              [newDate(2, 11), newDate(2, 13)].map(times),
+              [newDate(2, 14), newDate(2, 18)].map(times)
+            ]);
+            return findFreeSlotsP(newDate(2, 0), newDate(4, 0), { minDurationMinutes: 60, dayStartMinutes: 8 * 60, dayEndMinutes: 12 * 60 });
+          })
+          .then(function (slots) {
+            expect(slots).toEqual([
+              [newDate(2, 8), newDate(2, 9)].map(times),
+              [newDate(2, 11), newDate(2, 12)].map(times),
+              [newDate(3, 8), newDate(3, 9)].map(times),
+              [newDate(3, 10), newDate(3, 12)].map(times)
+            ]);
+          });
+      }, 120000);
+    });
+
+    describe('countEventsByDay', function () {
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      itP('should count the instances of every day they overlap', function () {
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            return createEventsBatchP([
+              { title: 'Standup', startDate: newDate(1, 9), endDate: newDate(1, 10) },
+              { title: 'Lunch', startDate: newDate(1, 12), endDate: newDate(1, 13) },
+              { title: 'Trip', startDate: newDate(2, 18), endDate: newDate(4, 10) },
+              { title: 'Until midnight', startDate: newDate(4, 22), endDate: newDate(5, 0) }
+            ]);
+          })
+          .then(function () {
+            return countEventsByDayP(newDate(0, 12), newDate(6, 0), { byCalendar: true });
+          })
+          .then(function (result) {
+            expect(result.startTime).toBe(newDate(0).getTime());
+            expect(result.days).toBe(6);
+            expect(result.counts).toEqual([0, 2, 1, 1, 2, 0]);
+            var calendarIds = Object.keys(result.calendars);
+            expect(calendarIds.length).toBe(1);
+            expect(result.calendars[calendarIds[0]]).toEqual(result.counts);
+          });
+      }, 120000);
+    });
+
+    describe('syncCalendars', function () {
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      itP('should report every account, then be done', function () {
+        var pushes = [];
+        return utilityP('useFakeCalendarProvider', { events: 0, calendars: 2 })
+          .then(function () {
+            return new Promise(function (resolve, reject) {
+              plugins.calendar.syncCalendars({ timeoutMillis: 5000 }, function (result) {
+                pushes.push(result);
+                if (result.done) {
+                  resolve(result);
+                }
+              }, reject);
+            });
+          })
+          .then(function (result) {
+            // the fake provider has no sync adapter
+            expect(pushes.length).toBe(3);
+            expect(pushes[0].status).toBe('notSyncable');
+            expect(pushes[0].account.type).toBe('org.apache.cordova.calendartests');
+            expect(result.accounts.map(function (account) { return account.status; })).toEqual(['notSyncable', 'notSyncable']);
+          });
+      }, 120000);
+    });
+
+    describe('includeReminders / includeAttendees', function () {
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      itP('should add the reminders and attendees of every event', function () {
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            return createEventsBatchP([
+              { title: 'With details', startDate: newDate(1, 9), endDate: newDate(1, 10),
+                options: { firstReminderMinutes: 15, secondReminderMinutes: 5 }, attendees: [{ name: 'Ann', email: 'ann@example.com' }] },
+              { title: 'Without', startDate: newDate(1, 11), endDate: newDate(1, 12), options: { firstReminderMinutes: null } }
+            ]);
+          })
+          .then(function () {
+            return listEventsInRangeWithOptionsP(newDate(1), newDate(2), {
+              fields: ['title'], includeReminders: true, includeAttendees: true, useCache: false
+            });
+          })
+          .then(function (events) {
+            expect(events.length).toBe(2);
+            expect(Object.keys(events[0]).sort()).toEqual(['attendees', 'reminders', 'title']);
+            expect(events[0].reminders.map(function (reminder) { return reminder.minutes; }).sort()).toEqual([15, 5]);
+            expect(events[0].attendees.map(function (attendee) { return attendee.email; })).toEqual(['ann@example.com']);
+            expect(events[1].reminders).toEqual([]);
+            expect(events[1].attendees).toEqual([]);
+            return listEventsInRangeWithOptionsP(newDate(1), newDate(2), {
+              fields: ['title'], includeReminders: true, format: 'columnar', pageSize: 1
+            });
+          })
+          .then(function (page) {
+            // the first page of the stream
+            var events = plugins.calendar.expandColumnarEvents(page.events);
+            expect(events.length).toBe(1);
+            expect(events[0].reminders.length).toBe(2);
+            expect(events[0].attendees).toBeUndefined();
+          });
+      }, 120000);
+    });
+
+    describe('listEventsInRanges', function () {
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      var titles = function (events) {
+        return events.map(function (event) {
+          return event.title;
+        });
+      };
+
+      itP('should list the events of every window with one query', function () {
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            return createEventsBatchP([
+              { title: 'Standup', startDate: newDate(1, 9), endDate: newDate(1, 10) },
+              { title: 'Overnight', startDate: newDate(1, 22), endDate: newDate(2, 2) },
+              { title: 'Lunch', startDate: newDate(2, 12), endDate: newDate(2, 13) },
+              { title: 'Review', startDate: newDate(5, 15), endDate: newDate(5, 16) }
+            ]);
+          })
+          .then(function () {
+            return listEventsInRangesP([
+              { key: 'day', startDate: newDate(1), endDate: newDate(2) },
+              { key: 'dayOverlap', startDate: newDate(2), endDate: newDate(3), match: 'overlap' },
+              { startDate: newDate(0), endDate: newDate(7), limit: 3 },
+              { key: 'none', startDate: newDate(0), endDate: newDate(7), calendarIds: ['-1'] }
+            ], { fields: ['title'] });
+          })
+          .then(function (result) {
+            expect(Object.keys(result).sort()).toEqual(['2', 'day', 'dayOverlap', 'none']);
+            expect(titles(result.day)).toEqual(['Standup']);
+            expect(titles(result.dayOverlap)).toEqual(['Overnight', 'Lunch']);
+            expect(titles(result['2'])).toEqual(['Standup', 'Overnight', 'Lunch']);
+            expect(result.none).toEqual([]);
+            expect(Object.keys(result.day[0])).toEqual(['title']);
+          });
+      }, 120000);
+    });
+
+    describe('getCachedEventsInRange', function () {
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      // resolves with every result, up to and including the one read from the provider
+      var getCachedEventsInRangeP = function (startDate, endDate, options) {
+        return new Promise(function (resolve, reject) {
+          var results = [];
+          plugins.calendar.getCachedEventsInRange(startDate, endDate, options, function (result) {
+            results.push(result);
+            if (!result.cached) {
+              resolve(results);
+            }
+          }, reject);
+        });
+      };
+
+      var titles = function (events) {
+        return events.map(function (event) {
+          return event.title;
+        });
+      };
+
+      itP('should serve the snapshot first and then what changed', function () {
+        var now = new Date();
+        var today = new Date(now.getFullYear(), now.getMonth(), now.getDate());
+        var at = function (days, hours) {
+          return new Date(today.getFullYear(), today.getMonth(), today.getDate() + days, hours);
+        };
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            return createEventsBatchP([
+              { title: 'Standup', startDate: at(1, 9), endDate: at(1, 10) },
+              { title: 'Lunch', startDate: at(2, 12), endDate: at(2, 13) }
+            ]);
+          })
+          .then(function () {
+            return getCachedEventsInRangeP(today, at(7), { fields: ['title', 'dtstart'] });
+          })
+          .then(function (results) {
+            // a previous run may have left a snapshot of the fake provider behind
+            expect(results[results.length - 1].cached).toBe(false);
+            return getCachedEventsInRangeP(today, at(7), { fields: ['title', 'dtstart'] });
+          })
+          .then(function (results) {
+            expect(results.length).toBe(2);
+            expect(results[0].cached).toBe(true);
+            expect(results[0].savedAt).toBeGreaterThan(0);
+            expect(titles(results[0].events)).toEqual(['Standup', 'Lunch']);
+            expect(Object.keys(results[0].events[0]).sort()).toEqual(['dtstart', 'title']);
+            expect(results[1].changed).toBe(false);
+            expect(results[1].events).toBe(null);
+            return createEventsBatchP([{ title: 'Dentist', startDate: at(1, 14), endDate: at(1, 15) }]);
+          })
+          .then(function () {
+            return getCachedEventsInRangeP(today, at(7), { fields: ['title', 'dtstart'] });
+          })
+          .then(function (results) {
+            expect(titles(results[0].events)).toEqual(['Standup', 'Lunch']);
+            expect(results[1].changed).toBe(true);
+            expect(titles(results[1].events)).toEqual(['Standup', 'Dentist', 'Lunch']);
+          });
+      }, 120000);
+    });
+
+    describe('getPluginMetrics', function () {
+      itP('should record the phases and rows of listEventsInRange', function () {
+        return getPluginMetricsP({ reset: true })
+          .then(function () {
+            return listEventsInRangeWithOptionsP(newDate(0), newDate(30), { useCache: false });
+          })
+          .then(function (events) {
+            return getPluginMetricsP({ reset: false })
+              .then(function (metrics) {
+                var listing = metrics.actions.listEventsInRange;
+                expect(listing.calls).toBe(1);
+                expect(listing.errors).toBe(0);
+                expect(listing.totalMicros.count).toBe(1);
+                expect(listing.queryMicros.count).toBe(1);
+                expect(listing.rows.max).not.toBeLessThan(events.length);
+                expect(listing.payloadBytes.max).toBeGreaterThan(0);
+              });
+          });
+      });
+
+      itP('should start over after a reset', function () {
+        return getPluginMetricsP({ reset: true })
+          .then(function () {
+            return getPluginMetricsP({ reset: false });
+          })
+          .then(function (metrics) {
+            expect(metrics.actions.listEventsInRange).toBeUndefined();
+          });
+      });
+    });
+
+    describe('fake calendar provider', function () {
+      var seedOptions = { seed: 7, calendars: 4, events: 5000, recurringPercentage: 20, startTime: newDate(0).getTime(), days: 90 };
+      var idsOf = function (events) {
+        return events.map(function (event) { return event.id; });
+      };
+
+      afterEach(function (done) {
+        utilityP('useDeviceCalendarProvider').catch(fail).then(done, done);
+      });
+
+      itP('should list the same instances for the same seed', function () {
+        var first;
+        return utilityP('useFakeCalendarProvider', seedOptions)
+          .then(function (events) {
+            expect(events).toBe(5000);
+            return listEventsInRangeWithOptionsP(newDate(7), newDate(35), { useCache: false });
+          })
+          .then(function (events) {
+            expect(events.length).toBeGreaterThan(0);
+            first = idsOf(events);
+            return utilityP('useFakeCalendarProvider', seedOptions);
+          })
+          .then(function () {
+            return listEventsInRangeWithOptionsP(newDate(7), newDate(35), { useCache: false });
+          })
+          .then(function (events) {
+            expect(idsOf(events)).toEqual(first);
+          });
+      }, 120000);
+
+      itP('should push the calendars to watchCalendars when they change', function () {
+        var pushes = [];
+        var watchId;
+        // resolves once a push with this many calendars came in (a reset in between may push an empty list as well)
+        var pushedWith = function (length) {
+          return new Promise(function (resolve, reject) {
+            var waited = 0;
+            (function poll() {
+              if (pushes.some(function (calendars) { return calendars.length === length; })) {
+                resolve();
+              } else if ((waited += 100) > 10000) {
+                reject('watchCalendars received no push with ' + length + ' calendars');
+              } else {
+                setTimeout(poll, 100);
+              }
+            })();
+          });
+        };
+        return utilityP('useFakeCalendarProvider', { events: 0, calendars: 2 })
+          .then(function () {
+            watchId = plugins.calendar.watchCalendars(function (calendars) { pushes.push(calendars); }, fail);
+            // a second watch, unwatched right away, must not end the first one
+            var otherWatchId = plugins.calendar.watchCalendars(function () {}, fail);
+            expect(otherWatchId).not.toBe(watchId);
+            return new Promise(function (resolve, reject) {
+              plugins.calendar.unwatchCalendars(otherWatchId, resolve, reject);
+            }).then(function () {
+              return pushedWith(2);
+            });
+          })
+          .then(function () {
+            expect(pushes[0].length).toBe(2);
+            return utilityP('useFakeCalendarProvider', { events: 0, calendars: 3 });
+          })
+          .then(function () {
+            return pushedWith(3);
+          })
+          .then(function () {
+            return new Promise(function (resolve, reject) {
+              plugins.calendar.unwatchCalendars(watchId, resolve, reject);
+            });
+          });
+      }, 120000);
+
+      itP('should push one coalesced change to subscribeEventChanges for a batch', function () {
+        var pushes = [];
+        var events = [];
+        for (var i = 0; i < 20; i++) {
+          events.push({ title: 'Fake subscribed event ' + i, startDate: newDate(3, 9 + (i % 8)), endDate: newDate(3, 10 + (i % 8)) });
+        }
+        var waitFor = function (condition, millis) {
+          return new Promise(function (resolve, reject) {
+            var waited = 0;
+            (function poll() {
+              if (condition()) {
+                resolve();
+              } else if ((waited += 100) > millis) {
+                reject('subscribeEventChanges received ' + pushes.length + ' pushes');
+              } else {
+                setTimeout(poll, 100);
+              }
+            })();
+          });
+        };
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            plugins.calendar.subscribeEventChanges({ debounceMillis: 300, includeDiff: true }, function (change) { pushes.push(change); }, fail);
+            return waitFor(function () { return pushes.length === 1; }, 10000);
+          })
+          .then(function () {
+            expect(pushes[0].subscribed).toBe(true);
+            return createEventsBatchP(events);
+          })
+          .then(function () {
+            return waitFor(function () { return pushes.length === 2; }, 10000);
+          })
+          .then(function () {
+            // give a second push the time to show up
+            return new Promise(function (resolve) { setTimeout(resolve, 1500); });
+          })
+          .then(function () {
+            expect(pushes.length).toBe(2);
+            expect(pushes[1].inserted.length).toBe(20);
+            expect(pushes[1].updated.length).toBe(0);
+            expect(pushes[1].deleted.length).toBe(0);
+            expect(pushes[1].startTime).toBe(newDate(3, 9).getTime());
+            expect(pushes[1].endTime).toBe(newDate(3, 17).getTime());
+            return new Promise(function (resolve, reject) {
+              plugins.calendar.unsubscribeEventChanges(resolve, reject);
+            });
+          });
+      }, 120000);
+
+      itP('should only end the passed subscription in unsubscribeEventChanges', function () {
+        var first = [];
+        var second = [];
+        var waitFor = function (condition, millis) {
+          return new Promise(function (resolve, reject) {
+            var waited = 0;
+            (function poll() {
+              if (condition()) {
+                resolve();
+              } else if ((waited += 100) > millis) {
+                reject('subscribeEventChanges received ' + first.length + ' and ' + second.length + ' pushes');
+              } else {
+                setTimeout(poll, 100);
+              }
+            })();
+          });
+        };
+        return utilityP('useFakeCalendarProvider', { events: 0 })
+          .then(function () {
+            plugins.calendar.subscribeEventChanges({ debounceMillis: 300 }, function (change) { first.push(change); }, fail);
+            plugins.calendar.subscribeEventChanges({ debounceMillis: 300 }, function (change) { second.push(change); }, fail);
+            return waitFor(function () { return first.length === 1 && second.length === 1; }, 10000);
+          })
+          .then(function () {
+            expect(first[0].subscriptionId).not.toBe(second[0].subscriptionId);
+            return new Promise(function (resolve, reject) {
+              plugins.calendar.unsubscribeEventChanges(first[0].subscriptionId, resolve, reject);
+            });
+          })
+          .then(function () {
+            return createEventsBatchP([{ title: 'Fake unsubscribed event', startDate: newDate(3, 9), endDate: newDate(3, 10) }]);
+          })
+          .then(function () {
+            return waitFor(function () { return second.length === 2; }, 10000);
+          })
+          .then(function () {
+            expect(first.length).toBe(1);
+            return new Promise(function (resolve, reject) {
+              plugins.calendar.unsubscribeEventChanges(second[0].subscriptionId, resolve, reject);
+            });
+          });
+      }, 120000);
+
+      itP('should pay the simulated latency once per batch', function () {
+        var events = [];
+        for (var i = 0; i < 100; i++) {
+          events.push({ title: 'Fake batch event ' + i, startDate: newDate(2, 9), endDate: newDate(2, 10) });
+        }
+        var start;
+        return utilityP('useFakeCalendarProvider', { events: 0, latencyMillis: 50 })
+          .then(function () {
+            start = Date.now();
+            return createEventsBatchP(events);
+          })
+          .then(function (results) {
+            console.log('createEventsBatch of 100 events with 50ms latency: ' + (Date.now() - start) + 'ms');
+            expect(results.length).toBe(100);
+            expect(Date.now() - start).toBeLessThan(100 * 50);
+          });
+      }, 120000);
+    });
+
+    describe('Benchmarks', function () {
+      itP('should report the per row cost of mapping a 50k row cursor', function () {
+        return benchmarkP('benchmarkRowMapping', { rows: 50000 })
+          .then(function (result) {
+            console.log('benchmarkRowMapping: ' + JSON.stringify(result));
+            expect(result.rows).toBe(50000);
+            // wall clock timings on a device vary with the JIT and GC, so they're only logged
+            expect(result.rowMapperNanosPerRow).toBeGreaterThan(0);
+            expect(result.perRowLookupNanosPerRow).toBeGreaterThan(0);
+          });
+      }, 120000);
+
+      itP('should report time and allocations of the hot paths at 1k, 10k and 100k rows', function () {
+        return benchmarkP('benchmarkHotPaths', { sizes: [1000, 10000, 100000] })
+          .then(function (result) {
+            console.log('benchmarkHotPaths: ' + JSON.stringify(result));
+            expect(result.results.length).toBe(9);
+            result.results.forEach(function (r) {
+              expect(r.nanosPerRow).toBeGreaterThan(0);
+              // palette colors and previously seen custom colors don't allocate
+              if (result.allocationTracking && r.path == 'displayColorHex' && r.rows == 100000) {
+                expect(r.bytesPerRow).toBeLessThan(16);
+              }
+            });
+          });
+      }, 300000);
+
+      itP('should report the cost of a display color lookup', function () {
+        return benchmarkP('benchmarkDisplayColor', { lookups: 200000 })
+          .then(function (result) {
+            console.log('benchmarkDisplayColor: ' + JSON.stringify(result));
+            expect(result.lookups).toBe(200000);
+            expect(result.currentNanosPerLookup).toBeLessThan(result.legacyNanosPerLookup);
+          });
+      }, 120000);
+    });
+  }
+
 };
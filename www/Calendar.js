@@ -215,6 +215,83 @@ Calendar.prototype.deleteEventById = function (id, fromDate, successCallback, er
   }]);
 };
 
+/**
+ * Android only. Creates all events in one go, pass an array of objects like:
+ *   {title: "..", location: "..", notes: "..", startDate: new Date(), endDate: new Date(), options: {..}, attendees: [{name: "..", email: ".."}]}
+ * where options are the same as for createEventWithOptions.
+ * The successCallback receives an entry per event: {id: ".."} or {error: ".."}.
+ */
+Calendar.prototype.createEventsBatch = function (events, successCallback, errorCallback) {
+  var nativeEvents = [];
+  for (var i = 0; i < events.length; i++) {
+    var event = events[i];
+    var options = event.options || {};
+    // merge passed options with defaults
+    var mergedOptions = Calendar.prototype.getCalendarOptions();
+    for (var val in options) {
+      if (options.hasOwnProperty(val)) {
+        mergedOptions[val] = options[val];
+      }
+    }
+    if (options.recurrenceEndDate != null) {
+      mergedOptions.recurrenceEndTime = options.recurrenceEndDate.getTime();
+    }
+    nativeEvents.push({
+      "title": event.title,
+      "location": event.location,
+      "notes": event.notes,
+      "startTime": event.startDate instanceof Date ? event.startDate.getTime() : null,
+      "endTime": event.endDate instanceof Date ? event.endDate.getTime() : null,
+      "options": mergedOptions,
+      "attendees": event.attendees || null
+    });
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "createEventsBatch", [{
+    "events": nativeEvents
+  }]);
+};
+
+/**
+ * Android only. The successCallback receives an entry per id: {id: "..", deleted: true} or {id: "..", error: ".."}.
+ */
+Calendar.prototype.deleteEventsByIds = function (ids, successCallback, errorCallback) {
+  cordova.exec(successCallback, errorCallback, "Calendar", "deleteEventsByIds", [{
+    "ids": ids
+  }]);
+};
+
+/**
+ * Android only. Modifies several events at once while keeping their ids, pass an array of objects like:
+ *   {id: "..", title: "..", location: "..", notes: "..", startDate: new Date(), endDate: new Date(), calendarId: 1, reminders: [15, 60]}
+ * where only id is mandatory (and can only be passed once): fields which are left out stay as they are, and only what
+ * differs is written.
+ * Passing just a startDate moves the event and keeps its length, reminders (in minutes) replace the current ones.
+ * The successCallback receives an entry per event: {id: "..", updated: true} (false when nothing differed) or {id: "..", error: ".."}.
+ */
+Calendar.prototype.modifyEvents = function (events, successCallback, errorCallback) {
+  var nativeEvents = [];
+  for (var i = 0; i < events.length; i++) {
+    var event = events[i];
+    var nativeEvent = {"id": event.id};
+    var fields = ["title", "location", "notes", "calendarId", "reminders"];
+    for (var f = 0; f < fields.length; f++) {
+      if (event.hasOwnProperty(fields[f])) {
+        nativeEvent[fields[f]] = event[fields[f]];
+      }
+    }
+    if (event.startDate instanceof Date) {
+      nativeEvent.startTime = event.startDate.getTime();
+    }
+    if (event.endDate instanceof Date) {
+      nativeEvent.endTime = event.endDate.getTime();
+    }
+    nativeEvents.push(nativeEvent);
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "modifyEvents", [{
+    "events": nativeEvents
+  }]);
+};
+
 Calendar.prototype.modifyEventWithOptions = function (title, location, notes, startDate, endDate, newTitle, newLocation, newNotes, newStartDate, newEndDate, options, newOptions, successCallback, errorCallback) {
   if (!(newStartDate instanceof Date && newEndDate instanceof Date)) {
     errorCallback("newStartDate and newEndDate must be JavaScript Date Objects");
@@ -273,10 +350,302 @@ Calendar.prototype.listEventsInRange = function (startDate, endDate, successCall
   }])
 };
 
+Calendar.prototype.getListEventsInRangeOptions = function () {
+  return {
+    pageSize: null, // when set, the successCallback is invoked once per page: {events: [..], cursorToken: "..", done: false}
+    maxPages: null, // stop streaming after this many pages, pass the last cursorToken to resume
+    cursorToken: null, // resume a previous listing at this position
+    format: null, // pass "columnar" to receive {columns: [..], values: [[..], ..], length: n} instead of an array of objects
+    useCache: true, // ranges up to a year are served from an in-memory cache which is cleared whenever the calendar changes
+    queryTag: null, // a newer listing with the same tag cancels this one if it's still running, its errorCallback receives "Superseded by a newer query"
+    calendarIds: null, // only list the events of these calendars
+    match: null, // by default only events which fall entirely within the range are listed, pass "overlap" to include those crossing its start or end (not those only touching it)
+    limit: null, // return no more than this many events (the earliest ones)
+    expandRecurrences: false, // Android: expand recurring events in memory instead of through the provider, the id of an event is then "eventId_begin"
+    fields: null, // Android: only return these fields (e.g. ["event_id", "dtstart", "dtend", "displayColor"]), fetch the rest with getEventsByIds
+    includeReminders: false, // Android: add the reminders of every event, [{minutes, method}]
+    includeAttendees: false // Android: add the attendees of every event, [{name, email, status, type, relationship}]
+  };
+};
+
+/**
+ * Android only. Pass in an options object to stream large ranges in pages:
+ *   var options = window.plugins.calendar.getListEventsInRangeOptions();
+ *   options.pageSize = 200;
+ */
+Calendar.prototype.listEventsInRangeWithOptions = function (startDate, endDate, options, successCallback, errorCallback) {
+  // merge passed options with defaults
+  var mergedOptions = Calendar.prototype.getListEventsInRangeOptions();
+  for (var val in options) {
+    if (options.hasOwnProperty(val)) {
+      mergedOptions[val] = options[val];
+    }
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "listEventsInRange", [{
+    "startTime": startDate instanceof Date ? startDate.getTime() : null,
+    "endTime": endDate instanceof Date ? endDate.getTime() : null,
+    "options": mergedOptions
+  }])
+};
+
+/**
+ * Android only. Syncs the calendars of all accounts (at once) with their server, for pull-to-refresh.
+ * successCallback gets {account: {name, type}, status, done: false} as soon as the sync of an account completes, status
+ * is "synced", "notStarted", "notSyncable" or "timedOut", and finally {done: true, accounts: [{name, type, status}]}.
+ * Options: {accountTypes (like ["com.google"]), timeoutMillis (default 30000)}.
+ */
+Calendar.prototype.syncCalendars = function (options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "syncCalendars", [options || {}]);
+};
+
+/**
+ * Android only. Lists the events of several windows in one go, like a dashboard showing today, this week and a few
+ * calendars: windows is [{key, startDate, endDate, calendarIds, match, limit}, ..] and successCallback gets
+ * {key: [events], ..} (by index for windows without a key). Options: {match, fields, queryTag}, like those of
+ * listEventsInRangeWithOptions, a window can override match.
+ */
+Calendar.prototype.listEventsInRanges = function (windows, options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "listEventsInRanges", [{
+    "windows": (windows || []).map(function (range) {
+      return {
+        "key": range.key || null,
+        "startTime": range.startDate instanceof Date ? range.startDate.getTime() : null,
+        "endTime": range.endDate instanceof Date ? range.endDate.getTime() : null,
+        "calendarIds": range.calendarIds || null,
+        "match": range.match || null,
+        "limit": range.limit || 0
+      };
+    }),
+    "options": options || {}
+  }])
+};
+
+/**
+ * Android only. For drawing an agenda right after a cold start: successCallback gets the events of the range from a
+ * snapshot on disk right away, {cached: true, savedAt, events: [..]} (only when a previous call saved one which covers
+ * the range), and once more when the calendar has been read: {cached: false, changed, events}, events is null when
+ * they didn't change. Options: {calendarIds, match, fields}, like those of listEventsInRangeWithOptions.
+ */
+Calendar.prototype.getCachedEventsInRange = function (startDate, endDate, options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "getCachedEventsInRange", [{
+    "startTime": startDate instanceof Date ? startDate.getTime() : null,
+    "endTime": endDate instanceof Date ? endDate.getTime() : null,
+    "options": options || {}
+  }])
+};
+
+/**
+ * Android only. Pass null the first time, then the token of the previous result:
+ * {token: "..", reset: false, inserted: [ids], updated: [ids], deleted: [ids]}
+ */
+Calendar.prototype.listEventChangesSince = function (token, successCallback, errorCallback) {
+  cordova.exec(successCallback, errorCallback, "Calendar", "listEventChangesSince", [{
+    "token": token
+  }])
+};
+
+/**
+ * Android only. The details of the events with these ids (in that order, unknown ids are left out), including their
+ * description, reminders and attendees. Pass {fields: [..]} as options to only return some of them.
+ */
+Calendar.prototype.getEventsByIds = function (ids, options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "getEventsByIds", [{
+    "ids": ids,
+    "fields": options && options.fields ? options.fields : null
+  }])
+};
+
+/**
+ * Android only. The times between startDate and endDate in which the user is busy, as [[startMillis, endMillis], ..]:
+ * the instances merged into blocks, without the ones marked as free or canceled.
+ * Options: {calendarIds, includeAllDay (default true)}.
+ */
+Calendar.prototype.getFreeBusy = function (startDate, endDate, options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "getFreeBusy", [{
+    "startTime": startDate instanceof Date ? startDate.getTime() : null,
+    "endTime": endDate instanceof Date ? endDate.getTime() : null,
+    "options": options || {}
+  }])
+};
+
+/**
+ * Android only. The free time between startDate and endDate, as [[startMillis, endMillis], ..]. Options are those of
+ * getFreeBusy plus {minDurationMinutes, dayStartMinutes, dayEndMinutes, limit}: to find an hour within office hours pass
+ * {minDurationMinutes: 60, dayStartMinutes: 9 * 60, dayEndMinutes: 17 * 60}.
+ */
+Calendar.prototype.findFreeSlots = function (startDate, endDate, options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "findFreeSlots", [{
+    "startTime": startDate instanceof Date ? startDate.getTime() : null,
+    "endTime": endDate instanceof Date ? endDate.getTime() : null,
+    "options": options || {}
+  }])
+};
+
+/**
+ * Android only. The number of instances on every local day between startDate and endDate, for heatmaps:
+ * {startTime (the first midnight), days, counts: [number per day], calendars: {calendarId: [number per day]}}.
+ * An event spanning several days counts for every one of them. Options: {calendarIds, byCalendar}, the calendars
+ * are only returned with byCalendar.
+ */
+Calendar.prototype.countEventsByDay = function (startDate, endDate, options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "countEventsByDay", [{
+    "startTime": startDate instanceof Date ? startDate.getTime() : null,
+    "endTime": endDate instanceof Date ? endDate.getTime() : null,
+    "options": options || {}
+  }])
+};
+
+/**
+ * Android only. The events (newest first) with a word in their title, location or description starting with every word
+ * of the query, like "plan board" for "Planning in the boardroom": [{id, calendar_id, title, eventLocation, dtstart, dtend, allDay, rrule}].
+ * Options: {startDate, endDate, calendarIds, limit (default 50), useIndex}. With useIndex the events are looked up in an
+ * in-memory index of all events, which makes type-ahead search fast once it's built (the first search builds it).
+ */
+Calendar.prototype.searchEvents = function (query, options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  options = options || {};
+  cordova.exec(successCallback, errorCallback, "Calendar", "searchEvents", [{
+    "query": query,
+    "options": {
+      "startTime": options.startDate instanceof Date ? options.startDate.getTime() : null,
+      "endTime": options.endDate instanceof Date ? options.endDate.getTime() : null,
+      "calendarIds": options.calendarIds || null,
+      "limit": options.limit != null ? options.limit : 50,
+      "useIndex": !!options.useIndex
+    }
+  }])
+};
+
+/**
+ * Android only. Latency histograms (in microseconds) and counters per action since the app started (or the last reset):
+ * {sinceMillis: .., nowMillis: .., actions: {listEventsInRange: {calls: 3, errors: 0, totalMicros: {count, mean, p50, p90, p99, max}, ..}}}
+ * Pass {reset: true} as options to start over after this call.
+ */
+Calendar.prototype.getPluginMetrics = function (options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "getPluginMetrics", [{
+    "reset": !!(options && options.reset)
+  }])
+};
+
+/**
+ * Turns a "columnar" listEventsInRange result back into an array of event objects.
+ */
+Calendar.prototype.expandColumnarEvents = function (columnar) {
+  var events = [];
+  for (var r = 0; r < columnar.length; r++) {
+    var event = {};
+    for (var c = 0; c < columnar.columns.length; c++) {
+      event[columnar.columns[c]] = columnar.values[c][r];
+    }
+    events.push(event);
+  }
+  return events;
+};
+
 Calendar.prototype.listCalendars = function (successCallback, errorCallback) {
   cordova.exec(successCallback, errorCallback, "Calendar", "listCalendars", []);
 };
 
+var nextWatchId = 1;
+
+/**
+ * Android only. The successCallback receives the calendars (like listCalendars) right away and again whenever they change,
+ * until unwatchCalendars is called. Returns the watchId to pass to unwatchCalendars.
+ */
+Calendar.prototype.watchCalendars = function (successCallback, errorCallback) {
+  var watchId = nextWatchId++;
+  cordova.exec(successCallback, errorCallback, "Calendar", "watchCalendars", [watchId]);
+  return watchId;
+};
+
+/**
+ * Ends the watch with the passed watchId, or all watches when no id is passed.
+ */
+Calendar.prototype.unwatchCalendars = function (watchId, successCallback, errorCallback) {
+  if (typeof watchId === "function") {
+    errorCallback = successCallback;
+    successCallback = watchId;
+    watchId = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "unwatchCalendars", [watchId != null ? watchId : -1]);
+};
+
+/**
+ * Android only. The successCallback receives {subscribed: true, subscriptionId} once the events are observed, and then
+ * {startTime, endTime} (the range the changed events occupy, endTime is null for events which recur forever) once
+ * the provider has been quiet for options.debounceMillis (default 1000) after a change, until unsubscribeEventChanges
+ * is called. Pass {includeDiff: true} to also receive the ids: {.., inserted: [ids], updated: [ids], deleted: [ids]}.
+ */
+Calendar.prototype.subscribeEventChanges = function (options, successCallback, errorCallback) {
+  if (typeof options === "function") {
+    errorCallback = successCallback;
+    successCallback = options;
+    options = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "subscribeEventChanges", [{
+    "debounceMillis": options && options.debounceMillis != null ? options.debounceMillis : 1000,
+    "includeDiff": !!(options && options.includeDiff)
+  }]);
+};
+
+/**
+ * Ends the subscription with the passed subscriptionId, or all subscriptions when no id is passed.
+ */
+Calendar.prototype.unsubscribeEventChanges = function (subscriptionId, successCallback, errorCallback) {
+  if (typeof subscriptionId === "function") {
+    errorCallback = successCallback;
+    successCallback = subscriptionId;
+    subscriptionId = null;
+  }
+  cordova.exec(successCallback, errorCallback, "Calendar", "unsubscribeEventChanges", [{
+    "subscriptionId": subscriptionId != null ? subscriptionId : -1
+  }]);
+};
+
 Calendar.prototype.parseEventDate = function (dateStr) {
   // Handle yyyyMMddTHHmmssZ iCalendar UTC format
   var icalRegExp = /\b(\d{4})(\d{2})(\d{2}T\d{2})(\d{2})(\d{2}Z)\b/;